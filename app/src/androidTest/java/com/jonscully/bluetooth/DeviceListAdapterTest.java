@@ -0,0 +1,109 @@
+package com.jonscully.bluetooth;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+// Main-thread cost of showing 1000 devices in the RecyclerView list, against the TextView
+// append loop it replaced. Timings are logged under DeviceListAdapterTest.
+@RunWith(AndroidJUnit4.class)
+public class DeviceListAdapterTest {
+    private static final String TAG = "DeviceListAdapterTest";
+    private static final int DEVICE_COUNT = 1000;
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 600;
+
+    private static List<DeviceListItem> devices(int count, short rssi) {
+        List<DeviceListItem> devices = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            devices.add(new DeviceListItem(0x00AA00000000L + i, "Device " + i, i % 10 == 0, rssi));
+        }
+        return devices;
+    }
+
+    private static void layout(View view) {
+        view.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, WIDTH, HEIGHT);
+    }
+
+    @Test
+    public void addingDevicesBindsOnlyVisibleRows() throws InterruptedException {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        final RecyclerView[] recyclerView = new RecyclerView[1];
+        final DeviceListAdapter adapter = new DeviceListAdapter();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                recyclerView[0] = new RecyclerView(context);
+                recyclerView[0].setLayoutManager(new LinearLayoutManager(context));
+                recyclerView[0].setHasFixedSize(true);
+                recyclerView[0].setAdapter(adapter);
+                layout(recyclerView[0]);
+            }
+        });
+
+        // Full list, then the same devices with a new RSSI, which rebinds only visible rows.
+        short[] rssiUpdates = {-60, -70};
+        for (short rssi : rssiUpdates) {
+            final List<DeviceListItem> devices = devices(DEVICE_COUNT, rssi);
+            final CountDownLatch committed = new CountDownLatch(1);
+            final long[] mainThreadNanos = new long[1];
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    adapter.submitList(devices, new Runnable() {
+                        @Override
+                        public void run() {
+                            long start = SystemClock.elapsedRealtimeNanos();
+                            layout(recyclerView[0]);
+                            mainThreadNanos[0] = SystemClock.elapsedRealtimeNanos() - start;
+                            committed.countDown();
+                        }
+                    });
+                }
+            });
+            assertTrue(committed.await(10, TimeUnit.SECONDS));
+            Log.d(TAG, "RecyclerView, rssi " + rssi + ": " + DEVICE_COUNT + " devices laid out in "
+                    + mainThreadNanos[0] / 1000 + " us on the main thread.");
+        }
+
+        assertEquals(DEVICE_COUNT, adapter.getItemCount());
+        assertTrue(recyclerView[0].getChildCount() < DEVICE_COUNT);
+    }
+
+    @Test
+    public void textViewAppendBaseline() {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                TextView textView = new TextView(context);
+                long start = SystemClock.elapsedRealtimeNanos();
+                for (DeviceListItem device : devices(DEVICE_COUNT, (short) -60)) {
+                    textView.append("\nDevice: " + device.name + ", " + device.address);
+                }
+                layout(textView);
+                Log.d(TAG, "TextView: " + DEVICE_COUNT + " devices appended and laid out in "
+                        + (SystemClock.elapsedRealtimeNanos() - start) / 1000 + " us on the main thread.");
+            }
+        });
+    }
+}
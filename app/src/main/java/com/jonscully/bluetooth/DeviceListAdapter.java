@@ -0,0 +1,93 @@
+package com.jonscully.bluetooth;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.jonscully.bluetooth.bluetooth.DeviceFormat;
+import com.jonscully.bluetooth.bluetooth.DeviceRegistry;
+import com.jonscully.bluetooth.bluetooth.MacAddress;
+
+import java.util.List;
+
+// Device list backed by a RecyclerView. Lists are diffed on a background thread by ListAdapter
+// and only the changed rows are rebound, so live discovery results do not re-lay out the whole
+// list. Ids are the packed addresses, which keeps rows stable while devices move around.
+public class DeviceListAdapter extends ListAdapter<DeviceListItem, DeviceListAdapter.ViewHolder> {
+    private static final String TAG = "DeviceListAdapter";
+
+    private static final DiffUtil.ItemCallback<DeviceListItem> DIFF_CALLBACK = new DiffUtil.ItemCallback<DeviceListItem>() {
+        @Override
+        public boolean areItemsTheSame(DeviceListItem oldItem, DeviceListItem newItem) {
+            return oldItem.address == newItem.address;
+        }
+
+        @Override
+        public boolean areContentsTheSame(DeviceListItem oldItem, DeviceListItem newItem) {
+            return oldItem.hasSameContents(newItem);
+        }
+    };
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView nameTv;
+        final TextView detailTv;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            nameTv = itemView.findViewById(R.id.deviceNameTv);
+            detailTv = itemView.findViewById(R.id.deviceDetailTv);
+        }
+    }
+
+    public DeviceListAdapter() {
+        super(DIFF_CALLBACK);
+        setHasStableIds(true);
+    }
+
+    // Replaces the list. The diff runs off the main thread; the time until the new list is
+    // committed on the main thread is logged.
+    public void show(List<DeviceListItem> devices) {
+        final int count = devices.size();
+        final long submittedAt = SystemClock.elapsedRealtime();
+        submitList(devices, new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "Committed " + count + " devices " + (SystemClock.elapsedRealtime() - submittedAt)
+                        + " ms after submit.");
+            }
+        });
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return getItem(position).address;
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_device, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        DeviceListItem item = getItem(position);
+        String address = MacAddress.toString(item.address);
+        holder.nameTv.setText(DeviceFormat.displayName(address, item.name));
+        StringBuilder detail = new StringBuilder(address);
+        if (item.bonded) {
+            detail.append(", paired");
+        }
+        if (item.rssi != DeviceRegistry.RSSI_UNKNOWN) {
+            detail.append(", ").append(item.rssi).append(" dBm");
+        }
+        holder.detailTv.setText(detail);
+    }
+}
@@ -0,0 +1,27 @@
+package com.jonscully.bluetooth;
+
+import com.jonscully.bluetooth.bluetooth.DeviceRegistry;
+
+// Immutable row of the device list. The packed address (see MacAddress) is the stable id.
+public class DeviceListItem {
+    public final long address;
+    public final String name;
+    public final boolean bonded;
+    public final short rssi;
+
+    public DeviceListItem(long address, String name, boolean bonded) {
+        this(address, name, bonded, DeviceRegistry.RSSI_UNKNOWN);
+    }
+
+    public DeviceListItem(long address, String name, boolean bonded, short rssi) {
+        this.address = address;
+        this.name = name;
+        this.bonded = bonded;
+        this.rssi = rssi;
+    }
+
+    boolean hasSameContents(DeviceListItem other) {
+        return bonded == other.bonded && rssi == other.rssi
+                && (name == null ? other.name == null : name.equals(other.name));
+    }
+}
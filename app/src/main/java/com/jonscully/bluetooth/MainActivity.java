@@ -1,9 +1,10 @@
 package com.jonscully.bluetooth;
 
+import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -15,46 +16,146 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.app.ActivityCompat;
+import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
-import java.util.Set;
+import com.jonscully.bluetooth.bluetooth.BluetoothController;
+import com.jonscully.bluetooth.bluetooth.BluetoothDiscoveryDeviceListener;
+import com.jonscully.bluetooth.bluetooth.DeviceCache;
+import com.jonscully.bluetooth.bluetooth.DeviceRegistry;
+import com.jonscully.bluetooth.bluetooth.DiscoveryEngine;
+import com.jonscully.bluetooth.bluetooth.MacAddress;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final int REQUEST_ENABLE_BT = 0;
     private static final int REQUEST_DISCOVER_BT = 1;
+    private static final int REQUEST_LOCATION = 2;
+    private static final String TAG = "MainActivity";
+
+    // Resolve the adapter and create the controller off the main thread, so the first frame does
+    // not wait for them.
+    private static final boolean LAZY_BLUETOOTH_INIT = true;
 
+    private TextView mStatusBlueTv;
     private TextView mPairedTv;
     private ImageView mBlueIv;
     private BluetoothAdapter mBluetoothAdapter;
+    private DeviceCache mDeviceCache;
+    private BluetoothController mBluetoothController;
+    // Outlives this Activity, see DiscoveryEngine.
+    private DiscoveryEngine mDiscoveryEngine;
+    private DeviceListAdapter mDeviceAdapter;
+    private StartupTrace mStartupTrace;
+    // Creates the engine and reads the device cache off the main thread.
+    private final ExecutorService mBackgroundExecutor = Executors.newSingleThreadExecutor();
+    // Rows of the device list by packed address: paired devices first, then discovered ones.
+    private final Map<Long, DeviceListItem> mDevices = new LinkedHashMap<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mStartupTrace = new StartupTrace(TAG);
         setContentView(R.layout.activity_main);
 
-        TextView mStatusBlueTv = findViewById(R.id.statusBluetoothTv);
+        mStatusBlueTv = findViewById(R.id.statusBluetoothTv);
         mPairedTv     = findViewById(R.id.pairedTv);
         mBlueIv       = findViewById(R.id.bluetoothIv);
+        RecyclerView mDevicesRv = findViewById(R.id.devicesRv);
+        mStartupTrace.mark("contentView");
+
+        mDeviceAdapter = new DeviceListAdapter();
+        mDevicesRv.setLayoutManager(new LinearLayoutManager(this));
+        mDevicesRv.setHasFixedSize(true);
+        mDevicesRv.setAdapter(mDeviceAdapter);
+
+        // placeholder state until the adapter is ready: the controls stay disabled
+        mStatusBlueTv.setText(R.string.stBluetoothStarting);
+        setControlsEnabled(false);
+
+        // show the cached paired devices as soon as they are read, they are reconciled with
+        // the adapter once it is ready
+        loadDeviceCache();
+
+        mStatusBlueTv.post(new Runnable() {
+            @Override
+            public void run() {
+                mStartupTrace.mark("firstFrame");
+            }
+        });
+        initBluetooth();
+    }
+
+    // Gets the discovery engine, created with the adapter and the controller on a background
+    // thread with LAZY_BLUETOOTH_INIT the first time, then binds the UI to it on the main thread.
+    // After a rotation the engine already exists and the binding is immediate.
+    private void initBluetooth() {
+        Runnable load = new Runnable() {
+            @Override
+            public void run() {
+                final DiscoveryEngine engine = DiscoveryEngine.get(getApplicationContext());
+                final boolean enabled = engine.getAdapter() != null && engine.getAdapter().isEnabled();
+                mStartupTrace.mark("engineReady");
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        bindBluetooth(engine, enabled);
+                    }
+                });
+            }
+        };
+        if (LAZY_BLUETOOTH_INIT) {
+            mBackgroundExecutor.execute(load);
+        } else {
+            load.run();
+        }
+    }
+
+    private void bindBluetooth(DiscoveryEngine engine, boolean enabled) {
+        if (isDestroyed()) {
+            return;
+        }
+        mDiscoveryEngine = engine;
+        mBluetoothAdapter = engine.getAdapter();
+        mBluetoothController = engine.getController();
+
+        // check Bluetooth availability
+        if (mBluetoothAdapter == null){
+            mStatusBlueTv.setText(R.string.stBluetoothIsNotAvailable);
+            mStartupTrace.mark("bound");
+            return;
+        }
+        mStatusBlueTv.setText(R.string.stBluetoothIsAvailable);
+
         Button mOnBtn = findViewById(R.id.onBtn);
         Button mOffBtn = findViewById(R.id.offBtn);
         Button mDiscoverBtn = findViewById(R.id.discoverableBtn);
         Button mPairedBtn = findViewById(R.id.pairedBtn);
+        Button mFindBtn = findViewById(R.id.findBtn);
         CheckBox cbEnableBluetooth = findViewById(R.id.cbEnableBluetooth);
         CheckBox cbDiscoverableDevice = findViewById(R.id.cbDiscoverableDevice);
         CheckBox cbListPairedDevices = findViewById(R.id.cbListPairedDevices);
 
-        mBluetoothAdapter  = BluetoothAdapter.getDefaultAdapter();
-
-        // check Bluetooth availability
-        if (mBluetoothAdapter == null){
-            mStatusBlueTv.setText(R.string.stBluetoothIsNotAvailable);
-        }
-        else {
-            mStatusBlueTv.setText(R.string.stBluetoothIsAvailable);
+        // replace the cached paired devices with the adapter's
+        if (!mDevices.isEmpty() && enabled) {
+            showPairedDevices();
         }
 
         // set Bluetooth status icon
-        if (mBluetoothAdapter.isEnabled()){
+        if (enabled){
             mBlueIv.setImageResource(R.drawable.ic_action_on);
             cbEnableBluetooth.setChecked(true);
         }
@@ -78,7 +179,7 @@ public class MainActivity extends AppCompatActivity {
                 }
                 else {
                     if (mBluetoothAdapter.isEnabled()){
-                        mBluetoothAdapter.disable();
+                        mBluetoothController.turnOffBluetooth();
                         showToast("Turning Bluetooth off");
                         mBlueIv.setImageResource(R.drawable.ic_action_off);
                     }
@@ -116,50 +217,12 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            Log.d(TAG, "Incoming intent : " + action);
-            switch (action) {
-                case BluetoothDevice.ACTION_FOUND :
-                    // Discovery has found a device. Get the BluetoothDevice
-                    // object and its info from the Intent.
-                    BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                    Log.d(TAG, "Device discovered! " + BluetoothController.deviceToString(device));
-                    listener.onDeviceDiscovered(device);
-                    break;
-                case BluetoothAdapter.ACTION_DISCOVERY_FINISHED :
-                    // Discovery has ended.
-                    Log.d(TAG, "Discovery ended.");
-                    listener.onDeviceDiscoveryEnd();
-                    break;
-                case BluetoothAdapter.ACTION_STATE_CHANGED :
-                    // Discovery state changed.
-                    Log.d(TAG, "Bluetooth state changed.");
-                    listener.onBluetoothStatusChanged();
-                    break;
-                case BluetoothDevice.ACTION_BOND_STATE_CHANGED :
-                    // Pairing state has changed.
-                    Log.d(TAG, "Bluetooth bonding state changed.");
-                    listener.onDevicePairingEnded();
-                    break;
-                default :
-                    // Does nothing.
-                    break;
-            }
-        }
-
-
         cbListPairedDevices.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
             @Override
             public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
                 if (isChecked) {
                     if (mBluetoothAdapter.isEnabled()){
-                        mPairedTv.setText(R.string.stPairedDevices);
-                        Set<BluetoothDevice> devices = mBluetoothAdapter.getBondedDevices();
-                        for (BluetoothDevice device: devices){
-                            mPairedTv.append("\nDevice: " + device.getName()+ ", " + device);
-                        }
+                        showPairedDevices();
                     }
                     else {
                         showToast("Bluetooth is off");
@@ -167,6 +230,8 @@ public class MainActivity extends AppCompatActivity {
                 }
                 else {
                     mPairedTv.setText("");
+                    mDevices.clear();
+                    showDevices();
                 }
             }
         });
@@ -191,7 +256,7 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onClick(View v) {
                 if (mBluetoothAdapter.isEnabled()){
-                    mBluetoothAdapter.disable();
+                    mBluetoothController.turnOffBluetooth();
                     showToast("Turning Bluetooth off");
                     mBlueIv.setImageResource(R.drawable.ic_action_off);
                 }
@@ -218,11 +283,7 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onClick(View v) {
                 if (mBluetoothAdapter.isEnabled()){
-                    mPairedTv.setText(R.string.stPairedDevices);
-                    Set<BluetoothDevice> devices = mBluetoothAdapter.getBondedDevices();
-                    for (BluetoothDevice device: devices){
-                        mPairedTv.append("\nDevice: " + device.getName()+ ", " + device);
-                    }
+                    showPairedDevices();
                 }
                 else {
                     // Bluetooth is off
@@ -230,6 +291,44 @@ public class MainActivity extends AppCompatActivity {
                 }
             }
         });
+
+        // Find Devices button
+        mFindBtn.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (mBluetoothAdapter.isEnabled()){
+                    requestLocationPermission();
+                    mBluetoothController.startDiscovery();
+                }
+                else {
+                    showToast("Bluetooth is off");
+                }
+            }
+        });
+
+        setControlsEnabled(true);
+        // Replays the devices found before this Activity was created.
+        mDiscoveryEngine.attach(mDiscoveryListener);
+        mStartupTrace.mark("bound");
+    }
+
+    // Discovery reports no device without it. The engine has no Activity to ask from, so the
+    // request is made here.
+    private void requestLocationPermission() {
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION)
+                != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this,
+                    new String[]{Manifest.permission.ACCESS_COARSE_LOCATION},
+                    REQUEST_LOCATION);
+        }
+    }
+
+    private void setControlsEnabled(boolean enabled) {
+        int[] controls = {R.id.onBtn, R.id.offBtn, R.id.discoverableBtn, R.id.pairedBtn, R.id.findBtn,
+                R.id.cbEnableBluetooth, R.id.cbDiscoverableDevice, R.id.cbListPairedDevices};
+        for (int control : controls) {
+            findViewById(control).setEnabled(enabled);
+        }
     }
 
     @Override
@@ -258,6 +357,219 @@ public class MainActivity extends AppCompatActivity {
         super.onActivityResult(requestCode, resultCode, data);
     }
 
+    @Override
+    protected void onDestroy() {
+        // Discovery and its results stay with the engine for the next Activity.
+        if (mDiscoveryEngine != null) {
+            mDiscoveryEngine.detach(mDiscoveryListener);
+            mDiscoveryEngine = null;
+        }
+        mBluetoothController = null;
+        // The cache and its writes belong to the engine.
+        mBackgroundExecutor.shutdown();
+        mDeviceCache = null;
+        super.onDestroy();
+    }
+
+    // Opens the cache, shared with the engine's controller which appends the devices it
+    // discovers, and reads it on the background executor: opening checks every record and
+    // load() flushes. Queued before the engine is created, so the cached list usually shows
+    // before the adapter is bound.
+    private void loadDeviceCache() {
+        mBackgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DeviceCache deviceCache = DiscoveryEngine.getDeviceCache(getApplicationContext());
+                List<DeviceCache.Entry> entries = null;
+                if (deviceCache != null) {
+                    try {
+                        entries = deviceCache.load();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to read the device cache.", e);
+                    }
+                }
+                final List<DeviceCache.Entry> cachedEntries = entries;
+                mStartupTrace.mark("cachedDevices");
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onDeviceCacheLoaded(deviceCache, cachedEntries);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onDeviceCacheLoaded(DeviceCache deviceCache, List<DeviceCache.Entry> entries) {
+        if (isDestroyed()) {
+            return;
+        }
+        mDeviceCache = deviceCache;
+        if (mBluetoothController == null) {
+            if (entries != null) {
+                showCachedPairedDevices(entries);
+            }
+        } else if (mBluetoothAdapter.isEnabled()) {
+            // Bound first, the paired list is already the adapter's; reconciles the cache now.
+            showPairedDevices();
+        }
+    }
+
+    // Fills the paired list from the device cache, returns false if nothing was cached.
+    private boolean showCachedPairedDevices(List<DeviceCache.Entry> entries) {
+        boolean shown = false;
+        for (DeviceCache.Entry entry : entries) {
+            if (entry.bondState != BluetoothDevice.BOND_BONDED) {
+                continue;
+            }
+            mDevices.put(entry.address, new DeviceListItem(entry.address, entry.name, true, entry.rssi));
+            shown = true;
+        }
+        if (shown) {
+            mPairedTv.setText(R.string.stPairedDevicesCached);
+            showDevices();
+        }
+        return shown;
+    }
+
+    private void showPairedDevices() {
+        if (mBluetoothController == null) {
+            return;
+        }
+        mPairedTv.setText(R.string.stPairedDevices);
+        // The controller's bonded index, not another IPC into the adapter.
+        List<BluetoothDevice> devices = mBluetoothController.getBondedDevices();
+        Iterator<DeviceListItem> iterator = mDevices.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().bonded) {
+                iterator.remove();
+            }
+        }
+        for (BluetoothDevice device: devices){
+            long address = MacAddress.toLong(device.getAddress());
+            mDevices.put(address, new DeviceListItem(address, getDeviceName(device), true));
+        }
+        showDevices();
+        reconcileDeviceCacheInBackground(devices);
+    }
+
+    // Adds or refreshes a discovered device, keeping its position in the list.
+    private void putDiscoveredDevice(BluetoothDevice device) {
+        long address = MacAddress.toLong(device.getAddress());
+        // The receiver is registered before the UI is bound, see initBluetooth().
+        short rssi = mBluetoothController == null ? DeviceRegistry.RSSI_UNKNOWN
+                : mBluetoothController.getDeviceRegistry().getRssi(address);
+        boolean bonded = getBondState(device) == BluetoothDevice.BOND_BONDED;
+        mDevices.put(address, new DeviceListItem(address, getDeviceName(device), bonded, rssi));
+    }
+
+    // Name and bond state through the controller's metadata cache once it exists, saving an IPC
+    // per call.
+    private String getDeviceName(BluetoothDevice device) {
+        return mBluetoothController == null ? device.getName()
+                : mBluetoothController.getMetadataCache().getName(device);
+    }
+
+    private int getBondState(BluetoothDevice device) {
+        return mBluetoothController == null ? device.getBondState()
+                : mBluetoothController.getMetadataCache().getBondState(device);
+    }
+
+    private void showDevices() {
+        mDeviceAdapter.show(new ArrayList<>(mDevices.values()));
+    }
+
+    // Runs on the engine's cache thread, behind the writes of the discovered devices.
+    private void reconcileDeviceCacheInBackground(final List<BluetoothDevice> bondedDevices) {
+        final DeviceCache deviceCache = mDeviceCache;
+        if (deviceCache == null || mDiscoveryEngine == null) {
+            return;
+        }
+        try {
+            mDiscoveryEngine.getDeviceCacheExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    reconcileDeviceCache(deviceCache, bondedDevices);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Discovery engine closed, device cache not reconciled.");
+        }
+    }
+
+    // Appends records for the devices whose bond state differs from what the cache remembers.
+    // Reads and writes the file, keep it off the main thread.
+    private void reconcileDeviceCache(DeviceCache deviceCache, List<BluetoothDevice> bondedDevices) {
+        try {
+            Map<Long, DeviceCache.Entry> cached = new HashMap<>();
+            for (DeviceCache.Entry entry : deviceCache.load()) {
+                cached.put(entry.address, entry);
+            }
+            long now = System.currentTimeMillis();
+            for (BluetoothDevice device : bondedDevices) {
+                long address = MacAddress.toLong(device.getAddress());
+                DeviceCache.Entry entry = cached.remove(address);
+                if (entry == null || entry.bondState != BluetoothDevice.BOND_BONDED) {
+                    deviceCache.append(address, now, DeviceRegistry.RSSI_UNKNOWN, BluetoothDevice.BOND_BONDED, getDeviceName(device));
+                }
+            }
+            for (DeviceCache.Entry entry : cached.values()) {
+                if (entry.bondState == BluetoothDevice.BOND_BONDED) {
+                    deviceCache.append(entry.address, now, entry.rssi, BluetoothDevice.BOND_NONE, null);
+                }
+            }
+            deviceCache.flush();
+            deviceCache.compactIfNeeded();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to update the device cache.", e);
+        }
+    }
+
+    private final BluetoothDiscoveryDeviceListener mDiscoveryListener = new BluetoothDiscoveryDeviceListener() {
+        @Override
+        public void onDeviceDiscovered(BluetoothDevice device) {
+            putDiscoveredDevice(device);
+            showDevices();
+        }
+
+        @Override
+        public void onDevicesDiscovered(List<BluetoothDevice> devices) {
+            for (BluetoothDevice device : devices) {
+                putDiscoveredDevice(device);
+            }
+            showDevices();
+        }
+
+        @Override
+        public void onDeviceDiscoveryStarted() {
+            mPairedTv.setText(R.string.stDiscoveringDevices);
+        }
+
+        @Override
+        public void setBluetoothController(BluetoothController bluetooth) {
+        }
+
+        @Override
+        public void onDeviceDiscoveryEnd() {
+            mPairedTv.setText(R.string.stDevices);
+        }
+
+        @Override
+        public void onBluetoothStatusChanged() {
+        }
+
+        @Override
+        public void onBluetoothTurningOn() {
+        }
+
+        @Override
+        public void onDevicePairingEnded() {
+            if (mBluetoothAdapter != null && mBluetoothAdapter.isEnabled()) {
+                showPairedDevices();
+            }
+        }
+    };
+
     // show message
     private void showToast(String msg) {
         Toast.makeText(this, msg, Toast.LENGTH_LONG).show();
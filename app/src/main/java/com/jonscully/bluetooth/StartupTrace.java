@@ -0,0 +1,38 @@
+package com.jonscully.bluetooth;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Named startup phases with the time they completed at, in milliseconds since the trace was
+// created. Each mark is logged, so cold-start time can be followed with logcat; on API 24+ the
+// time since process start is logged as well. Marks may come from any thread.
+public class StartupTrace {
+    private final String tag;
+    private final long startedAt = SystemClock.elapsedRealtime();
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+
+    public StartupTrace(String tag) {
+        this.tag = tag;
+    }
+
+    public synchronized void mark(String phase) {
+        long now = SystemClock.elapsedRealtime();
+        phases.put(phase, now - startedAt);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            Log.d(tag, "Startup phase " + phase + " at " + (now - startedAt) + " ms ("
+                    + (now - Process.getStartElapsedRealtime()) + " ms since process start).");
+        } else {
+            Log.d(tag, "Startup phase " + phase + " at " + (now - startedAt) + " ms.");
+        }
+    }
+
+    // Phases in the order they were first marked.
+    public synchronized Map<String, Long> getPhases() {
+        return new LinkedHashMap<>(phases);
+    }
+}
@@ -0,0 +1,403 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+// Single owner of the adapter state, driven by the adapter events it receives as a sink.
+// turnOn(), discover() and turnOff() queue commands that run in order, each one as soon as its
+// precondition holds: a discovery queued behind a turn-on starts on the STATE_ON event itself,
+// and commands issued while the adapter is turning on wait instead of failing. Commands are
+// pipelined, the next one is considered as soon as the previous one has started.
+//
+// Queued duplicates are coalesced, a turn-off drops the turn-ons and discoveries queued before
+// it, and a discovery that reaches the head while the adapter is off with no turn-on in flight
+// fails instead of waiting forever.
+//
+// Actions and Listener calls run outside the lock, one at a time and in order: the thread that
+// finds the machine idle runs them, a thread arriving meanwhile only records its change and
+// leaves the work to it.
+public class AdapterStateMachine implements BluetoothEventSink {
+    public static final int STATE_OFF = 0;
+    public static final int STATE_TURNING_ON = 1;
+    public static final int STATE_ON = 2;
+    public static final int STATE_DISCOVERING = 3;
+    public static final int STATE_BONDING = 4;
+    public static final int STATE_TURNING_OFF = 5;
+
+    public static final int COMMAND_TURN_ON = 1;
+    public static final int COMMAND_DISCOVER = 2;
+    public static final int COMMAND_TURN_OFF = 3;
+
+    private static final String TAG = "AdapterStateMachine";
+    // Outcomes of a command considered at the head of the queue.
+    private static final int DONE = 0;
+    private static final int WAIT = 1;
+    private static final int FAILED = 2;
+    private static final int RUN = 3;
+    private static final int NONE = 0;
+    private final Actions actions;
+    private final Listener listener;
+    private final ArrayDeque<Integer> commands = new ArrayDeque<>();
+    private final Set<Long> bondingAddresses = new HashSet<>();
+    // Listener calls waiting to be delivered: {oldState, newState} or {command}.
+    private final ArrayDeque<int[]> notifications = new ArrayDeque<>();
+    private boolean draining;
+    // Adapter level state, one of BluetoothAdapter.STATE_*.
+    private int adapterState;
+    private boolean discovering;
+    private boolean turnOnInFlight;
+    private int state;
+    private long executedCount;
+    private long coalescedCount;
+    private long droppedCount;
+
+    // What the commands do; called without the machine locked, one at a time.
+    public interface Actions {
+        boolean enable();
+        boolean disable();
+        boolean startDiscovery();
+    }
+
+    public interface Listener {
+        void onStateChanged(int oldState, int newState);
+        void onCommandFailed(int command);
+    }
+
+    public AdapterStateMachine(Actions actions, Listener listener, int adapterState, boolean discovering) {
+        this.actions = actions;
+        this.listener = listener;
+        this.adapterState = adapterState;
+        this.discovering = discovering && adapterState == BluetoothAdapter.STATE_ON;
+        this.state = computeState();
+    }
+
+    public void turnOn() {
+        synchronized (this) {
+            if (commands.isEmpty() ? adapterState == BluetoothAdapter.STATE_ON
+                    || adapterState == BluetoothAdapter.STATE_TURNING_ON || turnOnInFlight
+                    : commands.peekLast() == COMMAND_TURN_ON) {
+                coalescedCount++;
+                return;
+            }
+            commands.addLast(COMMAND_TURN_ON);
+        }
+        drain();
+    }
+
+    // A discovery already queued, or already running with nothing queued, absorbs the request.
+    public void discover() {
+        synchronized (this) {
+            if (commands.isEmpty() ? state == STATE_DISCOVERING : containsAfterLastTurnOff(COMMAND_DISCOVER)) {
+                coalescedCount++;
+                return;
+            }
+            commands.addLast(COMMAND_DISCOVER);
+        }
+        drain();
+    }
+
+    public void turnOff() {
+        synchronized (this) {
+            Iterator<Integer> iterator = commands.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() != COMMAND_TURN_OFF) {
+                    iterator.remove();
+                    droppedCount++;
+                }
+            }
+            if (!commands.isEmpty()) {
+                coalescedCount++;
+                return;
+            }
+            commands.addLast(COMMAND_TURN_OFF);
+        }
+        drain();
+    }
+
+    public synchronized int getState() {
+        return state;
+    }
+
+    public synchronized int getPendingCount() {
+        return commands.size();
+    }
+
+    public synchronized long getExecutedCount() {
+        return executedCount;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    // Commands cancelled by a turn-off or failed because their precondition could not be met.
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public static String stateName(int state) {
+        switch (state) {
+            case STATE_OFF: return "OFF";
+            case STATE_TURNING_ON: return "TURNING_ON";
+            case STATE_ON: return "ON";
+            case STATE_DISCOVERING: return "DISCOVERING";
+            case STATE_BONDING: return "BONDING";
+            case STATE_TURNING_OFF: return "TURNING_OFF";
+            default: return "UNKNOWN";
+        }
+    }
+
+    @Override
+    public void onDeviceFound(long timestamp, long address, String name, short rssi, int deviceClass) {
+    }
+
+    @Override
+    public void onNameChanged(long timestamp, long address, String name) {
+    }
+
+    @Override
+    public void onClassChanged(long timestamp, long address, int deviceClass) {
+    }
+
+    @Override
+    public void onDiscoveryStarted(long timestamp) {
+        synchronized (this) {
+            discovering = true;
+        }
+        drain();
+    }
+
+    @Override
+    public void onDiscoveryFinished(long timestamp) {
+        synchronized (this) {
+            discovering = false;
+        }
+        drain();
+    }
+
+    @Override
+    public void onAdapterStateChanged(long timestamp, int newAdapterState) {
+        synchronized (this) {
+            adapterState = newAdapterState;
+            if (newAdapterState != BluetoothAdapter.STATE_TURNING_ON) {
+                turnOnInFlight = false;
+            }
+            if (newAdapterState != BluetoothAdapter.STATE_ON) {
+                discovering = false;
+                bondingAddresses.clear();
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void onBondStateChanged(long timestamp, long address, int bondState) {
+        synchronized (this) {
+            if (bondState == BluetoothDevice.BOND_BONDING) {
+                bondingAddresses.add(address);
+            } else {
+                bondingAddresses.remove(address);
+            }
+        }
+        drain();
+    }
+
+    private boolean containsAfterLastTurnOff(int command) {
+        Iterator<Integer> iterator = commands.descendingIterator();
+        while (iterator.hasNext()) {
+            int queued = iterator.next();
+            if (queued == command) {
+                return true;
+            }
+            if (queued == COMMAND_TURN_OFF) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // Runs the head commands whose precondition holds and delivers the listener calls, all
+    // outside the lock. Returns at once when another thread is already draining.
+    private void drain() {
+        synchronized (this) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        boolean finished = false;
+        try {
+            while (true) {
+                int[] notification;
+                int command = NONE;
+                synchronized (this) {
+                    notification = notifications.pollFirst();
+                    if (notification == null) {
+                        command = nextCommand();
+                        notification = notifications.pollFirst();
+                        if (command == NONE && notification == null) {
+                            draining = false;
+                            finished = true;
+                            return;
+                        }
+                    }
+                }
+                if (notification != null) {
+                    deliver(notification);
+                }
+                if (command != NONE) {
+                    boolean succeeded = false;
+                    try {
+                        succeeded = run(command);
+                    } finally {
+                        synchronized (this) {
+                            finish(command, succeeded);
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (!finished) {
+                synchronized (this) {
+                    draining = false;
+                }
+            }
+        }
+    }
+
+    // Called locked. Drops the head commands that need no action, and returns the one to run
+    // next, already out of the queue, or NONE.
+    private int nextCommand() {
+        int next = NONE;
+        while (!commands.isEmpty()) {
+            int command = commands.peekFirst();
+            int outcome = check(command);
+            if (outcome == WAIT) {
+                break;
+            }
+            commands.pollFirst();
+            if (outcome == FAILED) {
+                fail(command);
+            } else if (outcome == RUN) {
+                executedCount++;
+                if (command == COMMAND_TURN_ON) {
+                    // Until the action returns, later commands must see the adapter turning on.
+                    turnOnInFlight = true;
+                }
+                next = command;
+                break;
+            }
+        }
+        publishState();
+        return next;
+    }
+
+    private int check(int command) {
+        switch (command) {
+            case COMMAND_TURN_ON:
+                if (adapterState == BluetoothAdapter.STATE_TURNING_OFF) {
+                    return WAIT;
+                }
+                if (adapterState != BluetoothAdapter.STATE_OFF || turnOnInFlight) {
+                    coalescedCount++;
+                    return DONE;
+                }
+                return RUN;
+            case COMMAND_DISCOVER:
+                if (adapterState == BluetoothAdapter.STATE_ON) {
+                    // Inquiry slows bonding down, waits for it to end.
+                    return bondingAddresses.isEmpty() ? RUN : WAIT;
+                }
+                return adapterState == BluetoothAdapter.STATE_TURNING_ON || turnOnInFlight ? WAIT : FAILED;
+            case COMMAND_TURN_OFF:
+                if (adapterState == BluetoothAdapter.STATE_TURNING_ON || turnOnInFlight) {
+                    return WAIT;
+                }
+                if (adapterState != BluetoothAdapter.STATE_ON) {
+                    coalescedCount++;
+                    return DONE;
+                }
+                return RUN;
+            default:
+                return FAILED;
+        }
+    }
+
+    private boolean run(int command) {
+        switch (command) {
+            case COMMAND_TURN_ON:
+                return actions.enable();
+            case COMMAND_DISCOVER:
+                return actions.startDiscovery();
+            case COMMAND_TURN_OFF:
+                return actions.disable();
+            default:
+                return false;
+        }
+    }
+
+    // Called locked with the result of run(). Broadcasts may have arrived while the action ran,
+    // the state is only moved forward from where the action found it.
+    private void finish(int command, boolean succeeded) {
+        if (!succeeded) {
+            if (command == COMMAND_TURN_ON) {
+                turnOnInFlight = false;
+            }
+            fail(command);
+        } else if (command == COMMAND_TURN_ON && adapterState == BluetoothAdapter.STATE_OFF && turnOnInFlight) {
+            // The broadcast follows.
+            adapterState = BluetoothAdapter.STATE_TURNING_ON;
+        } else if (command == COMMAND_TURN_OFF && adapterState == BluetoothAdapter.STATE_ON) {
+            adapterState = BluetoothAdapter.STATE_TURNING_OFF;
+            discovering = false;
+            bondingAddresses.clear();
+        }
+        publishState();
+    }
+
+    private void fail(int command) {
+        droppedCount++;
+        Log.d(TAG, "Command " + command + " failed in state " + stateName(state) + ".");
+        notifications.addLast(new int[]{command});
+    }
+
+    private void publishState() {
+        int newState = computeState();
+        if (newState != state) {
+            int oldState = state;
+            state = newState;
+            Log.d(TAG, stateName(oldState) + " -> " + stateName(newState));
+            notifications.addLast(new int[]{oldState, newState});
+        }
+    }
+
+    private void deliver(int[] notification) {
+        if (notification.length == 1) {
+            listener.onCommandFailed(notification[0]);
+        } else {
+            listener.onStateChanged(notification[0], notification[1]);
+        }
+    }
+
+    private int computeState() {
+        switch (adapterState) {
+            case BluetoothAdapter.STATE_ON:
+                if (!bondingAddresses.isEmpty()) {
+                    return STATE_BONDING;
+                }
+                return discovering ? STATE_DISCOVERING : STATE_ON;
+            case BluetoothAdapter.STATE_TURNING_ON:
+                return STATE_TURNING_ON;
+            case BluetoothAdapter.STATE_TURNING_OFF:
+                return STATE_TURNING_OFF;
+            default:
+                return STATE_OFF;
+        }
+    }
+}
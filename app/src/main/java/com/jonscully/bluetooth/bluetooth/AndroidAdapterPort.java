@@ -0,0 +1,65 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+
+import java.util.Set;
+
+public class AndroidAdapterPort implements BluetoothAdapterPort {
+    private final BluetoothAdapter adapter;
+
+    public AndroidAdapterPort(BluetoothAdapter adapter) {
+        this.adapter = adapter;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return adapter.isEnabled();
+    }
+
+    @Override
+    public boolean enable() {
+        return adapter.enable();
+    }
+
+    @Override
+    public boolean disable() {
+        return adapter.disable();
+    }
+
+    @Override
+    public int getState() {
+        return adapter.getState();
+    }
+
+    @Override
+    public boolean isDiscovering() {
+        return adapter.isDiscovering();
+    }
+
+    @Override
+    public boolean startDiscovery() {
+        return adapter.startDiscovery();
+    }
+
+    @Override
+    public boolean cancelDiscovery() {
+        return adapter.cancelDiscovery();
+    }
+
+    @Override
+    public Set<BluetoothDevice> getBondedDevices() {
+        return adapter.getBondedDevices();
+    }
+
+    @Override
+    public BluetoothLeScanner getBluetoothLeScanner() {
+        return adapter.getBluetoothLeScanner();
+    }
+
+    @Override
+    public boolean isOffloadedScanBatchingSupported() {
+        return adapter.isOffloadedScanBatchingSupported();
+    }
+}
@@ -0,0 +1,21 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+
+import java.util.Set;
+
+// The part of BluetoothAdapter the controller relies on. AndroidAdapterPort forwards to the real
+// adapter, SimulatedBluetoothStack replaces it off-device.
+public interface BluetoothAdapterPort {
+    boolean isEnabled();
+    boolean enable();
+    boolean disable();
+    int getState();
+    boolean isDiscovering();
+    boolean startDiscovery();
+    boolean cancelDiscovery();
+    Set<BluetoothDevice> getBondedDevices();
+    BluetoothLeScanner getBluetoothLeScanner();
+    boolean isOffloadedScanBatchingSupported();
+}
@@ -4,34 +4,187 @@ import android.Manifest;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanFilter;
+import android.content.Context;
 import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
+import com.jonscully.bluetooth.bluetooth.gatt.GattClient;
+import com.jonscully.bluetooth.bluetooth.stream.SightingPublisher;
+
 import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 public class BluetoothController implements Closeable {
     private static final String TAG = "BluetoothManager";
-    private final BluetoothAdapter bluetooth;
+    private final BluetoothAdapterPort bluetooth;
     private final BroadcastReceiverDelegator broadcastReceiverDelegator;
-    private final Activity context;
-    private boolean bluetoothDiscoveryScheduled;
-    private BluetoothDevice boundingDevice;
+    private final DeviceRegistry deviceRegistry = new DeviceRegistry();
+    private final DeviceEventPipeline eventPipeline = new DeviceEventPipeline(deviceRegistry);
+    private final BluetoothMetrics metrics = new BluetoothMetrics();
+    private final BluetoothEventBus eventBus = new BluetoothEventBus();
+    private final RssiEstimator rssiEstimator = new RssiEstimator();
+    private final DeviceMetadataCache metadataCache = new DeviceMetadataCache();
+    private final DeviceIndex deviceIndex = new DeviceIndex();
+    private final BondedDeviceIndex bondedDeviceIndex;
+    private final DiscoveryScheduler discoveryScheduler;
+    private final PairingEngine pairingEngine;
+    private final AdapterStateMachine stateMachine;
+    // An Activity, or the application context when owned by DiscoveryEngine.
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Last device passed to pair(), kept for the polling getters below.
+    private volatile BluetoothDevice boundingDevice;
+    // Read by the receiver thread, see BroadcastReceiverDelegator.isLeScanning().
+    private volatile LeScanController leScanController;
+    private volatile boolean bondedDevicesIndexed;
+    private EventTraceRecorder traceRecorder;
+    private BluetoothEventBus.Subscription traceSubscription;
+
+    public BluetoothController(Context context, BluetoothAdapter adapter, BluetoothDiscoveryDeviceListener listener) {
+        this(context, adapter, listener, DiscoveryCoalescer.DEFAULT_WINDOW_MILLIS);
+    }
+
+    public BluetoothController(Context context, BluetoothAdapter adapter, BluetoothDiscoveryDeviceListener listener, long coalesceWindowMillis) {
+        this(context, adapter, listener, coalesceWindowMillis, false, null);
+    }
+
+    // With receiveInBackground the broadcasts are parsed on a dedicated HandlerThread, and the
+    // listener is called on callbackExecutor (or on that thread when the executor is null).
+    // Listeners then post their UI updates with MainThreadExecutor.
+    public BluetoothController(Context context, BluetoothAdapter adapter, BluetoothDiscoveryDeviceListener listener,
+                               long coalesceWindowMillis, boolean receiveInBackground, Executor callbackExecutor) {
+        this(context, new AndroidAdapterPort(adapter), listener, coalesceWindowMillis, receiveInBackground, callbackExecutor);
+    }
 
-    public BluetoothController(Activity context,BluetoothAdapter adapter, BluetoothDiscoveryDeviceListener listener) {
+    public BluetoothController(Context context, BluetoothAdapterPort adapter, BluetoothDiscoveryDeviceListener listener,
+                               long coalesceWindowMillis, boolean receiveInBackground, Executor callbackExecutor) {
         this.context = context;
         this.bluetooth = adapter;
-        this.broadcastReceiverDelegator = new BroadcastReceiverDelegator(context, listener, this);
+        this.bondedDeviceIndex = new BondedDeviceIndex(adapter);
+        // Sightings reach the metrics from the receiver, which knows classic ones from LE results.
+        this.eventBus.subscribe(metrics, BluetoothEventBus.EVENT_DISCOVERY_FINISHED
+                | BluetoothEventBus.EVENT_ADAPTER_STATE_CHANGED | BluetoothEventBus.EVENT_BOND_STATE_CHANGED, null);
+        this.eventBus.subscribe(rssiEstimator, BluetoothEventBus.EVENT_DEVICE_FOUND, null);
+        this.eventBus.subscribe(deviceIndex, BluetoothEventBus.EVENT_DEVICE_FOUND | BluetoothEventBus.EVENT_BOND_STATE_CHANGED
+                | BluetoothEventBus.EVENT_NAME_CHANGED | BluetoothEventBus.EVENT_CLASS_CHANGED, null);
+        this.discoveryScheduler = new DiscoveryScheduler(new DiscoveryScheduler.Radio() {
+            @Override
+            public boolean isDiscovering() {
+                return bluetooth.isDiscovering();
+            }
+
+            @Override
+            public boolean startDiscovery() {
+                return launchDiscovery();
+            }
+
+            @Override
+            public void requestCycle() {
+                stateMachine.discover();
+            }
+        }, mainHandler);
+        this.pairingEngine = new PairingEngine(new PairingEngine.Bonder() {
+            @Override
+            public int getBondState(BluetoothDevice device) {
+                return metadataCache.getBondState(device);
+            }
+
+            @Override
+            public boolean createBond(BluetoothDevice device) {
+                return BluetoothController.this.createBond(device);
+            }
+
+            @Override
+            public void onAttemptAbandoned(BluetoothDevice device) {
+                metrics.onBondAbandoned(MacAddress.toLong(device.getAddress()));
+            }
+        }, mainHandler, PairingEngine.DEFAULT_QUEUE_CAPACITY);
+        this.stateMachine = new AdapterStateMachine(new AdapterStateMachine.Actions() {
+            @Override
+            public boolean enable() {
+                Log.d(TAG, "Enabling Bluetooth.");
+                broadcastReceiverDelegator.onBluetoothTurningOn();
+                metrics.onTurnOnRequested(SystemClock.elapsedRealtime());
+                return bluetooth.enable();
+            }
+
+            @Override
+            public boolean disable() {
+                Log.d(TAG, "Disabling Bluetooth.");
+                return bluetooth.disable();
+            }
+
+            @Override
+            public boolean startDiscovery() {
+                discoveryScheduler.requestDiscovery();
+                return true;
+            }
+        }, new AdapterStateMachine.Listener() {
+            @Override
+            public void onStateChanged(int oldState, int newState) {
+                if (newState == AdapterStateMachine.STATE_OFF || newState == AdapterStateMachine.STATE_TURNING_OFF) {
+                    discoveryScheduler.onAdapterOff();
+                }
+                // Bonds wait in the queue until the adapter can take them.
+                pairingEngine.setPaused(newState == AdapterStateMachine.STATE_OFF
+                        || newState == AdapterStateMachine.STATE_TURNING_ON
+                        || newState == AdapterStateMachine.STATE_TURNING_OFF);
+            }
+
+            @Override
+            public void onCommandFailed(int command) {
+                if (command == AdapterStateMachine.COMMAND_DISCOVER) {
+                    discoveryScheduler.onRequestFailed();
+                }
+                if (command == AdapterStateMachine.COMMAND_TURN_ON || command == AdapterStateMachine.COMMAND_DISCOVER) {
+                    Log.d(TAG, "Error while turning Bluetooth on.");
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(BluetoothController.this.context, "Error while turning Bluetooth on.",
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    });
+                }
+            }
+        }, adapter.getState(), adapter.isDiscovering());
+        this.pairingEngine.setPaused(!adapter.isEnabled());
+        this.eventBus.subscribe(stateMachine, BluetoothEventBus.EVENT_DISCOVERY_STARTED
+                | BluetoothEventBus.EVENT_DISCOVERY_FINISHED | BluetoothEventBus.EVENT_ADAPTER_STATE_CHANGED
+                | BluetoothEventBus.EVENT_BOND_STATE_CHANGED, null);
+        this.broadcastReceiverDelegator = new BroadcastReceiverDelegator(context, listener, this,
+                coalesceWindowMillis, receiveInBackground, callbackExecutor);
     }
 
     public boolean isBluetoothEnabled() {
         return bluetooth.isEnabled();
     }
 
+    // Runs a discovery cycle. A request made while a cycle is already running joins that cycle
+    // instead of cancelling and restarting it, one made while Bluetooth is turning on starts as
+    // soon as it is on.
     public void startDiscovery() {
+        stateMachine.discover();
+    }
+
+    // Keeps discovering with duty-cycled scans, see DiscoveryScheduler.startPeriodic.
+    public void startPeriodicDiscovery(long intervalMillis) {
+        discoveryScheduler.startPeriodic(intervalMillis, DiscoveryScheduler.DEFAULT_MAX_INTERVAL_MILLIS);
+    }
+
+    private boolean launchDiscovery() {
         broadcastReceiverDelegator.onDeviceDiscoveryStarted();
 
         // This line of code is very important. In Android >= 6.0 you have to ask for the runtime
@@ -39,63 +192,147 @@ public class BluetoothController implements Closeable {
         // this, the discovery won't find any device.
         if (ContextCompat.checkSelfPermission(context, Manifest.permission.ACCESS_COARSE_LOCATION)
                 != PackageManager.PERMISSION_GRANTED) {
-            ActivityCompat.requestPermissions(context,
-                    new String[]{Manifest.permission.ACCESS_COARSE_LOCATION},
-                    1);
-        }
-
-        // If another discovery is in progress, cancels it before starting the new one.
-        if (bluetooth.isDiscovering()) {
-            bluetooth.cancelDiscovery();
+            if (context instanceof Activity) {
+                ActivityCompat.requestPermissions((Activity) context,
+                        new String[]{Manifest.permission.ACCESS_COARSE_LOCATION},
+                        1);
+            } else {
+                // Without an Activity the permission has to be asked for by the attached one.
+                Log.d(TAG, "Location permission missing, discovery will not report devices.");
+            }
         }
 
         // Tries to start the discovery. If the discovery returns false, this means that the
         // bluetooth has not started yet.
         Log.d(TAG, "Bluetooth starting discovery.");
+        metrics.onDiscoveryRequested(SystemClock.elapsedRealtime());
         if (!bluetooth.startDiscovery()) {
-            Toast.makeText(context, "Error while starting device discovery!", Toast.LENGTH_SHORT)
-                    .show();
+            // Called from the state machine on whichever thread drives it.
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(context, "Error while starting device discovery!", Toast.LENGTH_SHORT)
+                            .show();
+                }
+            });
             Log.d(TAG, "StartDiscovery returned false. Maybe Bluetooth isn't on?");
 
             // Ends the discovery.
             broadcastReceiverDelegator.onDeviceDiscoveryEnd();
+            return false;
+        }
+        return true;
+    }
+
+    // Starts a BLE scan whose results take the same path as ACTION_FOUND: coalesced for the
+    // listener, published on the event bus and recorded by the pipeline. scanMode is one of the
+    // ScanSettings.SCAN_MODE_* constants and a positive reportDelayMillis asks the controller to
+    // batch results in hardware. Returns false if Bluetooth is off.
+    public boolean startLeScan(int scanMode, long reportDelayMillis, List<ScanFilter> filters) {
+        if (leScanController == null) {
+            BluetoothLeScanner scanner = bluetooth.getBluetoothLeScanner();
+            if (scanner == null) {
+                Log.d(TAG, "No LE scanner available. Maybe Bluetooth isn't on?");
+                return false;
+            }
+            leScanController = new LeScanController(LeScanController.wrap(scanner), broadcastReceiverDelegator);
+        }
+        if (reportDelayMillis > 0 && !bluetooth.isOffloadedScanBatchingSupported()) {
+            Log.d(TAG, "Hardware scan batching not supported, reporting results immediately.");
+            reportDelayMillis = 0;
         }
+        leScanController.start(scanMode, reportDelayMillis, filters);
+        return true;
+    }
+
+    public void stopLeScan() {
+        if (leScanController != null) {
+            leScanController.stop();
+        }
+    }
+
+    public LeScanController getLeScanController() {
+        return leScanController;
     }
 
     public void turnOnBluetooth() {
-        Log.d(TAG, "Enabling Bluetooth.");
-        broadcastReceiverDelegator.onBluetoothTurningOn();
-        bluetooth.enable();
+        stateMachine.turnOn();
+    }
+
+    // Drops the turn-on and discovery requests still waiting, then turns Bluetooth off.
+    public void turnOffBluetooth() {
+        stateMachine.turnOff();
     }
 
-    public boolean pair(BluetoothDevice device) {
+    // Queues a bond with the device. The future completes from ACTION_BOND_STATE_CHANGED, see
+    // PairingEngine for concurrency, timeouts and retries.
+    public BondFuture pair(BluetoothDevice device) {
+        this.boundingDevice = device;
+        return pairingEngine.pair(device);
+    }
+
+    private boolean createBond(BluetoothDevice device) {
         // Stops the discovery and then creates the pairing.
         if (bluetooth.isDiscovering()) {
             Log.d(TAG, "Bluetooth cancelling discovery.");
             bluetooth.cancelDiscovery();
         }
-        Log.d(TAG, "Bluetooth bonding with device: " + deviceToString(device));
+        Log.d(TAG, "Bluetooth bonding with device: " + metadataCache.describe(device));
+        long requestedAt = SystemClock.elapsedRealtime();
         boolean outcome = device.createBond();
         Log.d(TAG, "Bounding outcome : " + outcome);
-
-        // If the outcome is true, we are bounding with this device.
-        if (outcome == true) {
-            this.boundingDevice = device;
+        if (outcome) {
+            metrics.onBondRequested(requestedAt, MacAddress.toLong(device.getAddress()));
         }
         return outcome;
     }
 
+    // Opens a GATT connection to a BLE device, usually once pair() has completed. The caller
+    // closes the client when done.
+    public GattClient connectGatt(BluetoothDevice device) {
+        if (bluetooth.isDiscovering()) {
+            // Discovery slows the connection down considerably.
+            bluetooth.cancelDiscovery();
+        }
+        Log.d(TAG, "Connecting GATT to " + metadataCache.describe(device));
+        return GattClient.connect(context, device, mainHandler);
+    }
+
     public boolean isAlreadyPaired(BluetoothDevice device) {
-        return bluetooth.getBondedDevices().contains(device);
+        return bondedDeviceIndex.contains(device.getAddress());
+    }
+
+    public List<BluetoothDevice> getBondedDevices() {
+        return bondedDeviceIndex.getDevices();
+    }
+
+    // Copies the addresses of the known devices matching the query, see DeviceIndex.find. The
+    // bonded devices are added to the index on the first call.
+    public int findDevices(DeviceIndex.Query query, long[] destination) {
+        if (!bondedDevicesIndexed) {
+            for (BluetoothDevice device : bondedDeviceIndex.getDevices()) {
+                deviceIndex.update(MacAddress.toLong(device.getAddress()), metadataCache.getName(device),
+                        metadataCache.getDeviceClass(device), BluetoothDevice.BOND_BONDED, DeviceIndex.NEVER_SEEN);
+            }
+            bondedDevicesIndexed = true;
+        }
+        return deviceIndex.find(query, destination);
     }
 
     public static String deviceToString(BluetoothDevice device) {
-        return "[Address: " + device.getAddress() + ", Name: " + device.getName() + "]";
+        return DeviceFormat.describe(device.getAddress(), device.getName());
     }
 
     @Override
     public void close() {
+        this.discoveryScheduler.stopPeriodic();
+        stopLeScan();
         this.broadcastReceiverDelegator.close();
+        try {
+            stopTraceRecording();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to finish the event trace.", e);
+        }
     }
 
     public boolean isDiscovering() {
@@ -103,49 +340,24 @@ public class BluetoothController implements Closeable {
     }
 
     public void cancelDiscovery() {
+        discoveryScheduler.stopPeriodic();
         if(bluetooth != null) {
             bluetooth.cancelDiscovery();
             broadcastReceiverDelegator.onDeviceDiscoveryEnd();
         }
     }
 
+    // The discovery is queued behind the turn-on and starts from the STATE_ON broadcast.
     public void turnOnBluetoothAndScheduleDiscovery() {
-        this.bluetoothDiscoveryScheduled = true;
-        turnOnBluetooth();
-    }
-
-    public void onBluetoothStatusChanged() {
-        // Does anything only if a device discovery has been scheduled.
-        if (bluetoothDiscoveryScheduled) {
-
-            int bluetoothState = bluetooth.getState();
-            switch (bluetoothState) {
-                case BluetoothAdapter.STATE_ON:
-                    // Bluetooth is ON.
-                    Log.d(TAG, "Bluetooth succesfully enabled, starting discovery");
-                    startDiscovery();
-                    // Resets the flag since this discovery has been performed.
-                    bluetoothDiscoveryScheduled = false;
-                    break;
-                case BluetoothAdapter.STATE_OFF:
-                    // Bluetooth is OFF.
-                    Log.d(TAG, "Error while turning Bluetooth on.");
-                    Toast.makeText(context, "Error while turning Bluetooth on.", Toast.LENGTH_SHORT);
-                    // Resets the flag since this discovery has been performed.
-                    bluetoothDiscoveryScheduled = false;
-                    break;
-                default:
-                    // Bluetooth is turning ON or OFF. Ignore.
-                    break;
-            }
-        }
+        stateMachine.turnOn();
+        stateMachine.discover();
     }
 
     public int getPairingDeviceStatus() {
         if (this.boundingDevice == null) {
             throw new IllegalStateException("No device currently bounding");
         }
-        int bondState = this.boundingDevice.getBondState();
+        int bondState = metadataCache.getBondState(this.boundingDevice);
         // If the new state is not BOND_BONDING, the pairing is finished, cleans up the state.
         if (bondState != BluetoothDevice.BOND_BONDING) {
             this.boundingDevice = null;
@@ -154,22 +366,124 @@ public class BluetoothController implements Closeable {
     }
 
     public String getPairingDeviceName() {
-        return getDeviceName(this.boundingDevice);
+        return metadataCache.displayName(this.boundingDevice);
     }
 
     public static String getDeviceName(BluetoothDevice device) {
-        String deviceName = device.getName();
-        if (deviceName == null) {
-            deviceName = device.getAddress();
-        }
-        return deviceName;
+        return DeviceFormat.displayName(device.getAddress(), device.getName());
     }
 
     public boolean isPairingInProgress() {
-        return this.boundingDevice != null;
+        return !pairingEngine.isIdle();
     }
 
     public BluetoothDevice getBoundingDevice() {
         return boundingDevice;
     }
+
+    public DeviceRegistry getDeviceRegistry() {
+        return deviceRegistry;
+    }
+
+    // Devices found or bonded from now on are also appended to the given cache. The caller keeps
+    // ownership of the cache and closes it.
+    public void setDeviceCache(DeviceCache deviceCache) {
+        eventPipeline.setDeviceCache(deviceCache);
+    }
+
+    // Same, with the file writes run on writeExecutor instead of the receiver thread.
+    public void setDeviceCache(DeviceCache deviceCache, Executor writeExecutor) {
+        eventPipeline.setDeviceCache(deviceCache, writeExecutor);
+    }
+
+    public DeviceCache getDeviceCache() {
+        return eventPipeline.getDeviceCache();
+    }
+
+    public DeviceEventPipeline getEventPipeline() {
+        return eventPipeline;
+    }
+
+    // Receives every event handled by the broadcast receiver; subscribe loggers, sinks and
+    // other consumers here.
+    public BluetoothEventBus getEventBus() {
+        return eventBus;
+    }
+
+    // Device sightings as a backpressured stream, see SightingPublisher and Sightings for the
+    // operators. The caller closes the publisher when done.
+    public SightingPublisher openSightingStream(int bufferCapacity) {
+        return SightingPublisher.attach(eventBus, bufferCapacity);
+    }
+
+    // Records every event published on the bus to the given file until stopTraceRecording(),
+    // see EventTraceRecorder. Replaces a recording already running.
+    public synchronized EventTraceRecorder startTraceRecording(File file) throws IOException {
+        stopTraceRecording();
+        traceRecorder = new EventTraceRecorder(file);
+        traceSubscription = eventBus.subscribe(traceRecorder, BluetoothEventBus.ALL_EVENTS, null);
+        Log.d(TAG, "Recording events to " + file + ".");
+        return traceRecorder;
+    }
+
+    public synchronized void stopTraceRecording() throws IOException {
+        if (traceRecorder == null) {
+            return;
+        }
+        eventBus.unsubscribe(traceSubscription);
+        Log.d(TAG, "Recorded " + traceRecorder.getRecordCount() + " events to " + traceRecorder.getFile() + ".");
+        try {
+            traceRecorder.close();
+        } finally {
+            traceRecorder = null;
+            traceSubscription = null;
+        }
+    }
+
+    // Names, classes and bond states kept from the broadcasts; prefer it over the
+    // BluetoothDevice getters, which are IPCs.
+    public DeviceMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    // Kept current from the broadcasts, query it through findDevices().
+    public DeviceIndex getDeviceIndex() {
+        return deviceIndex;
+    }
+
+    // Smoothed RSSI of the discovered devices, with the nearest devices query.
+    public RssiEstimator getRssiEstimator() {
+        return rssiEstimator;
+    }
+
+    // Turn-on, discovery and bonding latencies, see BluetoothMetrics.
+    public BluetoothMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Adapter state and the queue of turn-on, discovery and turn-off commands.
+    public AdapterStateMachine getStateMachine() {
+        return stateMachine;
+    }
+
+    public PairingEngine getPairingEngine() {
+        return pairingEngine;
+    }
+
+    public DiscoveryScheduler getDiscoveryScheduler() {
+        return discoveryScheduler;
+    }
+
+    public BondedDeviceIndex getBondedDeviceIndex() {
+        return bondedDeviceIndex;
+    }
+
+    public DiscoveryCoalescer getDiscoveryCoalescer() {
+        return broadcastReceiverDelegator.getDiscoveryCoalescer();
+    }
+
+    // Exposed for tests sending broadcasts to the receiver.
+    BroadcastReceiverDelegator getBroadcastReceiverDelegator() {
+        return broadcastReceiverDelegator;
+    }
 }
@@ -2,8 +2,11 @@ package com.jonscully.bluetooth.bluetooth;
 
 import android.bluetooth.BluetoothDevice;
 
+import java.util.List;
+
 public interface BluetoothDiscoveryDeviceListener {
     void onDeviceDiscovered(BluetoothDevice device);
+    void onDevicesDiscovered(List<BluetoothDevice> devices);
     void onDeviceDiscoveryStarted();
     void setBluetoothController(BluetoothController bluetooth);
     void onDeviceDiscoveryEnd();
@@ -0,0 +1,323 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Fans Bluetooth events out to any number of sinks. Each subscription names the event types it
+// wants (a mask of the EVENT_* flags) and optionally an AddressFilter for the device events.
+// The subscriber array is copy-on-write behind an AtomicReference, so dispatch never locks, and
+// an event type no subscription asked for is dropped before it is built.
+//
+// A subscription without an executor is called on the publishing thread. With an executor the
+// events go through a bounded queue drained on that executor; when the queue is full new events
+// are dropped and counted, so a slow subscriber never holds up the others.
+public class BluetoothEventBus implements BluetoothEventSink {
+    public static final int EVENT_DEVICE_FOUND = 1;
+    public static final int EVENT_DISCOVERY_STARTED = 1 << 1;
+    public static final int EVENT_DISCOVERY_FINISHED = 1 << 2;
+    public static final int EVENT_ADAPTER_STATE_CHANGED = 1 << 3;
+    public static final int EVENT_BOND_STATE_CHANGED = 1 << 4;
+    public static final int EVENT_NAME_CHANGED = 1 << 5;
+    public static final int EVENT_CLASS_CHANGED = 1 << 6;
+    public static final int ALL_EVENTS = EVENT_DEVICE_FOUND | EVENT_DISCOVERY_STARTED | EVENT_DISCOVERY_FINISHED
+            | EVENT_ADAPTER_STATE_CHANGED | EVENT_BOND_STATE_CHANGED | EVENT_NAME_CHANGED | EVENT_CLASS_CHANGED;
+    // The events about one device, the ones an AddressFilter applies to.
+    private static final int DEVICE_EVENTS = EVENT_DEVICE_FOUND | EVENT_BOND_STATE_CHANGED
+            | EVENT_NAME_CHANGED | EVENT_CLASS_CHANGED;
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+
+    private final AtomicReference<Subscription[]> subscriptions = new AtomicReference<>(NO_SUBSCRIPTIONS);
+    // Union of the masks of all subscriptions.
+    private volatile int subscribedEvents;
+
+    // Selects the devices a subscription hears about. Adapter and discovery events carry no
+    // address and are not filtered.
+    public interface AddressFilter {
+        boolean accept(long address);
+    }
+
+    // Accepts the given packed addresses only.
+    public static AddressFilter addresses(long... addresses) {
+        final long[] sorted = addresses.clone();
+        Arrays.sort(sorted);
+        return new AddressFilter() {
+            @Override
+            public boolean accept(long address) {
+                return Arrays.binarySearch(sorted, address) >= 0;
+            }
+        };
+    }
+
+    private static class Event {
+        final int type;
+        final long timestamp;
+        final long address;
+        final String name;
+        final short rssi;
+        // Device class, adapter state or bond state depending on the type.
+        final int value;
+
+        Event(int type, long timestamp, long address, String name, short rssi, int value) {
+            this.type = type;
+            this.timestamp = timestamp;
+            this.address = address;
+            this.name = name;
+            this.rssi = rssi;
+            this.value = value;
+        }
+    }
+
+    public static class Subscription {
+        private final BluetoothEventSink sink;
+        private final int events;
+        private final AddressFilter filter;
+        private final Executor executor;
+        private final int queueCapacity;
+        private final ConcurrentLinkedQueue<Event> queue;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final AtomicLong droppedCount = new AtomicLong();
+        private final AtomicLong deliveredCount = new AtomicLong();
+        private volatile boolean cancelled;
+
+        private final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                drainQueue();
+            }
+        };
+
+        Subscription(BluetoothEventSink sink, int events, AddressFilter filter, Executor executor, int queueCapacity) {
+            this.sink = sink;
+            this.events = events;
+            this.filter = filter;
+            this.executor = executor;
+            this.queueCapacity = queueCapacity;
+            this.queue = executor == null ? null : new ConcurrentLinkedQueue<Event>();
+        }
+
+        boolean wants(int type, long address) {
+            return (events & type) != 0 && (filter == null || (type & DEVICE_EVENTS) == 0 || filter.accept(address));
+        }
+
+        void post(Event event) {
+            if (queued.incrementAndGet() > queueCapacity) {
+                queued.decrementAndGet();
+                droppedCount.incrementAndGet();
+                return;
+            }
+            queue.offer(event);
+            if (draining.compareAndSet(false, true)) {
+                executor.execute(drain);
+            }
+        }
+
+        private void drainQueue() {
+            boolean drained = false;
+            try {
+                while (true) {
+                    Event event;
+                    while ((event = queue.poll()) != null) {
+                        queued.decrementAndGet();
+                        if (!cancelled) {
+                            deliver(event);
+                        }
+                    }
+                    draining.set(false);
+                    // An event offered after the last poll but before the flag was cleared would
+                    // otherwise wait for the next post.
+                    if (queue.isEmpty() || !draining.compareAndSet(false, true)) {
+                        drained = true;
+                        return;
+                    }
+                }
+            } finally {
+                if (!drained) {
+                    // The sink threw: the exception goes to the executor and the rest of the
+                    // queue to a new task, so the subscription keeps receiving events.
+                    draining.set(false);
+                    if (!queue.isEmpty() && draining.compareAndSet(false, true)) {
+                        executor.execute(drain);
+                    }
+                }
+            }
+        }
+
+        void deliver(Event event) {
+            deliveredCount.incrementAndGet();
+            switch (event.type) {
+                case EVENT_DEVICE_FOUND:
+                    sink.onDeviceFound(event.timestamp, event.address, event.name, event.rssi, event.value);
+                    break;
+                case EVENT_DISCOVERY_STARTED:
+                    sink.onDiscoveryStarted(event.timestamp);
+                    break;
+                case EVENT_DISCOVERY_FINISHED:
+                    sink.onDiscoveryFinished(event.timestamp);
+                    break;
+                case EVENT_ADAPTER_STATE_CHANGED:
+                    sink.onAdapterStateChanged(event.timestamp, event.value);
+                    break;
+                case EVENT_BOND_STATE_CHANGED:
+                    sink.onBondStateChanged(event.timestamp, event.address, event.value);
+                    break;
+                case EVENT_NAME_CHANGED:
+                    sink.onNameChanged(event.timestamp, event.address, event.name);
+                    break;
+                case EVENT_CLASS_CHANGED:
+                    sink.onClassChanged(event.timestamp, event.address, event.value);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // Events dropped because the queue was full.
+        public long getDroppedCount() {
+            return droppedCount.get();
+        }
+
+        public long getDeliveredCount() {
+            return deliveredCount.get();
+        }
+
+        public int getQueuedCount() {
+            return queued.get();
+        }
+    }
+
+    // Delivers the selected events on the publishing thread. A null filter accepts all devices.
+    public Subscription subscribe(BluetoothEventSink sink, int events, AddressFilter filter) {
+        return add(new Subscription(sink, events, filter, null, 0));
+    }
+
+    // Delivers the selected events on executor, through a queue of at most queueCapacity events.
+    public Subscription subscribe(BluetoothEventSink sink, int events, AddressFilter filter,
+                                  Executor executor, int queueCapacity) {
+        return add(new Subscription(sink, events, filter, executor, queueCapacity));
+    }
+
+    public void unsubscribe(Subscription subscription) {
+        subscription.cancelled = true;
+        while (true) {
+            Subscription[] current = subscriptions.get();
+            int index = Arrays.asList(current).indexOf(subscription);
+            if (index < 0) {
+                return;
+            }
+            Subscription[] updated = new Subscription[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            if (subscriptions.compareAndSet(current, updated)) {
+                updateSubscribedEvents();
+                return;
+            }
+        }
+    }
+
+    private Subscription add(Subscription subscription) {
+        while (true) {
+            Subscription[] current = subscriptions.get();
+            Subscription[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = subscription;
+            if (subscriptions.compareAndSet(current, updated)) {
+                updateSubscribedEvents();
+                return subscription;
+            }
+        }
+    }
+
+    // Recomputed from the array after every change, so a racing update cannot leave a stale mask.
+    private void updateSubscribedEvents() {
+        Subscription[] current;
+        int events;
+        do {
+            current = subscriptions.get();
+            events = 0;
+            for (Subscription subscription : current) {
+                events |= subscription.events;
+            }
+            subscribedEvents = events;
+        } while (current != subscriptions.get());
+    }
+
+    // True if at least one subscription wants events of this type.
+    public boolean isSubscribed(int type) {
+        return (subscribedEvents & type) != 0;
+    }
+
+    public int getSubscriptionCount() {
+        return subscriptions.get().length;
+    }
+
+    // Sum of the events dropped by all current subscriptions.
+    public long getDroppedCount() {
+        long dropped = 0;
+        for (Subscription subscription : subscriptions.get()) {
+            dropped += subscription.getDroppedCount();
+        }
+        return dropped;
+    }
+
+    private void publish(int type, long timestamp, long address, String name, short rssi, int value) {
+        if (!isSubscribed(type)) {
+            return;
+        }
+        Event event = null;
+        for (Subscription subscription : subscriptions.get()) {
+            if (!subscription.wants(type, address)) {
+                continue;
+            }
+            if (event == null) {
+                event = new Event(type, timestamp, address, name, rssi, value);
+            }
+            if (subscription.executor == null) {
+                subscription.deliver(event);
+            } else {
+                subscription.post(event);
+            }
+        }
+    }
+
+    @Override
+    public void onDeviceFound(long timestamp, long address, String name, short rssi, int deviceClass) {
+        publish(EVENT_DEVICE_FOUND, timestamp, address, name, rssi, deviceClass);
+    }
+
+    @Override
+    public void onNameChanged(long timestamp, long address, String name) {
+        publish(EVENT_NAME_CHANGED, timestamp, address, name, DeviceRegistry.RSSI_UNKNOWN, 0);
+    }
+
+    @Override
+    public void onClassChanged(long timestamp, long address, int deviceClass) {
+        publish(EVENT_CLASS_CHANGED, timestamp, address, null, DeviceRegistry.RSSI_UNKNOWN, deviceClass);
+    }
+
+    @Override
+    public void onDiscoveryStarted(long timestamp) {
+        publish(EVENT_DISCOVERY_STARTED, timestamp, MacAddress.INVALID, null, DeviceRegistry.RSSI_UNKNOWN, 0);
+    }
+
+    @Override
+    public void onDiscoveryFinished(long timestamp) {
+        publish(EVENT_DISCOVERY_FINISHED, timestamp, MacAddress.INVALID, null, DeviceRegistry.RSSI_UNKNOWN, 0);
+    }
+
+    @Override
+    public void onAdapterStateChanged(long timestamp, int state) {
+        publish(EVENT_ADAPTER_STATE_CHANGED, timestamp, MacAddress.INVALID, null, DeviceRegistry.RSSI_UNKNOWN, state);
+    }
+
+    @Override
+    public void onBondStateChanged(long timestamp, long address, int bondState) {
+        publish(EVENT_BOND_STATE_CHANGED, timestamp, address, null, DeviceRegistry.RSSI_UNKNOWN, bondState);
+    }
+}
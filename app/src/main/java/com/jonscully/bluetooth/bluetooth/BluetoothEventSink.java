@@ -0,0 +1,18 @@
+package com.jonscully.bluetooth.bluetooth;
+
+// Bluetooth events reduced to primitives: packed addresses (see MacAddress) and
+// elapsedRealtime() timestamps. BroadcastReceiverDelegator produces them from broadcast intents,
+// SimulatedBluetoothStack produces them off-device.
+public interface BluetoothEventSink {
+    // Device class of a device that did not report one, same value as DeviceMetadataCache.UNKNOWN.
+    int UNKNOWN_CLASS = -1;
+
+    void onDeviceFound(long timestamp, long address, String name, short rssi, int deviceClass);
+    // The remote name or device class of a known device arrived after it was found.
+    void onNameChanged(long timestamp, long address, String name);
+    void onClassChanged(long timestamp, long address, int deviceClass);
+    void onDiscoveryStarted(long timestamp);
+    void onDiscoveryFinished(long timestamp);
+    void onAdapterStateChanged(long timestamp, int state);
+    void onBondStateChanged(long timestamp, long address, int bondState);
+}
@@ -0,0 +1,151 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Latency of the three slow Bluetooth operations, in milliseconds:
+// - adapter turn-on, from enable() to STATE_ON,
+// - discovery, from startDiscovery() to the first ACTION_FOUND of the cycle,
+// - bonding, from an accepted createBond() to BOND_BONDED.
+// The on*Requested() methods mark the command, the sink methods mark its outcome. Requests that
+// fail (STATE_OFF, discovery finished empty, BOND_NONE) are dropped without a sample, and so are
+// bonds abandoned without a broadcast, see onBondAbandoned().
+// Recording is lock-free and the histograms use fixed memory.
+public class BluetoothMetrics implements BluetoothEventSink {
+    public static final String ADAPTER_TURN_ON = "adapterTurnOn";
+    public static final String DISCOVERY_FIRST_RESULT = "discoveryFirstResult";
+    public static final String BOND = "bond";
+    // Bond requests tracked at once; more than this are not measured.
+    private static final int MAX_PENDING_BONDS = 64;
+    private static final long NONE = -1;
+
+    private final LatencyHistogram adapterTurnOn = new LatencyHistogram();
+    private final LatencyHistogram discoveryFirstResult = new LatencyHistogram();
+    private final LatencyHistogram bond = new LatencyHistogram();
+    private final AtomicLong turnOnRequestedAt = new AtomicLong(NONE);
+    private final AtomicLong discoveryRequestedAt = new AtomicLong(NONE);
+    private final ConcurrentHashMap<Long, Long> bondRequestedAt = new ConcurrentHashMap<>();
+
+    public void onTurnOnRequested(long timestamp) {
+        turnOnRequestedAt.set(timestamp);
+    }
+
+    public void onDiscoveryRequested(long timestamp) {
+        discoveryRequestedAt.set(timestamp);
+    }
+
+    // Only for bonds createBond() accepted, a refused one gets no broadcast to end it.
+    public void onBondRequested(long timestamp, long address) {
+        if (bondRequestedAt.size() < MAX_PENDING_BONDS) {
+            bondRequestedAt.put(address, timestamp);
+        }
+    }
+
+    // Ends a bond that timed out without BOND_BONDED or BOND_NONE, so it does not hold one of
+    // the MAX_PENDING_BONDS slots forever.
+    public void onBondAbandoned(long address) {
+        bondRequestedAt.remove(address);
+    }
+
+    public int getPendingBondCount() {
+        return bondRequestedAt.size();
+    }
+
+    // Sightings reaching the sink are taken as classic discovery results. LE scan results share
+    // EVENT_DEVICE_FOUND on the event bus, so the controller does not subscribe this to it and
+    // reports ACTION_FOUND through onClassicDeviceFound() instead.
+    @Override
+    public void onDeviceFound(long timestamp, long address, String name, short rssi, int deviceClass) {
+        onClassicDeviceFound(timestamp);
+    }
+
+    public void onClassicDeviceFound(long timestamp) {
+        // Only the first sighting of the cycle wins the swap, later ones see NONE.
+        long requestedAt = discoveryRequestedAt.getAndSet(NONE);
+        if (requestedAt != NONE) {
+            discoveryFirstResult.record(timestamp - requestedAt);
+        }
+    }
+
+    @Override
+    public void onNameChanged(long timestamp, long address, String name) {
+    }
+
+    @Override
+    public void onClassChanged(long timestamp, long address, int deviceClass) {
+    }
+
+    @Override
+    public void onDiscoveryStarted(long timestamp) {
+    }
+
+    @Override
+    public void onDiscoveryFinished(long timestamp) {
+        discoveryRequestedAt.set(NONE);
+    }
+
+    @Override
+    public void onAdapterStateChanged(long timestamp, int state) {
+        if (state == BluetoothAdapter.STATE_ON) {
+            long requestedAt = turnOnRequestedAt.getAndSet(NONE);
+            if (requestedAt != NONE) {
+                adapterTurnOn.record(timestamp - requestedAt);
+            }
+        } else if (state == BluetoothAdapter.STATE_OFF) {
+            turnOnRequestedAt.set(NONE);
+            discoveryRequestedAt.set(NONE);
+        }
+    }
+
+    @Override
+    public void onBondStateChanged(long timestamp, long address, int bondState) {
+        if (bondState == BluetoothDevice.BOND_BONDING) {
+            return;
+        }
+        Long requestedAt = bondRequestedAt.remove(address);
+        if (requestedAt != null && bondState == BluetoothDevice.BOND_BONDED) {
+            bond.record(timestamp - requestedAt);
+        }
+    }
+
+    public LatencyHistogram getAdapterTurnOn() {
+        return adapterTurnOn;
+    }
+
+    public LatencyHistogram getDiscoveryFirstResult() {
+        return discoveryFirstResult;
+    }
+
+    public LatencyHistogram getBond() {
+        return bond;
+    }
+
+    // Snapshots of all histograms keyed by the constants above.
+    public Map<String, LatencyHistogram.Snapshot> snapshot() {
+        Map<String, LatencyHistogram.Snapshot> snapshots = new LinkedHashMap<>();
+        snapshots.put(ADAPTER_TURN_ON, adapterTurnOn.snapshot());
+        snapshots.put(DISCOVERY_FIRST_RESULT, discoveryFirstResult.snapshot());
+        snapshots.put(BOND, bond.snapshot());
+        return snapshots;
+    }
+
+    // Same as snapshot() but clears the histograms, for periodic reporting.
+    public Map<String, LatencyHistogram.Snapshot> snapshotAndReset() {
+        Map<String, LatencyHistogram.Snapshot> snapshots = new LinkedHashMap<>();
+        snapshots.put(ADAPTER_TURN_ON, adapterTurnOn.snapshotAndReset());
+        snapshots.put(DISCOVERY_FIRST_RESULT, discoveryFirstResult.snapshotAndReset());
+        snapshots.put(BOND, bond.snapshotAndReset());
+        return snapshots;
+    }
+
+    public void reset() {
+        adapterTurnOn.reset();
+        discoveryFirstResult.reset();
+        bond.reset();
+    }
+}
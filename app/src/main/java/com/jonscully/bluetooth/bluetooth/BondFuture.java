@@ -0,0 +1,41 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+// Outcome of a PairingEngine request. Completes with BluetoothDevice.BOND_BONDED, or fails with
+// a PairingException or a TimeoutException.
+public class BondFuture extends OperationFuture<Integer, BondFuture.Listener> {
+    private final BluetoothDevice device;
+    private final PairingEngine engine;
+
+    public interface Listener {
+        void onBonded(BluetoothDevice device);
+        void onBondFailed(BluetoothDevice device, Throwable error);
+    }
+
+    BondFuture(String address, BluetoothDevice device, PairingEngine engine) {
+        super("Bond with " + address);
+        this.device = device;
+        this.engine = engine;
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    @Override
+    protected boolean withdraw() {
+        // Only requests still waiting in the queue can be withdrawn, a bond in progress is up to
+        // the remote device.
+        return engine.cancel(this);
+    }
+
+    @Override
+    protected void onResult(Listener listener, Integer bondState, Throwable error) {
+        if (error == null) {
+            listener.onBonded(device);
+        } else {
+            listener.onBondFailed(device, error);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// In-memory copy of the adapter's bonded devices keyed by address. The adapter is queried once,
+// then the index is kept current from ACTION_BOND_STATE_CHANGED and reloaded only after the
+// adapter state changes.
+public class BondedDeviceIndex {
+    private static final String TAG = "BondedDeviceIndex";
+    private final BluetoothAdapterPort bluetooth;
+    // Replaced whole on reload, so lookups never see a half filled map.
+    private volatile Map<String, BluetoothDevice> devices = new ConcurrentHashMap<>();
+    private final AtomicLong adapterQueryCount = new AtomicLong();
+    private final AtomicLong avoidedQueryCount = new AtomicLong();
+    private volatile boolean loaded;
+
+    public BondedDeviceIndex(BluetoothAdapterPort bluetooth) {
+        this.bluetooth = bluetooth;
+    }
+
+    public boolean contains(String address) {
+        ensureLoaded();
+        return devices.containsKey(address);
+    }
+
+    public List<BluetoothDevice> getDevices() {
+        ensureLoaded();
+        return new ArrayList<>(devices.values());
+    }
+
+    public void onBondStateChanged(BluetoothDevice device, int bondState) {
+        if (!loaded) {
+            // The next lookup reloads everything anyway.
+            return;
+        }
+        switch (bondState) {
+            case BluetoothDevice.BOND_BONDED:
+                devices.put(device.getAddress(), device);
+                break;
+            case BluetoothDevice.BOND_NONE:
+                devices.remove(device.getAddress());
+                break;
+            default:
+                // Bonding still in progress, membership does not change yet.
+                break;
+        }
+    }
+
+    // The bonded set reported by the adapter is empty while it is off, so every adapter state
+    // change forces a reload on the next lookup.
+    public void invalidate() {
+        loaded = false;
+    }
+
+    public long getAdapterQueryCount() {
+        return adapterQueryCount.get();
+    }
+
+    public long getAvoidedQueryCount() {
+        return avoidedQueryCount.get();
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            avoidedQueryCount.incrementAndGet();
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                avoidedQueryCount.incrementAndGet();
+                return;
+            }
+            Map<String, BluetoothDevice> loadedDevices = new ConcurrentHashMap<>();
+            for (BluetoothDevice device : bluetooth.getBondedDevices()) {
+                loadedDevices.put(device.getAddress(), device);
+            }
+            devices = loadedDevices;
+            adapterQueryCount.incrementAndGet();
+            loaded = true;
+            Log.d(TAG, "Loaded " + devices.size() + " bonded devices.");
+        }
+    }
+}
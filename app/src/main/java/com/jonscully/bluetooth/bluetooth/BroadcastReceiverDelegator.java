@@ -1,32 +1,79 @@
 package com.jonscully.bluetooth.bluetooth;
 
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.Executor;
 
-public class BroadcastReceiverDelegator extends BroadcastReceiver implements Closeable {
+public class BroadcastReceiverDelegator extends BroadcastReceiver implements LeScanController.ResultSink, Closeable {
     private final BluetoothDiscoveryDeviceListener listener;
     private final String TAG = "BroadcastReceiver";
     private final Context context;
+    private final BluetoothController bluetooth;
+    private final DiscoveryCoalescer discoveryCoalescer;
+    private final DeviceEventPipeline eventPipeline;
+    private final BluetoothEventBus eventBus;
+    private final BondedDeviceIndex bondedDevices;
+    private final DeviceMetadataCache metadataCache;
+    // Thread the receiver runs on, null when intents are handled on the main looper.
+    private final HandlerThread receiverThread;
+    private final Handler receiverHandler;
 
     public BroadcastReceiverDelegator(Context context, BluetoothDiscoveryDeviceListener listener, BluetoothController bluetooth) {
-        this.listener = listener;
+        this(context, listener, bluetooth, DiscoveryCoalescer.DEFAULT_WINDOW_MILLIS);
+    }
+
+    public BroadcastReceiverDelegator(Context context, BluetoothDiscoveryDeviceListener listener, BluetoothController bluetooth, long coalesceWindowMillis) {
+        this(context, listener, bluetooth, coalesceWindowMillis, false, null);
+    }
+
+    public BroadcastReceiverDelegator(Context context, BluetoothDiscoveryDeviceListener listener, BluetoothController bluetooth,
+                                      long coalesceWindowMillis, boolean receiveInBackground, Executor callbackExecutor) {
+        // Callbacks run on the receiver thread unless an executor is given.
+        this.listener = callbackExecutor == null ? listener : new ExecutorDiscoveryDeviceListener(listener, callbackExecutor);
         this.context = context;
+        this.bluetooth = bluetooth;
+
+        if (receiveInBackground) {
+            this.receiverThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            this.receiverThread.start();
+            this.receiverHandler = new Handler(receiverThread.getLooper());
+        } else {
+            this.receiverThread = null;
+            this.receiverHandler = new Handler(context.getMainLooper());
+        }
+        this.discoveryCoalescer = new DiscoveryCoalescer(this.listener, receiverHandler, coalesceWindowMillis);
+        this.eventPipeline = bluetooth.getEventPipeline();
+        this.eventBus = bluetooth.getEventBus();
+        this.bondedDevices = bluetooth.getBondedDeviceIndex();
+        this.metadataCache = bluetooth.getMetadataCache();
         this.listener.setBluetoothController(bluetooth);
 
         // Register for broadcasts when a device is discovered.
         IntentFilter filter = new IntentFilter();
         filter.addAction(BluetoothDevice.ACTION_FOUND);
+        filter.addAction(BluetoothDevice.ACTION_NAME_CHANGED);
+        filter.addAction(BluetoothDevice.ACTION_CLASS_CHANGED);
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
         filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
         filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
         filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
-        context.registerReceiver(this, filter);
+        context.registerReceiver(this, filter, null, receiverHandler);
     }
 
     @Override
@@ -36,24 +83,72 @@ public class BroadcastReceiverDelegator extends BroadcastReceiver implements Clo
         switch (action) {
             case BluetoothDevice.ACTION_FOUND :
                 // Discovery has found a device. Get the BluetoothDevice
-                // object and its info from the Intent.
+                // object and its info from the Intent. Repeated sightings are coalesced
+                // into batches before reaching the listener.
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                Log.d(TAG, "Device discovered! " + BluetoothController.deviceToString(device));
-                listener.onDeviceDiscovered(device);
+                short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, DeviceRegistry.RSSI_UNKNOWN);
+                String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+                BluetoothClass foundClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+                int deviceClass = foundClass == null ? DeviceMetadataCache.UNKNOWN : foundClass.getDeviceClass();
+                long foundAt = onDeviceFound(device, name, rssi, deviceClass);
+                bluetooth.getMetrics().onClassicDeviceFound(foundAt);
+                break;
+            case BluetoothDevice.ACTION_NAME_CHANGED :
+                // The remote name request finished after the device was found.
+                BluetoothDevice namedDevice = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                String newName = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+                metadataCache.onNameChanged(namedDevice.getAddress(), newName);
+                eventBus.onNameChanged(SystemClock.elapsedRealtime(), MacAddress.toLong(namedDevice.getAddress()), newName);
+                break;
+            case BluetoothDevice.ACTION_CLASS_CHANGED :
+                BluetoothDevice classDevice = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                BluetoothClass newClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+                if (newClass != null) {
+                    metadataCache.onClassChanged(classDevice.getAddress(), newClass.getDeviceClass());
+                    eventBus.onClassChanged(SystemClock.elapsedRealtime(), MacAddress.toLong(classDevice.getAddress()),
+                            newClass.getDeviceClass());
+                }
+                break;
+            case BluetoothAdapter.ACTION_DISCOVERY_STARTED :
+                long startedAt = SystemClock.elapsedRealtime();
+                eventBus.onDiscoveryStarted(startedAt);
+                eventPipeline.onDiscoveryStarted(startedAt);
                 break;
             case BluetoothAdapter.ACTION_DISCOVERY_FINISHED :
                 // Discovery has ended.
                 Log.d(TAG, "Discovery ended.");
-                listener.onDeviceDiscoveryEnd();
+                discoveryCoalescer.flush();
+                long finishedAt = SystemClock.elapsedRealtime();
+                eventBus.onDiscoveryFinished(finishedAt);
+                eventPipeline.onDiscoveryFinished(finishedAt);
+                bluetooth.getDiscoveryScheduler().onCycleFinished();
+                if (!isLeScanning()) {
+                    listener.onDeviceDiscoveryEnd();
+                }
                 break;
             case BluetoothAdapter.ACTION_STATE_CHANGED :
                 // Discovery state changed.
                 Log.d(TAG, "Bluetooth state changed.");
+                bondedDevices.invalidate();
+                long changedAt = SystemClock.elapsedRealtime();
+                int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
+                eventBus.onAdapterStateChanged(changedAt, state);
+                eventPipeline.onAdapterStateChanged(changedAt, state);
                 listener.onBluetoothStatusChanged();
                 break;
             case BluetoothDevice.ACTION_BOND_STATE_CHANGED :
                 // Pairing state has changed.
                 Log.d(TAG, "Bluetooth bonding state changed.");
+                BluetoothDevice bondDevice = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                int newBondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.ERROR);
+                bondedDevices.onBondStateChanged(bondDevice, newBondState);
+                metadataCache.onBondStateChanged(bondDevice.getAddress(), newBondState);
+                bluetooth.getPairingEngine().onBondStateChanged(bondDevice, newBondState,
+                        intent.getIntExtra(PairingEngine.EXTRA_REASON, PairingEngine.REASON_UNKNOWN));
+                long bondChangedAt = SystemClock.elapsedRealtime();
+                long bondAddress = MacAddress.toLong(bondDevice.getAddress());
+                eventBus.onBondStateChanged(bondChangedAt, bondAddress, newBondState);
+                eventPipeline.onBondStateChanged(bondChangedAt, bondAddress, newBondState);
                 listener.onDevicePairingEnded();
                 break;
             default :
@@ -62,20 +157,126 @@ public class BroadcastReceiverDelegator extends BroadcastReceiver implements Clo
         }
     }
 
+    // Shared by ACTION_FOUND and LE scan results, returns the time of the sighting.
+    private long onDeviceFound(BluetoothDevice device, String name, short rssi, int deviceClass) {
+        String address = device.getAddress();
+        long packedAddress = MacAddress.toLong(address);
+        int bondState = bondedDevices.contains(address) ? BluetoothDevice.BOND_BONDED : BluetoothDevice.BOND_NONE;
+        metadataCache.onDeviceFound(address, name, deviceClass, bondState);
+        long foundAt = SystemClock.elapsedRealtime();
+        eventBus.onDeviceFound(foundAt, packedAddress, name, rssi, deviceClass);
+        boolean newDevice = eventPipeline.recordDevice(foundAt, packedAddress, name, rssi, bondState);
+        bluetooth.getDiscoveryScheduler().onDeviceFound(newDevice);
+        discoveryCoalescer.onDeviceFound(device);
+        return foundAt;
+    }
+
+    @Override
+    public void onLeScanStarted() {
+        runOnReceiverThread(new Runnable() {
+            @Override
+            public void run() {
+                if (!bluetooth.isDiscovering()) {
+                    listener.onDeviceDiscoveryStarted();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onLeScanResults(final List<ScanResult> results) {
+        runOnReceiverThread(new Runnable() {
+            @Override
+            public void run() {
+                for (ScanResult result : results) {
+                    ScanRecord record = result.getScanRecord();
+                    onDeviceFound(result.getDevice(), record == null ? null : record.getDeviceName(),
+                            (short) result.getRssi(), DeviceMetadataCache.UNKNOWN);
+                }
+            }
+        });
+    }
+
+    // The listener hears the end once both the LE scan and classic discovery are over.
+    @Override
+    public void onLeScanStopped() {
+        runOnReceiverThread(new Runnable() {
+            @Override
+            public void run() {
+                discoveryCoalescer.flush();
+                if (!bluetooth.isDiscovering()) {
+                    listener.onDeviceDiscoveryEnd();
+                }
+            }
+        });
+    }
+
+    private boolean isLeScanning() {
+        LeScanController leScanController = bluetooth.getLeScanController();
+        return leScanController != null && leScanController.isScanning();
+    }
+
     public void onDeviceDiscoveryStarted() {
-        listener.onDeviceDiscoveryStarted();
+        runOnReceiverThread(new Runnable() {
+            @Override
+            public void run() {
+                listener.onDeviceDiscoveryStarted();
+            }
+        });
     }
 
     public void onDeviceDiscoveryEnd() {
-        listener.onDeviceDiscoveryEnd();
+        runOnReceiverThread(new Runnable() {
+            @Override
+            public void run() {
+                discoveryCoalescer.flush();
+                listener.onDeviceDiscoveryEnd();
+            }
+        });
     }
 
     public void onBluetoothTurningOn() {
-        listener.onBluetoothTurningOn();
+        runOnReceiverThread(new Runnable() {
+            @Override
+            public void run() {
+                listener.onBluetoothTurningOn();
+            }
+        });
+    }
+
+    public boolean isReceivingInBackground() {
+        return receiverThread != null;
+    }
+
+    public DiscoveryCoalescer getDiscoveryCoalescer() {
+        return discoveryCoalescer;
+    }
+
+    // Exposed for tests waiting for the receiver thread to go idle.
+    Looper getLooper() {
+        return receiverHandler.getLooper();
     }
 
     @Override
     public void close() {
         context.unregisterReceiver(this);
+        runOnReceiverThread(new Runnable() {
+            @Override
+            public void run() {
+                discoveryCoalescer.cancel();
+            }
+        });
+        if (receiverThread != null) {
+            receiverThread.quitSafely();
+        }
+    }
+
+    // Keeps the receiver state confined to the receiver thread when calls come from the controller.
+    private void runOnReceiverThread(Runnable task) {
+        if (Looper.myLooper() == receiverHandler.getLooper()) {
+            task.run();
+        } else {
+            receiverHandler.post(task);
+        }
     }
 }
@@ -0,0 +1,233 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Append-only file of fixed-width device records, read back through a memory mapping at start up.
+// Each record carries a CRC32, so a record torn by a crash is detected and cut off when the file
+// is reopened. Later records for the same address override earlier ones; compact() rewrites the
+// file with only the latest record of each device.
+//
+// Layout: 8 byte header (magic, version, record size), then 64 byte records of
+// address(8) lastSeen(8) rssi(2) bondState(1) nameLength(1) name(40) crc(4).
+public class DeviceCache implements Closeable {
+    public static final String FILE_NAME = "devices.cache";
+    public static final int RECORD_SIZE = 64;
+    public static final int MAX_NAME_BYTES = 40;
+
+    private static final int MAGIC = 0x42544443; // "BTDC"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int CRC_OFFSET = RECORD_SIZE - 4;
+    private static final int WRITE_BUFFER_RECORDS = 64;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(RECORD_SIZE * WRITE_BUFFER_RECORDS);
+    private final CRC32 crc = new CRC32();
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long recordCount;
+    // Record count right after opening or compacting, the baseline for compactIfNeeded().
+    private long compactedRecordCount;
+
+    public DeviceCache(File file) throws IOException {
+        this.file = file;
+        open();
+    }
+
+    public static class Entry {
+        public final long address;
+        public final long lastSeen;
+        public final short rssi;
+        public final int bondState;
+        public final String name;
+
+        public Entry(long address, long lastSeen, short rssi, int bondState, String name) {
+            this.address = address;
+            this.lastSeen = lastSeen;
+            this.rssi = rssi;
+            this.bondState = bondState;
+            this.name = name;
+        }
+    }
+
+    // Returns the latest record of every cached device, in order of first appearance.
+    public synchronized List<Entry> load() throws IOException {
+        flush();
+        Map<Long, Entry> entries = new LinkedHashMap<>();
+        if (recordCount > 0) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, recordCount * RECORD_SIZE);
+            byte[] name = new byte[MAX_NAME_BYTES];
+            for (long i = 0; i < recordCount; i++) {
+                int offset = (int) (i * RECORD_SIZE);
+                long address = mapped.getLong(offset);
+                long lastSeen = mapped.getLong(offset + 8);
+                short rssi = mapped.getShort(offset + 16);
+                int bondState = mapped.get(offset + 18);
+                int nameLength = Math.min(mapped.get(offset + 19) & 0xFF, MAX_NAME_BYTES);
+                mapped.position(offset + 20);
+                mapped.get(name, 0, nameLength);
+                String deviceName = nameLength == 0 ? null : new String(name, 0, nameLength, UTF_8);
+                Entry previous = entries.get(address);
+                if (deviceName == null && previous != null) {
+                    // Bond updates are written without a name, keeps the one seen before.
+                    deviceName = previous.name;
+                }
+                entries.put(address, new Entry(address, lastSeen, rssi, bondState, deviceName));
+            }
+        }
+        return new ArrayList<>(entries.values());
+    }
+
+    public synchronized void append(long address, long lastSeen, short rssi, int bondState, String name) throws IOException {
+        if (writeBuffer.remaining() < RECORD_SIZE) {
+            flush();
+        }
+        int start = writeBuffer.position();
+        writeBuffer.putLong(address);
+        writeBuffer.putLong(lastSeen);
+        writeBuffer.putShort(rssi);
+        writeBuffer.put((byte) bondState);
+        byte[] nameBytes = name == null ? new byte[0] : name.getBytes(UTF_8);
+        int nameLength = truncatedLength(nameBytes);
+        writeBuffer.put((byte) nameLength);
+        writeBuffer.put(nameBytes, 0, nameLength);
+        for (int i = nameLength; i < MAX_NAME_BYTES; i++) {
+            writeBuffer.put((byte) 0);
+        }
+        crc.reset();
+        crc.update(writeBuffer.array(), start, CRC_OFFSET);
+        writeBuffer.putInt((int) crc.getValue());
+    }
+
+    public synchronized void flush() throws IOException {
+        if (writeBuffer.position() == 0) {
+            return;
+        }
+        writeBuffer.flip();
+        int records = writeBuffer.remaining() / RECORD_SIZE;
+        channel.position(HEADER_SIZE + recordCount * RECORD_SIZE);
+        while (writeBuffer.hasRemaining()) {
+            channel.write(writeBuffer);
+        }
+        writeBuffer.clear();
+        channel.force(false);
+        recordCount += records;
+    }
+
+    // Rewrites the file with one record per device through a temporary file and an atomic rename,
+    // so a crash during compaction leaves either the old or the new file intact.
+    public synchronized void compact() throws IOException {
+        List<Entry> entries = load();
+        File compacted = new File(file.getPath() + ".tmp");
+        if (compacted.exists() && !compacted.delete()) {
+            throw new IOException("Cannot delete " + compacted);
+        }
+        DeviceCache target = new DeviceCache(compacted);
+        try {
+            for (Entry entry : entries) {
+                target.append(entry.address, entry.lastSeen, entry.rssi, entry.bondState, entry.name);
+            }
+        } finally {
+            target.close();
+        }
+        closeChannel();
+        if (!compacted.renameTo(file)) {
+            throw new IOException("Cannot replace " + file + " with " + compacted);
+        }
+        open();
+    }
+
+    // Compacts once the file has grown to more than twice its size after the last compaction.
+    public synchronized boolean compactIfNeeded() throws IOException {
+        if (getRecordCount() <= 2 * compactedRecordCount + WRITE_BUFFER_RECORDS) {
+            return false;
+        }
+        compact();
+        return true;
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount + writeBuffer.position() / RECORD_SIZE;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        closeChannel();
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (channel.size() < HEADER_SIZE || channel.read(header, 0) < HEADER_SIZE || header.getInt(0) != MAGIC
+                || header.getShort(4) != VERSION || header.getShort(6) != RECORD_SIZE) {
+            // New or unreadable file, starts over.
+            header.clear();
+            header.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE).flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+            channel.force(false);
+            recordCount = 0;
+            compactedRecordCount = 0;
+            return;
+        }
+        recordCount = countValidRecords();
+        compactedRecordCount = recordCount;
+        // Drops a torn or corrupted tail so new records are appended after the last good one.
+        channel.truncate(HEADER_SIZE + recordCount * RECORD_SIZE);
+    }
+
+    private long countValidRecords() throws IOException {
+        long available = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+        if (available == 0) {
+            return 0;
+        }
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, available * RECORD_SIZE);
+        byte[] record = new byte[RECORD_SIZE];
+        for (long i = 0; i < available; i++) {
+            mapped.position((int) (i * RECORD_SIZE));
+            mapped.get(record);
+            crc.reset();
+            crc.update(record, 0, CRC_OFFSET);
+            if ((int) crc.getValue() != ByteBuffer.wrap(record, CRC_OFFSET, 4).getInt()) {
+                return i;
+            }
+        }
+        return available;
+    }
+
+    private void closeChannel() throws IOException {
+        channel.close();
+        raf.close();
+    }
+
+    // Cuts the UTF-8 name at the field width without splitting a multi-byte character.
+    static int truncatedLength(byte[] nameBytes) {
+        if (nameBytes.length <= MAX_NAME_BYTES) {
+            return nameBytes.length;
+        }
+        int length = MAX_NAME_BYTES;
+        while (length > 0 && (nameBytes[length] & 0xC0) == 0x80) {
+            length--;
+        }
+        return length;
+    }
+}
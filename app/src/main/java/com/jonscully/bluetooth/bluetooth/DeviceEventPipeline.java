@@ -0,0 +1,159 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+// Device bookkeeping shared by every event source: keeps the DeviceRegistry current and appends
+// first sightings and final bond states to the DeviceCache when one is set. It only touches
+// primitives, so it runs the same under SimulatedBluetoothStack on a plain JVM. Cache writes go
+// to the executor given with the cache: the events arrive on the receiver thread, which is the
+// main thread unless the receiver runs in the background, and a flush waits for the disk.
+public class DeviceEventPipeline implements BluetoothEventSink {
+    private static final String TAG = "DeviceEventPipeline";
+    private final DeviceRegistry deviceRegistry;
+    private volatile DeviceCache deviceCache;
+    // Runs the cache writes, null to write on the thread of the event.
+    private volatile Executor cacheExecutor;
+    private volatile long eventCount;
+    private volatile long newDeviceCount;
+
+    public DeviceEventPipeline(DeviceRegistry deviceRegistry) {
+        this.deviceRegistry = deviceRegistry;
+    }
+
+    // Records a sighting with a bond state known by the caller. Returns true if the device is
+    // new to the registry.
+    public boolean recordDevice(long timestamp, long address, String name, short rssi, int bondState) {
+        eventCount++;
+        boolean newDevice = deviceRegistry.update(address, timestamp, rssi, bondState, name);
+        if (newDevice) {
+            newDeviceCount++;
+            // Only the first sighting of a device is persisted.
+            persist(address, rssi, bondState, name);
+        }
+        return newDevice;
+    }
+
+    @Override
+    public void onDeviceFound(long timestamp, long address, String name, short rssi, int deviceClass) {
+        int bondState = deviceRegistry.contains(address) ? deviceRegistry.getBondState(address) : BluetoothDevice.BOND_NONE;
+        recordDevice(timestamp, address, name, rssi, bondState);
+    }
+
+    @Override
+    public void onNameChanged(long timestamp, long address, String name) {
+        eventCount++;
+    }
+
+    @Override
+    public void onClassChanged(long timestamp, long address, int deviceClass) {
+        eventCount++;
+    }
+
+    @Override
+    public void onDiscoveryStarted(long timestamp) {
+        eventCount++;
+    }
+
+    @Override
+    public void onDiscoveryFinished(long timestamp) {
+        eventCount++;
+        flushCache();
+    }
+
+    @Override
+    public void onAdapterStateChanged(long timestamp, int state) {
+        eventCount++;
+    }
+
+    @Override
+    public void onBondStateChanged(long timestamp, long address, int bondState) {
+        eventCount++;
+        deviceRegistry.updateBondState(address, bondState);
+        if (bondState != BluetoothDevice.BOND_BONDING) {
+            persist(address, deviceRegistry.getRssi(address), bondState, null);
+            flushCache();
+        }
+    }
+
+    public void setDeviceCache(DeviceCache deviceCache) {
+        setDeviceCache(deviceCache, null);
+    }
+
+    // Appends, flushes and compactions of the cache run on writeExecutor, in event order if it
+    // is single threaded. With a null executor they run on the thread of the event.
+    public void setDeviceCache(DeviceCache deviceCache, Executor writeExecutor) {
+        this.cacheExecutor = writeExecutor;
+        this.deviceCache = deviceCache;
+    }
+
+    public DeviceCache getDeviceCache() {
+        return deviceCache;
+    }
+
+    public DeviceRegistry getDeviceRegistry() {
+        return deviceRegistry;
+    }
+
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    public long getNewDeviceCount() {
+        return newDeviceCount;
+    }
+
+    private void persist(final long address, final short rssi, final int bondState, final String name) {
+        final DeviceCache cache = deviceCache;
+        if (cache == null) {
+            return;
+        }
+        final long lastSeen = System.currentTimeMillis();
+        write(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cache.append(address, lastSeen, rssi, bondState, name);
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to write the device cache.", e);
+                }
+            }
+        });
+    }
+
+    private void flushCache() {
+        final DeviceCache cache = deviceCache;
+        if (cache == null) {
+            return;
+        }
+        write(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    cache.flush();
+                    cache.compactIfNeeded();
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to write the device cache.", e);
+                }
+            }
+        });
+    }
+
+    private void write(Runnable write) {
+        Executor executor = cacheExecutor;
+        if (executor == null) {
+            write.run();
+            return;
+        }
+        try {
+            executor.execute(write);
+        } catch (RejectedExecutionException e) {
+            // The owner is closing the cache.
+            Log.d(TAG, "Device cache closed, write dropped.");
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.jonscully.bluetooth.bluetooth;
+
+// Formatting of device identities, kept free of BluetoothDevice so it can be benchmarked and
+// reused with values that were already read from the device.
+public final class DeviceFormat {
+    private DeviceFormat() {
+    }
+
+    public static String describe(String address, String name) {
+        return "[Address: " + address + ", Name: " + name + "]";
+    }
+
+    // Name to show for a device, its address when the remote name is not known yet.
+    public static String displayName(String address, String name) {
+        return name == null ? address : name;
+    }
+}
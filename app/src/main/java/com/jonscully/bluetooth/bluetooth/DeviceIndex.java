@@ -0,0 +1,436 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Queryable store of every known device: discovered ones from the event bus and bonded ones
+// from BondedDeviceIndex. Each device gets a dense id; name prefixes are looked up in a trie
+// whose nodes list the ids below them, major classes and bond states have one BitSet each, and
+// the devices are kept in a list ordered by last sighting for time ranges. A query intersects
+// the sets of its criteria, so its cost follows the size of the smallest set, not the number of
+// devices. Devices are never removed, ids stay valid for the life of the index. A device whose
+// class was never reported has its own set, apart from BluetoothClass.Device.Major.MISC.
+public class DeviceIndex implements BluetoothEventSink {
+    public static final int ANY = -1;
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final long NEVER_SEEN = Long.MIN_VALUE;
+
+    private static final int NONE = -1;
+    // Query.majorClass value of unknownClass().
+    private static final int UNKNOWN_CLASS = -2;
+    // Major classes are the bits 8 to 12 of the device class.
+    private static final int MAJOR_CLASS_MASK = 0x1F00;
+    private static final int MAJOR_CLASS_COUNT = 32;
+    private final BitSet[] majorClasses = new BitSet[MAJOR_CLASS_COUNT];
+    private final BitSet unknownClasses = new BitSet();
+    private final BitSet[] bondStates = new BitSet[3];
+    private final BitSet candidates = new BitSet();
+    private final TrieNode root = new TrieNode();
+    private final LongIntHashIndex addressIndex;
+    private long[] addresses;
+    private String[] names;
+    private int[] deviceClasses;
+    private byte[] bonds;
+    private long[] lastSeen;
+    // Doubly linked list over ids, head is the most recently seen.
+    private int[] newer;
+    private int[] older;
+    private int head = NONE;
+    private int tail = NONE;
+    private int size;
+
+    // Criteria of find() and count(), ANY or null where not filtered.
+    public static class Query {
+        String namePrefix;
+        int majorClass = ANY;
+        int bondState = ANY;
+        long seenFrom = Long.MIN_VALUE;
+        long seenTo = Long.MAX_VALUE;
+
+        // Case insensitive.
+        public Query namePrefix(String prefix) {
+            this.namePrefix = prefix;
+            return this;
+        }
+
+        // One of the BluetoothClass.Device.Major constants.
+        public Query majorClass(int majorClass) {
+            this.majorClass = majorClass;
+            return this;
+        }
+
+        // Devices whose class was never reported.
+        public Query unknownClass() {
+            this.majorClass = UNKNOWN_CLASS;
+            return this;
+        }
+
+        public Query bondState(int bondState) {
+            this.bondState = bondState;
+            return this;
+        }
+
+        // Last sighting between from and to, both included.
+        public Query seenBetween(long from, long to) {
+            this.seenFrom = from;
+            this.seenTo = to;
+            return this;
+        }
+    }
+
+    private static class TrieNode {
+        char[] keys = new char[0];
+        TrieNode[] children = new TrieNode[0];
+        // Ids of the names going through this node, unordered.
+        int[] ids = new int[1];
+        int count;
+
+        TrieNode child(char key) {
+            int index = Arrays.binarySearch(keys, key);
+            return index < 0 ? null : children[index];
+        }
+
+        TrieNode childOrCreate(char key) {
+            int index = Arrays.binarySearch(keys, key);
+            if (index >= 0) {
+                return children[index];
+            }
+            index = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            TrieNode[] newChildren = new TrieNode[keys.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, keys.length - index);
+            newKeys[index] = key;
+            newChildren[index] = new TrieNode();
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[index];
+        }
+
+        void add(int id) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = id;
+        }
+
+        void remove(int id) {
+            for (int i = 0; i < count; i++) {
+                if (ids[i] == id) {
+                    ids[i] = ids[--count];
+                    return;
+                }
+            }
+        }
+    }
+
+    public DeviceIndex() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    // The index grows past the initial capacity as needed.
+    public DeviceIndex(int capacity) {
+        for (int i = 0; i < MAJOR_CLASS_COUNT; i++) {
+            majorClasses[i] = new BitSet();
+        }
+        for (int i = 0; i < bondStates.length; i++) {
+            bondStates[i] = new BitSet();
+        }
+        addressIndex = new LongIntHashIndex(Math.max(capacity, 1));
+        allocate(Math.max(capacity, 1));
+    }
+
+    // Records what is known of a device. A null name keeps the known one, an unknown class
+    // (negative) or bond state (ANY) keeps the known value, and seenAt is NEVER_SEEN when the
+    // update is not a sighting.
+    public synchronized void update(long address, String name, int deviceClass, int bondState, long seenAt) {
+        int id = idOf(address);
+        if (name != null && !name.equals(names[id])) {
+            setName(id, name);
+        }
+        if (deviceClass >= 0 && deviceClass != deviceClasses[id]) {
+            classSet(deviceClasses[id]).clear(id);
+            deviceClasses[id] = deviceClass;
+            majorClasses[majorIndex(deviceClass)].set(id);
+        }
+        if (bondState != ANY) {
+            setBondState(id, bondState);
+        }
+        if (seenAt > lastSeen[id]) {
+            lastSeen[id] = seenAt;
+            unlink(id);
+            link(id);
+        }
+    }
+
+    @Override
+    public void onDeviceFound(long timestamp, long address, String name, short rssi, int deviceClass) {
+        update(address, name, deviceClass, ANY, timestamp);
+    }
+
+    @Override
+    public void onNameChanged(long timestamp, long address, String name) {
+        update(address, name, ANY, ANY, NEVER_SEEN);
+    }
+
+    @Override
+    public void onClassChanged(long timestamp, long address, int deviceClass) {
+        update(address, null, deviceClass, ANY, NEVER_SEEN);
+    }
+
+    @Override
+    public void onDiscoveryStarted(long timestamp) {
+    }
+
+    @Override
+    public void onDiscoveryFinished(long timestamp) {
+    }
+
+    @Override
+    public void onAdapterStateChanged(long timestamp, int state) {
+    }
+
+    @Override
+    public void onBondStateChanged(long timestamp, long address, int bondState) {
+        update(address, null, ANY, bondState, NEVER_SEEN);
+    }
+
+    // Copies the addresses of the matching devices, most recently seen first when the query has
+    // a time range and in id order otherwise, and returns how many were written.
+    public synchronized int find(Query query, long[] destination) {
+        int count = 0;
+        if (!select(query)) {
+            for (int id = firstInRange(query); id != NONE && lastSeen[id] >= query.seenFrom
+                    && count < destination.length; id = older[id]) {
+                if (candidates.get(id)) {
+                    destination[count++] = addresses[id];
+                }
+            }
+            return count;
+        }
+        for (int id = candidates.nextSetBit(0); id >= 0 && count < destination.length; id = candidates.nextSetBit(id + 1)) {
+            destination[count++] = addresses[id];
+        }
+        return count;
+    }
+
+    public synchronized int count(Query query) {
+        if (!select(query)) {
+            int count = 0;
+            for (int id = firstInRange(query); id != NONE && lastSeen[id] >= query.seenFrom; id = older[id]) {
+                if (candidates.get(id)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        return candidates.cardinality();
+    }
+
+    public synchronized String getName(long address) {
+        int id = find(address);
+        return id == NONE ? null : names[id];
+    }
+
+    public synchronized int getDeviceClass(long address) {
+        int id = find(address);
+        return id == NONE ? ANY : deviceClasses[id];
+    }
+
+    public synchronized int getBondState(long address) {
+        int id = find(address);
+        return id == NONE ? ANY : bonds[id] + BluetoothDevice.BOND_NONE;
+    }
+
+    public synchronized long getLastSeen(long address) {
+        int id = find(address);
+        return id == NONE ? NEVER_SEEN : lastSeen[id];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public static int majorClassOf(int deviceClass) {
+        return deviceClass & MAJOR_CLASS_MASK;
+    }
+
+    // Fills candidates with the devices matching the indexed criteria. Returns false when the
+    // time range is left to the caller, which then walks the recency list over the candidates.
+    private boolean select(Query query) {
+        candidates.clear();
+        if (query.namePrefix != null) {
+            TrieNode node = root;
+            String prefix = normalize(query.namePrefix);
+            for (int i = 0; i < prefix.length() && node != null; i++) {
+                node = node.child(prefix.charAt(i));
+            }
+            if (node == null) {
+                return true;
+            }
+            for (int i = 0; i < node.count; i++) {
+                candidates.set(node.ids[i]);
+            }
+        } else {
+            candidates.set(0, size);
+        }
+        if (query.majorClass != ANY) {
+            candidates.and(classSet(query.majorClass));
+        }
+        if (query.bondState != ANY) {
+            int index = query.bondState - BluetoothDevice.BOND_NONE;
+            if (index < 0 || index >= bondStates.length) {
+                candidates.clear();
+                return true;
+            }
+            candidates.and(bondStates[index]);
+        }
+        return query.seenFrom == Long.MIN_VALUE && query.seenTo == Long.MAX_VALUE;
+    }
+
+    private int firstInRange(Query query) {
+        int id = head;
+        while (id != NONE && lastSeen[id] > query.seenTo) {
+            id = older[id];
+        }
+        return id;
+    }
+
+    private int idOf(long address) {
+        int id = find(address);
+        if (id != NONE) {
+            return id;
+        }
+        if (size == addresses.length) {
+            grow();
+        }
+        id = size++;
+        addresses[id] = address;
+        addressIndex.insert(address, id);
+        unknownClasses.set(id);
+        deviceClasses[id] = ANY;
+        bonds[id] = 0;
+        bondStates[0].set(id);
+        lastSeen[id] = NEVER_SEEN;
+        linkLast(id);
+        return id;
+    }
+
+    private void setName(int id, String name) {
+        if (names[id] != null) {
+            TrieNode node = root;
+            String previous = normalize(names[id]);
+            for (int i = 0; i < previous.length(); i++) {
+                node.remove(id);
+                node = node.child(previous.charAt(i));
+            }
+            node.remove(id);
+        }
+        names[id] = name;
+        TrieNode node = root;
+        String normalized = normalize(name);
+        for (int i = 0; i < normalized.length(); i++) {
+            node.add(id);
+            node = node.childOrCreate(normalized.charAt(i));
+        }
+        node.add(id);
+    }
+
+    private void setBondState(int id, int bondState) {
+        int index = bondState - BluetoothDevice.BOND_NONE;
+        if (index < 0 || index >= bondStates.length || index == bonds[id]) {
+            return;
+        }
+        bondStates[bonds[id]].clear(id);
+        bonds[id] = (byte) index;
+        bondStates[index].set(id);
+    }
+
+    private static String normalize(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static int majorIndex(int deviceClass) {
+        return (deviceClass & MAJOR_CLASS_MASK) >> 8;
+    }
+
+    // The set of a device class, or of the unknown class when negative.
+    private BitSet classSet(int deviceClass) {
+        return deviceClass < 0 ? unknownClasses : majorClasses[majorIndex(deviceClass)];
+    }
+
+    private int find(long address) {
+        return addressIndex.find(address, addresses);
+    }
+
+    private void allocate(int capacity) {
+        addresses = Arrays.copyOf(addresses == null ? new long[0] : addresses, capacity);
+        names = Arrays.copyOf(names == null ? new String[0] : names, capacity);
+        deviceClasses = Arrays.copyOf(deviceClasses == null ? new int[0] : deviceClasses, capacity);
+        bonds = Arrays.copyOf(bonds == null ? new byte[0] : bonds, capacity);
+        lastSeen = Arrays.copyOf(lastSeen == null ? new long[0] : lastSeen, capacity);
+        newer = Arrays.copyOf(newer == null ? new int[0] : newer, capacity);
+        older = Arrays.copyOf(older == null ? new int[0] : older, capacity);
+    }
+
+    private void grow() {
+        allocate(addresses.length * 2);
+        addressIndex.resize(addresses.length, addresses, size);
+    }
+
+    // Inserts the id after the devices seen later than it, usually right at the head.
+    private void link(int id) {
+        int previous = NONE;
+        int next = head;
+        while (next != NONE && lastSeen[next] > lastSeen[id]) {
+            previous = next;
+            next = older[next];
+        }
+        newer[id] = previous;
+        older[id] = next;
+        if (previous != NONE) {
+            older[previous] = id;
+        } else {
+            head = id;
+        }
+        if (next != NONE) {
+            newer[next] = id;
+        } else {
+            tail = id;
+        }
+    }
+
+    // Devices never seen go last.
+    private void linkLast(int id) {
+        newer[id] = tail;
+        older[id] = NONE;
+        if (tail != NONE) {
+            older[tail] = id;
+        } else {
+            head = id;
+        }
+        tail = id;
+    }
+
+    private void unlink(int id) {
+        int previous = newer[id];
+        int next = older[id];
+        if (previous != NONE) {
+            older[previous] = next;
+        } else {
+            head = next;
+        }
+        if (next != NONE) {
+            newer[next] = previous;
+        } else {
+            tail = previous;
+        }
+    }
+}
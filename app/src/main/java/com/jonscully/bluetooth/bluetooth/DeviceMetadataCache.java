@@ -0,0 +1,174 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Name, device class and bond state of remote devices keyed by address. BluetoothDevice's
+// getName(), getBluetoothClass() and getBondState() are each an IPC into the Bluetooth service,
+// and getName() stays null until the remote name request completes, so the values are taken
+// from ACTION_FOUND, ACTION_NAME_CHANGED, ACTION_CLASS_CHANGED and ACTION_BOND_STATE_CHANGED
+// instead. Only a value the broadcasts have not provided yet costs an IPC (a miss); a null
+// name is not cached, so it is asked again until the device has one.
+public class DeviceMetadataCache {
+    public static final int DEFAULT_CAPACITY = 1024;
+    // Device class or bond state not known yet.
+    public static final int UNKNOWN = -1;
+
+    private final Map<String, Entry> entries;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    // Immutable, replaced as a whole so readers never see a half updated device.
+    private static class Entry {
+        final String name;
+        final int deviceClass;
+        final int bondState;
+
+        Entry(String name, int deviceClass, int bondState) {
+            this.name = name;
+            this.deviceClass = deviceClass;
+            this.bondState = bondState;
+        }
+
+        // Values left null or UNKNOWN keep the current ones.
+        Entry merge(String newName, int newDeviceClass, int newBondState) {
+            return new Entry(newName != null ? newName : name,
+                    newDeviceClass != UNKNOWN ? newDeviceClass : deviceClass,
+                    newBondState != UNKNOWN ? newBondState : bondState);
+        }
+    }
+
+    public DeviceMetadataCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    // Past capacity the least recently used device is evicted, its next lookup goes to the service.
+    public DeviceMetadataCache(final int capacity) {
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public void onDeviceFound(String address, String name, int deviceClass, int bondState) {
+        update(address, name, deviceClass, bondState);
+    }
+
+    public void onNameChanged(String address, String name) {
+        update(address, name, UNKNOWN, UNKNOWN);
+    }
+
+    public void onClassChanged(String address, int deviceClass) {
+        update(address, null, deviceClass, UNKNOWN);
+    }
+
+    public void onBondStateChanged(String address, int bondState) {
+        update(address, null, UNKNOWN, bondState);
+    }
+
+    public String getName(BluetoothDevice device) {
+        return getName(device.getAddress(), device);
+    }
+
+    // Device class as in BluetoothClass.getDeviceClass(), or UNKNOWN.
+    public int getDeviceClass(BluetoothDevice device) {
+        return getDeviceClass(device.getAddress(), device);
+    }
+
+    public int getBondState(BluetoothDevice device) {
+        return getBondState(device.getAddress(), device);
+    }
+
+    // Same output as BluetoothController.deviceToString() without the name IPC.
+    public String describe(BluetoothDevice device) {
+        return DeviceFormat.describe(device.getAddress(), getName(device));
+    }
+
+    public String displayName(BluetoothDevice device) {
+        return DeviceFormat.displayName(device.getAddress(), getName(device));
+    }
+
+    // The getters below take the device to query on a miss; without one a miss returns the
+    // unknown value.
+    String getName(String address, BluetoothDevice device) {
+        Entry entry = get(address);
+        if (entry != null && entry.name != null) {
+            hitCount.incrementAndGet();
+            return entry.name;
+        }
+        missCount.incrementAndGet();
+        String name = device == null ? null : device.getName();
+        if (name != null) {
+            update(address, name, UNKNOWN, UNKNOWN);
+        }
+        return name;
+    }
+
+    int getDeviceClass(String address, BluetoothDevice device) {
+        Entry entry = get(address);
+        if (entry != null && entry.deviceClass != UNKNOWN) {
+            hitCount.incrementAndGet();
+            return entry.deviceClass;
+        }
+        missCount.incrementAndGet();
+        BluetoothClass bluetoothClass = device == null ? null : device.getBluetoothClass();
+        if (bluetoothClass == null) {
+            return UNKNOWN;
+        }
+        update(address, null, bluetoothClass.getDeviceClass(), UNKNOWN);
+        return bluetoothClass.getDeviceClass();
+    }
+
+    int getBondState(String address, BluetoothDevice device) {
+        Entry entry = get(address);
+        if (entry != null && entry.bondState != UNKNOWN) {
+            hitCount.incrementAndGet();
+            return entry.bondState;
+        }
+        missCount.incrementAndGet();
+        if (device == null) {
+            return UNKNOWN;
+        }
+        int bondState = device.getBondState();
+        update(address, null, UNKNOWN, bondState);
+        return bondState;
+    }
+
+    public synchronized void invalidate(String address) {
+        entries.remove(address);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    // Also marks the device as recently used.
+    private synchronized Entry get(String address) {
+        return entries.get(address);
+    }
+
+    private synchronized void update(String address, String name, int deviceClass, int bondState) {
+        Entry current = entries.get(address);
+        entries.put(address, current == null
+                ? new Entry(name, deviceClass, bondState)
+                : current.merge(name, deviceClass, bondState));
+    }
+}
@@ -0,0 +1,174 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import java.util.Arrays;
+
+// Remembers the devices seen by discovery. Every field lives in a primitive array indexed by
+// entry, and entries are located through a LongIntHashIndex keyed by the packed MAC address,
+// so lookups and updates never allocate. When the registry is full the least recently seen
+// device is evicted. Memory is fixed at construction time: about 35 bytes per entry plus
+// 4 bytes per hash slot (two to four slots per entry), so roughly 4.5 MB for 100k devices, not
+// counting the name strings.
+public class DeviceRegistry {
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final short RSSI_UNKNOWN = Short.MIN_VALUE;
+    public static final int NOT_FOUND = LongIntHashIndex.NOT_FOUND;
+
+    private static final int NONE = -1;
+    private final int capacity;
+    private final LongIntHashIndex addressIndex;
+    private final long[] addresses;
+    private final long[] lastSeen;
+    private final short[] rssi;
+    private final byte[] bondState;
+    private final String[] names;
+    // Doubly linked LRU list over entry indexes, head is the most recently seen.
+    private final int[] newer;
+    private final int[] older;
+    private int head = NONE;
+    private int tail = NONE;
+    private int size;
+    private long evictionCount;
+
+    public DeviceRegistry() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public DeviceRegistry(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.addressIndex = new LongIntHashIndex(capacity);
+        this.addresses = new long[capacity];
+        this.lastSeen = new long[capacity];
+        this.rssi = new short[capacity];
+        this.bondState = new byte[capacity];
+        this.names = new String[capacity];
+        this.newer = new int[capacity];
+        this.older = new int[capacity];
+    }
+
+    // Records a sighting. A null name keeps the previously known one. Returns true if the
+    // address was not in the registry before.
+    public synchronized boolean update(long address, long seenAt, short signal, int bond, String name) {
+        int entry = find(address);
+        boolean added = entry == NOT_FOUND;
+        if (added) {
+            entry = size < capacity ? size++ : evictOldest();
+            addresses[entry] = address;
+            names[entry] = null;
+            addressIndex.insert(address, entry);
+        } else {
+            unlink(entry);
+        }
+        lastSeen[entry] = seenAt;
+        rssi[entry] = signal;
+        bondState[entry] = (byte) bond;
+        if (name != null) {
+            names[entry] = name;
+        }
+        linkFirst(entry);
+        return added;
+    }
+
+    public synchronized void updateBondState(long address, int bond) {
+        int entry = find(address);
+        if (entry != NOT_FOUND) {
+            bondState[entry] = (byte) bond;
+        }
+    }
+
+    public synchronized boolean contains(long address) {
+        return find(address) != NOT_FOUND;
+    }
+
+    public synchronized long getLastSeen(long address) {
+        int entry = find(address);
+        return entry == NOT_FOUND ? 0 : lastSeen[entry];
+    }
+
+    public synchronized short getRssi(long address) {
+        int entry = find(address);
+        return entry == NOT_FOUND ? RSSI_UNKNOWN : rssi[entry];
+    }
+
+    public synchronized int getBondState(long address) {
+        int entry = find(address);
+        return entry == NOT_FOUND ? 0 : bondState[entry];
+    }
+
+    public synchronized String getName(long address) {
+        int entry = find(address);
+        return entry == NOT_FOUND ? null : names[entry];
+    }
+
+    // Copies the known addresses, most recently seen first, into the given array and returns
+    // how many were written.
+    public synchronized int copyAddresses(long[] destination) {
+        int count = 0;
+        for (int entry = head; entry != NONE && count < destination.length; entry = older[entry]) {
+            destination[count++] = addresses[entry];
+        }
+        return count;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized void clear() {
+        addressIndex.clear();
+        Arrays.fill(names, null);
+        head = NONE;
+        tail = NONE;
+        size = 0;
+    }
+
+    private int find(long address) {
+        return addressIndex.find(address, addresses);
+    }
+
+    // Removes the least recently seen entry and returns its index for reuse.
+    private int evictOldest() {
+        int entry = tail;
+        unlink(entry);
+        addressIndex.remove(addresses[entry], addresses);
+        evictionCount++;
+        return entry;
+    }
+
+    private void linkFirst(int entry) {
+        older[entry] = head;
+        newer[entry] = NONE;
+        if (head != NONE) {
+            newer[head] = entry;
+        }
+        head = entry;
+        if (tail == NONE) {
+            tail = entry;
+        }
+    }
+
+    private void unlink(int entry) {
+        int previous = newer[entry];
+        int next = older[entry];
+        if (previous != NONE) {
+            older[previous] = next;
+        } else {
+            head = next;
+        }
+        if (next != NONE) {
+            newer[next] = previous;
+        } else {
+            tail = previous;
+        }
+    }
+}
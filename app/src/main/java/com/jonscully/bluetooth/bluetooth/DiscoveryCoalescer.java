@@ -0,0 +1,118 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DiscoveryCoalescer {
+    public static final long DEFAULT_WINDOW_MILLIS = 500;
+
+    private static final String TAG = "DiscoveryCoalescer";
+    private final BluetoothDiscoveryDeviceListener listener;
+    private final Handler handler;
+    private final long windowMillis;
+    // Devices waiting for the next flush, in discovery order.
+    private final Map<String, BluetoothDevice> pending = new LinkedHashMap<>();
+    // Last delivery time of each address, used to drop repeated sightings inside the window.
+    private final Map<String, Long> lastDelivered = new HashMap<>();
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private boolean flushScheduled;
+    private volatile long rawEventCount;
+    private volatile long deliveredEventCount;
+
+    public DiscoveryCoalescer(BluetoothDiscoveryDeviceListener listener, Handler handler, long windowMillis) {
+        this.listener = listener;
+        this.handler = handler;
+        this.windowMillis = windowMillis;
+    }
+
+    public void onDeviceFound(BluetoothDevice device) {
+        rawEventCount++;
+
+        // A non positive window disables coalescing, every sighting goes straight through.
+        if (windowMillis <= 0) {
+            deliveredEventCount++;
+            listener.onDeviceDiscovered(device);
+            return;
+        }
+
+        String address = device.getAddress();
+        if (pending.containsKey(address)) {
+            return;
+        }
+        Long deliveredAt = lastDelivered.get(address);
+        if (deliveredAt != null && SystemClock.elapsedRealtime() - deliveredAt < windowMillis) {
+            return;
+        }
+
+        pending.put(address, device);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            handler.postDelayed(flushTask, windowMillis);
+        }
+    }
+
+    public void flush() {
+        if (flushScheduled) {
+            handler.removeCallbacks(flushTask);
+            flushScheduled = false;
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        pruneDelivered(now);
+        for (String address : pending.keySet()) {
+            lastDelivered.put(address, now);
+        }
+        List<BluetoothDevice> batch = new ArrayList<>(pending.values());
+        pending.clear();
+
+        deliveredEventCount += batch.size();
+        Log.d(TAG, "Delivering " + batch.size() + " devices (raw: " + rawEventCount
+                + ", delivered: " + deliveredEventCount + ")");
+        listener.onDevicesDiscovered(batch);
+    }
+
+    public void cancel() {
+        handler.removeCallbacks(flushTask);
+        flushScheduled = false;
+        pending.clear();
+        lastDelivered.clear();
+    }
+
+    public long getRawEventCount() {
+        return rawEventCount;
+    }
+
+    public long getDeliveredEventCount() {
+        return deliveredEventCount;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    private void pruneDelivered(long now) {
+        Iterator<Long> iterator = lastDelivered.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next() >= windowMillis) {
+                iterator.remove();
+            }
+        }
+    }
+}
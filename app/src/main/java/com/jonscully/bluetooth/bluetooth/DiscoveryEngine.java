@@ -0,0 +1,244 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Process-wide owner of the BluetoothController, its broadcast receiver and the devices found so
+// far, built on the application context. An Activity destroyed by a rotation or by going to the
+// background only detaches its listener: discovery keeps running, and the next attach() hands
+// over the devices found so far right away instead of scanning again. Attach and detach from
+// the main thread, the listeners are called on it.
+public class DiscoveryEngine implements Closeable {
+    public static final int MAX_DEVICES = DeviceRegistry.DEFAULT_CAPACITY;
+
+    private static final String TAG = "DiscoveryEngine";
+    private static DiscoveryEngine instance;
+    private static DeviceCache deviceCache;
+    private final BluetoothAdapter adapter;
+    private final BluetoothController controller;
+    // The one thread writing the device cache for the engine, so the receiver never waits for
+    // the disk.
+    private final ExecutorService cacheExecutor = Executors.newSingleThreadExecutor();
+    private final List<BluetoothDiscoveryDeviceListener> listeners = new CopyOnWriteArrayList<>();
+    // Devices found since the engine started, oldest first.
+    private final Map<String, BluetoothDevice> devices = new LinkedHashMap<String, BluetoothDevice>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BluetoothDevice> eldest) {
+            return size() > MAX_DEVICES;
+        }
+    };
+    private boolean discovering;
+    private long attachCount;
+
+    private final BluetoothDiscoveryDeviceListener fanOut = new BluetoothDiscoveryDeviceListener() {
+        @Override
+        public void onDeviceDiscovered(BluetoothDevice device) {
+            synchronized (DiscoveryEngine.this) {
+                devices.put(device.getAddress(), device);
+            }
+            for (BluetoothDiscoveryDeviceListener listener : listeners) {
+                listener.onDeviceDiscovered(device);
+            }
+        }
+
+        @Override
+        public void onDevicesDiscovered(List<BluetoothDevice> found) {
+            synchronized (DiscoveryEngine.this) {
+                for (BluetoothDevice device : found) {
+                    devices.put(device.getAddress(), device);
+                }
+            }
+            for (BluetoothDiscoveryDeviceListener listener : listeners) {
+                listener.onDevicesDiscovered(found);
+            }
+        }
+
+        @Override
+        public void onDeviceDiscoveryStarted() {
+            synchronized (DiscoveryEngine.this) {
+                discovering = true;
+            }
+            for (BluetoothDiscoveryDeviceListener listener : listeners) {
+                listener.onDeviceDiscoveryStarted();
+            }
+        }
+
+        @Override
+        public void setBluetoothController(BluetoothController bluetooth) {
+        }
+
+        @Override
+        public void onDeviceDiscoveryEnd() {
+            synchronized (DiscoveryEngine.this) {
+                discovering = false;
+            }
+            for (BluetoothDiscoveryDeviceListener listener : listeners) {
+                listener.onDeviceDiscoveryEnd();
+            }
+        }
+
+        @Override
+        public void onBluetoothStatusChanged() {
+            for (BluetoothDiscoveryDeviceListener listener : listeners) {
+                listener.onBluetoothStatusChanged();
+            }
+        }
+
+        @Override
+        public void onBluetoothTurningOn() {
+            for (BluetoothDiscoveryDeviceListener listener : listeners) {
+                listener.onBluetoothTurningOn();
+            }
+        }
+
+        @Override
+        public void onDevicePairingEnded() {
+            for (BluetoothDiscoveryDeviceListener listener : listeners) {
+                listener.onDevicePairingEnded();
+            }
+        }
+    };
+
+    private DiscoveryEngine(Context applicationContext, BluetoothAdapter adapter) {
+        this.adapter = adapter;
+        this.controller = adapter == null ? null : new BluetoothController(applicationContext, adapter, fanOut);
+        if (controller != null) {
+            // Devices found while no Activity is attached are persisted too.
+            controller.setDeviceCache(getDeviceCache(applicationContext), cacheExecutor);
+        }
+    }
+
+    // Creates the engine on the first call, which resolves the adapter and registers the
+    // receiver; call it off the main thread the first time.
+    public static synchronized DiscoveryEngine get(Context context) {
+        if (instance == null) {
+            instance = new DiscoveryEngine(context.getApplicationContext(), BluetoothAdapter.getDefaultAdapter());
+            Log.d(TAG, instance.controller == null ? "No Bluetooth adapter." : "Started.");
+        }
+        return instance;
+    }
+
+    // The device cache shared by the controller and the Activities, opened on the first call.
+    // Opening reads and checks every record and cuts a torn tail, so like get() call it off the
+    // main thread. Null if the file cannot be opened; close() closes it.
+    public static synchronized DeviceCache getDeviceCache(Context context) {
+        if (deviceCache == null) {
+            try {
+                deviceCache = new DeviceCache(new File(context.getFilesDir(), DeviceCache.FILE_NAME));
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to open the device cache.", e);
+            }
+        }
+        return deviceCache;
+    }
+
+    // Runs the device cache writes of the controller. Activities writing the cache post their
+    // writes here too, so they are applied in order with the discovered devices.
+    public Executor getDeviceCacheExecutor() {
+        return cacheExecutor;
+    }
+
+    // Null when the device has no Bluetooth.
+    public BluetoothAdapter getAdapter() {
+        return adapter;
+    }
+
+    // Null when the device has no Bluetooth.
+    public BluetoothController getController() {
+        return controller;
+    }
+
+    // Adds the listener and replays the current state to it: the devices found so far in one
+    // onDevicesDiscovered() call, then onDeviceDiscoveryStarted() if a discovery is running.
+    public void attach(BluetoothDiscoveryDeviceListener listener) {
+        List<BluetoothDevice> snapshot;
+        boolean running;
+        synchronized (this) {
+            attachCount++;
+            snapshot = new ArrayList<>(devices.values());
+            running = discovering;
+        }
+        listener.setBluetoothController(controller);
+        if (!snapshot.isEmpty()) {
+            listener.onDevicesDiscovered(snapshot);
+        }
+        if (running) {
+            listener.onDeviceDiscoveryStarted();
+        }
+        listeners.add(listener);
+        Log.d(TAG, "Attached with " + snapshot.size() + " devices, discovery " + (running ? "running." : "idle."));
+    }
+
+    // Discovery and the receiver keep running with no listener attached.
+    public void detach(BluetoothDiscoveryDeviceListener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized List<BluetoothDevice> getDevices() {
+        return new ArrayList<>(devices.values());
+    }
+
+    public synchronized boolean isDiscovering() {
+        return discovering;
+    }
+
+    public synchronized long getAttachCount() {
+        return attachCount;
+    }
+
+    public int getListenerCount() {
+        return listeners.size();
+    }
+
+    // Unregisters the receiver, closes the device cache and forgets the devices; the next get()
+    // starts over.
+    @Override
+    public void close() {
+        DeviceCache cache = null;
+        synchronized (DiscoveryEngine.class) {
+            if (instance == this) {
+                instance = null;
+                cache = deviceCache;
+                deviceCache = null;
+            }
+        }
+        listeners.clear();
+        if (controller != null) {
+            controller.setDeviceCache(null);
+            controller.close();
+        }
+        if (cache != null) {
+            // Closed after the writes already queued.
+            final DeviceCache closing = cache;
+            cacheExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        closing.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to close the device cache.", e);
+                    }
+                }
+            });
+        }
+        cacheExecutor.shutdown();
+        synchronized (this) {
+            devices.clear();
+            discovering = false;
+        }
+    }
+}
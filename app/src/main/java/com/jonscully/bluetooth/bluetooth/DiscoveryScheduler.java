@@ -0,0 +1,203 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+// Decides when the radio actually runs a discovery cycle. Start requests that arrive while a
+// cycle is running join it instead of restarting it, and in periodic mode the pause between
+// cycles doubles (up to a limit) every time a cycle finds no new device. Periodic cycles are
+// asked for through Radio.requestCycle(), so they wait for the adapter like any other discovery.
+public class DiscoveryScheduler {
+    public static final long DEFAULT_MAX_INTERVAL_MILLIS = 5 * 60 * 1000;
+
+    private static final String TAG = "DiscoveryScheduler";
+    private final Radio radio;
+    private final Handler handler;
+    private final Runnable periodicTask = new Runnable() {
+        @Override
+        public void run() {
+            onPeriodicDue();
+        }
+    };
+    private boolean cycleRunning;
+    // Incremented by every cycle begun, so a late refusal only ends its own cycle.
+    private int cycleId;
+    private long cycleStartedAt;
+    private int cycleNewDevices;
+    private boolean periodic;
+    private long baseIntervalMillis;
+    private long maxIntervalMillis;
+    private long currentIntervalMillis;
+    private long cycleCount;
+    private long coalescedRequestCount;
+    private long totalNewDevices;
+    private long totalRadioMillis;
+    private double lastCycleEfficiency;
+
+    public interface Radio {
+        boolean isDiscovering();
+        boolean startDiscovery();
+        // Asks the owner of the adapter for a cycle; it calls requestDiscovery() once the
+        // adapter can take it, or onRequestFailed() when it cannot.
+        void requestCycle();
+    }
+
+    public DiscoveryScheduler(Radio radio, Handler handler) {
+        this.radio = radio;
+        this.handler = handler;
+    }
+
+    // Starts a cycle now unless one is already running, in which case the request is folded
+    // into it. The radio is queried and started without the lock held, both are binder calls.
+    public void requestDiscovery() {
+        boolean radioDiscovering = radio.isDiscovering();
+        int cycle;
+        synchronized (this) {
+            handler.removeCallbacks(periodicTask);
+            if (cycleRunning || radioDiscovering) {
+                if (!cycleRunning) {
+                    // Someone else started the radio, adopts that cycle.
+                    beginCycle();
+                }
+                coalescedRequestCount++;
+                Log.d(TAG, "Discovery already running, request coalesced.");
+                return;
+            }
+            beginCycle();
+            cycle = cycleId;
+        }
+        if (!radio.startDiscovery()) {
+            onStartRefused(cycle);
+        }
+    }
+
+    // Runs a cycle now and then keeps repeating it, waiting intervalMillis between cycles while
+    // they keep finding devices and backing off up to maxIntervalMillis when they don't.
+    public void startPeriodic(long intervalMillis, long maxIntervalMillis) {
+        synchronized (this) {
+            this.periodic = true;
+            this.baseIntervalMillis = intervalMillis;
+            this.maxIntervalMillis = Math.max(intervalMillis, maxIntervalMillis);
+            this.currentIntervalMillis = intervalMillis;
+        }
+        radio.requestCycle();
+    }
+
+    public synchronized void stopPeriodic() {
+        periodic = false;
+        handler.removeCallbacks(periodicTask);
+    }
+
+    public synchronized boolean isPeriodic() {
+        return periodic;
+    }
+
+    // The adapter is turning off or off: the running cycle ends without its
+    // ACTION_DISCOVERY_FINISHED, so later requests must not be folded into it.
+    public synchronized void onAdapterOff() {
+        if (!cycleRunning) {
+            return;
+        }
+        cycleRunning = false;
+        Log.d(TAG, "Discovery cycle dropped, the adapter is off.");
+        scheduleNextCycle();
+    }
+
+    // The cycle asked for through requestCycle() could not start, tries again later.
+    public synchronized void onRequestFailed() {
+        if (periodic && !cycleRunning) {
+            currentIntervalMillis = Math.min(currentIntervalMillis * 2, maxIntervalMillis);
+            scheduleNextCycle();
+        }
+    }
+
+    // Posted on the handler once the pause between two periodic cycles has passed.
+    void onPeriodicDue() {
+        synchronized (this) {
+            if (!periodic) {
+                return;
+            }
+        }
+        radio.requestCycle();
+    }
+
+    public synchronized void onDeviceFound(boolean newDevice) {
+        if (cycleRunning && newDevice) {
+            cycleNewDevices++;
+        }
+    }
+
+    public synchronized void onCycleFinished() {
+        if (!cycleRunning) {
+            return;
+        }
+        cycleRunning = false;
+        long radioMillis = Math.max(1, SystemClock.elapsedRealtime() - cycleStartedAt);
+        cycleCount++;
+        totalNewDevices += cycleNewDevices;
+        totalRadioMillis += radioMillis;
+        lastCycleEfficiency = cycleNewDevices * 1000.0 / radioMillis;
+
+        if (periodic) {
+            currentIntervalMillis = cycleNewDevices == 0
+                    ? Math.min(currentIntervalMillis * 2, maxIntervalMillis)
+                    : baseIntervalMillis;
+        }
+        Log.d(TAG, "Discovery cycle " + cycleCount + " found " + cycleNewDevices + " new devices in "
+                + radioMillis + " ms (" + lastCycleEfficiency + " devices/s).");
+        scheduleNextCycle();
+    }
+
+    public synchronized boolean isCycleRunning() {
+        return cycleRunning;
+    }
+
+    public synchronized long getCycleCount() {
+        return cycleCount;
+    }
+
+    public synchronized long getCoalescedRequestCount() {
+        return coalescedRequestCount;
+    }
+
+    public synchronized long getCurrentIntervalMillis() {
+        return currentIntervalMillis;
+    }
+
+    // New devices per second of radio time over the last finished cycle.
+    public synchronized double getLastCycleEfficiency() {
+        return lastCycleEfficiency;
+    }
+
+    // New devices per second of radio time over every finished cycle.
+    public synchronized double getOverallEfficiency() {
+        return totalRadioMillis == 0 ? 0 : totalNewDevices * 1000.0 / totalRadioMillis;
+    }
+
+    private synchronized void onStartRefused(int cycle) {
+        if (!cycleRunning || cycle != cycleId) {
+            // Already ended, or replaced, while the radio was being started.
+            return;
+        }
+        cycleRunning = false;
+        if (periodic) {
+            currentIntervalMillis = Math.min(currentIntervalMillis * 2, maxIntervalMillis);
+        }
+        scheduleNextCycle();
+    }
+
+    private void beginCycle() {
+        cycleId++;
+        cycleRunning = true;
+        cycleStartedAt = SystemClock.elapsedRealtime();
+        cycleNewDevices = 0;
+    }
+
+    private void scheduleNextCycle() {
+        if (periodic) {
+            handler.removeCallbacks(periodicTask);
+            handler.postDelayed(periodicTask, currentIntervalMillis);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+// Writes every event it receives to a binary trace file, to be fed back later through
+// EventTraceReplayer. Subscribe it to the BluetoothEventBus to record what the broadcast receiver
+// sees. Records are buffered and written in batches; the file is complete once close() returns,
+// and a crash loses at most the unwritten buffer. A write error stops the recording.
+//
+// Layout: 8 byte header (magic, version, record size), then 64 byte records of
+// timestamp(8) address(8) value(4) rssi(2) type(1) nameLength(1) name(40). value is the adapter
+// state, the bond state or the device class depending on the type.
+public class EventTraceRecorder implements BluetoothEventSink, Closeable {
+    public static final int RECORD_SIZE = 64;
+    public static final int MAX_NAME_BYTES = DeviceCache.MAX_NAME_BYTES;
+
+    static final int MAGIC = 0x42545452; // "BTTR"
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final byte TYPE_DEVICE_FOUND = 1;
+    static final byte TYPE_DISCOVERY_STARTED = 2;
+    static final byte TYPE_DISCOVERY_FINISHED = 3;
+    static final byte TYPE_ADAPTER_STATE_CHANGED = 4;
+    static final byte TYPE_BOND_STATE_CHANGED = 5;
+    static final byte TYPE_NAME_CHANGED = 6;
+    static final byte TYPE_CLASS_CHANGED = 7;
+
+    private static final String TAG = "EventTraceRecorder";
+    private static final int BUFFER_RECORDS = 256;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] NO_NAME = new byte[0];
+
+    private final File file;
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * BUFFER_RECORDS);
+    private long recordCount;
+    private boolean closed;
+
+    public EventTraceRecorder(File file) throws IOException {
+        this.file = file;
+        this.out = new FileOutputStream(file);
+        this.channel = out.getChannel();
+        buffer.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE);
+    }
+
+    @Override
+    public synchronized void onDeviceFound(long timestamp, long address, String name, short rssi, int deviceClass) {
+        append(TYPE_DEVICE_FOUND, timestamp, address, deviceClass, rssi, name);
+    }
+
+    @Override
+    public synchronized void onNameChanged(long timestamp, long address, String name) {
+        append(TYPE_NAME_CHANGED, timestamp, address, 0, (short) 0, name);
+    }
+
+    @Override
+    public synchronized void onClassChanged(long timestamp, long address, int deviceClass) {
+        append(TYPE_CLASS_CHANGED, timestamp, address, deviceClass, (short) 0, null);
+    }
+
+    @Override
+    public synchronized void onDiscoveryStarted(long timestamp) {
+        append(TYPE_DISCOVERY_STARTED, timestamp, 0, 0, (short) 0, null);
+    }
+
+    @Override
+    public synchronized void onDiscoveryFinished(long timestamp) {
+        append(TYPE_DISCOVERY_FINISHED, timestamp, 0, 0, (short) 0, null);
+    }
+
+    @Override
+    public synchronized void onAdapterStateChanged(long timestamp, int state) {
+        append(TYPE_ADAPTER_STATE_CHANGED, timestamp, 0, state, (short) 0, null);
+    }
+
+    @Override
+    public synchronized void onBondStateChanged(long timestamp, long address, int bondState) {
+        append(TYPE_BOND_STATE_CHANGED, timestamp, address, bondState, (short) 0, null);
+    }
+
+    public synchronized void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    public synchronized boolean isRecording() {
+        return !closed;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            closed = true;
+            out.close();
+        }
+    }
+
+    private void append(byte type, long timestamp, long address, int value, short rssi, String name) {
+        if (closed) {
+            return;
+        }
+        try {
+            if (buffer.remaining() < RECORD_SIZE) {
+                flush();
+            }
+            byte[] nameBytes = name == null ? NO_NAME : name.getBytes(UTF_8);
+            int nameLength = DeviceCache.truncatedLength(nameBytes);
+            buffer.putLong(timestamp);
+            buffer.putLong(address);
+            buffer.putInt(value);
+            buffer.putShort(rssi);
+            buffer.put(type);
+            buffer.put((byte) nameLength);
+            buffer.put(nameBytes, 0, nameLength);
+            for (int i = nameLength; i < MAX_NAME_BYTES; i++) {
+                buffer.put((byte) 0);
+            }
+            recordCount++;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write the trace, recording stopped.", e);
+            closed = true;
+            try {
+                out.close();
+            } catch (IOException ignored) {
+                // Already failing.
+            }
+        }
+    }
+}
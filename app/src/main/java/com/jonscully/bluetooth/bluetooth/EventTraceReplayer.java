@@ -0,0 +1,126 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+// Reads a trace written by EventTraceRecorder through a memory mapping and feeds its events to a
+// sink, with their original timestamps. The sink can be a whole BluetoothEventBus, so the same
+// consumers as on the device see the events, on a device or on a plain JVM. A torn last record is
+// ignored. Not thread safe, replay from one thread at a time.
+public class EventTraceReplayer implements Closeable {
+    // Speed for replay() that does not wait between events.
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int RECORD_SIZE = EventTraceRecorder.RECORD_SIZE;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer records;
+    private final int recordCount;
+    private final byte[] name = new byte[EventTraceRecorder.MAX_NAME_BYTES];
+
+    public EventTraceReplayer(File file) throws IOException {
+        this.raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(EventTraceRecorder.HEADER_SIZE);
+        if (channel.size() < EventTraceRecorder.HEADER_SIZE || channel.read(header, 0) < EventTraceRecorder.HEADER_SIZE
+                || header.getInt(0) != EventTraceRecorder.MAGIC || header.getShort(4) != EventTraceRecorder.VERSION
+                || header.getShort(6) != RECORD_SIZE) {
+            raf.close();
+            throw new IOException("Not an event trace: " + file);
+        }
+        long available = (channel.size() - EventTraceRecorder.HEADER_SIZE) / RECORD_SIZE;
+        if (available > Integer.MAX_VALUE / RECORD_SIZE) {
+            raf.close();
+            throw new IOException("Trace too large: " + file);
+        }
+        this.recordCount = (int) available;
+        this.records = channel.map(FileChannel.MapMode.READ_ONLY, EventTraceRecorder.HEADER_SIZE, available * RECORD_SIZE);
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    // Time between the first and the last event.
+    public long getDurationMillis() {
+        return recordCount == 0 ? 0 : records.getLong((recordCount - 1) * RECORD_SIZE) - records.getLong(0);
+    }
+
+    // Delivers every event to the sink on the calling thread and returns how many were delivered.
+    // With a positive speed the gaps between events are reproduced, divided by speed (1 is real
+    // time); with AS_FAST_AS_POSSIBLE they are skipped.
+    public long replay(BluetoothEventSink sink, double speed) throws InterruptedException {
+        long startNanos = System.nanoTime();
+        long firstTimestamp = recordCount == 0 ? 0 : records.getLong(0);
+        long delivered = 0;
+        for (int i = 0; i < recordCount; i++) {
+            int offset = i * RECORD_SIZE;
+            long timestamp = records.getLong(offset);
+            if (speed > 0) {
+                long dueNanos = startNanos + (long) ((timestamp - firstTimestamp) * 1000000L / speed);
+                long waitNanos = dueNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                }
+            }
+            if (deliver(sink, offset, timestamp)) {
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    private boolean deliver(BluetoothEventSink sink, int offset, long timestamp) {
+        long address = records.getLong(offset + 8);
+        int value = records.getInt(offset + 16);
+        switch (records.get(offset + 22)) {
+            case EventTraceRecorder.TYPE_DEVICE_FOUND:
+                short rssi = records.getShort(offset + 20);
+                sink.onDeviceFound(timestamp, address, readName(offset), rssi, value);
+                return true;
+            case EventTraceRecorder.TYPE_DISCOVERY_STARTED:
+                sink.onDiscoveryStarted(timestamp);
+                return true;
+            case EventTraceRecorder.TYPE_DISCOVERY_FINISHED:
+                sink.onDiscoveryFinished(timestamp);
+                return true;
+            case EventTraceRecorder.TYPE_ADAPTER_STATE_CHANGED:
+                sink.onAdapterStateChanged(timestamp, value);
+                return true;
+            case EventTraceRecorder.TYPE_BOND_STATE_CHANGED:
+                sink.onBondStateChanged(timestamp, address, value);
+                return true;
+            case EventTraceRecorder.TYPE_NAME_CHANGED:
+                sink.onNameChanged(timestamp, address, readName(offset));
+                return true;
+            case EventTraceRecorder.TYPE_CLASS_CHANGED:
+                sink.onClassChanged(timestamp, address, value);
+                return true;
+            default:
+                // Unknown record type, skipped.
+                return false;
+        }
+    }
+
+    private String readName(int offset) {
+        int nameLength = Math.min(records.get(offset + 23) & 0xFF, name.length);
+        if (nameLength == 0) {
+            return null;
+        }
+        for (int i = 0; i < nameLength; i++) {
+            name[i] = records.get(offset + 24 + i);
+        }
+        return new String(name, 0, nameLength, UTF_8);
+    }
+}
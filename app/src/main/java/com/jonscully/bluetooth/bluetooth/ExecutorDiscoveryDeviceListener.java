@@ -0,0 +1,92 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+public class ExecutorDiscoveryDeviceListener implements BluetoothDiscoveryDeviceListener {
+    private final BluetoothDiscoveryDeviceListener listener;
+    private final Executor executor;
+
+    public ExecutorDiscoveryDeviceListener(BluetoothDiscoveryDeviceListener listener, Executor executor) {
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    @Override
+    public void onDeviceDiscovered(final BluetoothDevice device) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onDeviceDiscovered(device);
+            }
+        });
+    }
+
+    @Override
+    public void onDevicesDiscovered(final List<BluetoothDevice> devices) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onDevicesDiscovered(devices);
+            }
+        });
+    }
+
+    @Override
+    public void onDeviceDiscoveryStarted() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onDeviceDiscoveryStarted();
+            }
+        });
+    }
+
+    @Override
+    public void setBluetoothController(BluetoothController bluetooth) {
+        // Wiring happens once at construction time, no need to hop threads.
+        listener.setBluetoothController(bluetooth);
+    }
+
+    @Override
+    public void onDeviceDiscoveryEnd() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onDeviceDiscoveryEnd();
+            }
+        });
+    }
+
+    @Override
+    public void onBluetoothStatusChanged() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onBluetoothStatusChanged();
+            }
+        });
+    }
+
+    @Override
+    public void onBluetoothTurningOn() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onBluetoothTurningOn();
+            }
+        });
+    }
+
+    @Override
+    public void onDevicePairingEnded() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onDevicePairingEnded();
+            }
+        });
+    }
+}
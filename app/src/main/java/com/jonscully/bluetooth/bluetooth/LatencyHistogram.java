@@ -0,0 +1,135 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free log-linear histogram with fixed memory. Values are grouped by power of two, and each
+// power of two is split into SUB_BUCKETS linear buckets, so a recorded value is reported within
+// about 6% of its true value. Memory is BUCKETS longs (about 5 KB) whatever the number of samples.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    public Snapshot snapshot() {
+        return snapshot(false);
+    }
+
+    // Takes a snapshot and clears the histogram. Samples recorded concurrently end up in either
+    // this snapshot or the next one.
+    public Snapshot snapshotAndReset() {
+        return snapshot(true);
+    }
+
+    public void reset() {
+        snapshot(true);
+    }
+
+    private Snapshot snapshot(boolean reset) {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+        }
+        long total = 0;
+        for (long bucketCount : copy) {
+            total += bucketCount;
+        }
+        long snapshotSum = reset ? sum.getAndSet(0) : sum.get();
+        long snapshotMax = reset ? max.getAndSet(0) : max.get();
+        if (reset) {
+            count.set(0);
+        }
+        return new Snapshot(copy, total, snapshotSum, snapshotMax);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (value >>> (magnitude - 1)) & (SUB_BUCKETS - 1);
+        return magnitude * SUB_BUCKETS + subBucket;
+    }
+
+    // Smallest value that falls in the bucket.
+    static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = bucket / SUB_BUCKETS;
+        long subBucket = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS | subBucket) << (magnitude - 1);
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        // Value at the given percentile (0 to 100), as the midpoint of the bucket it falls in,
+        // capped at the maximum recorded value.
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            if (percentile >= 100) {
+                return max;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank) {
+                    long low = lowerBoundOf(bucket);
+                    long high = bucket + 1 < counts.length ? lowerBoundOf(bucket + 1) - 1 : Long.MAX_VALUE;
+                    return Math.min(max, low + (high - low) / 2);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + (long) getMean() + " p50=" + getPercentile(50)
+                    + " p90=" + getPercentile(90) + " p99=" + getPercentile(99) + " max=" + max;
+        }
+    }
+}
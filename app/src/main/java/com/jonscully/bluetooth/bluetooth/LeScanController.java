@@ -0,0 +1,132 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// BLE scan path next to classic discovery. With a report delay the controller lets the chip
+// batch results in hardware and forwards each batch to its ResultSink, which in the app is the
+// BroadcastReceiverDelegator: LE results then go through the same coalescer, event bus and
+// pipeline as ACTION_FOUND.
+public class LeScanController {
+    private static final String TAG = "LeScanController";
+    private final Scanner scanner;
+    private final ResultSink sink;
+    private final ScanCallback scanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            onResults(Collections.singletonList(result));
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            onResults(results);
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.d(TAG, "LE scan failed with error " + errorCode);
+            scanning = false;
+        }
+    };
+    private volatile boolean scanning;
+    private final AtomicLong resultCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+
+    // Seam over BluetoothLeScanner so the controller can be driven by a fake scanner.
+    public interface Scanner {
+        void startScan(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback);
+        void stopScan(ScanCallback callback);
+    }
+
+    // Called on the thread of the scan callbacks.
+    public interface ResultSink {
+        void onLeScanStarted();
+        void onLeScanResults(List<ScanResult> results);
+        void onLeScanStopped();
+    }
+
+    public LeScanController(Scanner scanner, ResultSink sink) {
+        this.scanner = scanner;
+        this.sink = sink;
+    }
+
+    public static Scanner wrap(final BluetoothLeScanner leScanner) {
+        return new Scanner() {
+            @Override
+            public void startScan(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
+                leScanner.startScan(filters, settings, callback);
+            }
+
+            @Override
+            public void stopScan(ScanCallback callback) {
+                leScanner.stopScan(callback);
+            }
+        };
+    }
+
+    // scanMode is one of the ScanSettings.SCAN_MODE_* constants. A positive reportDelayMillis
+    // enables hardware batching, results are then delivered at most once per delay.
+    public synchronized void start(int scanMode, long reportDelayMillis, List<ScanFilter> filters) {
+        if (scanning) {
+            stop();
+        }
+        ScanSettings settings = buildSettings(scanMode, reportDelayMillis);
+        Log.d(TAG, "Starting LE scan, mode " + scanMode + ", report delay " + reportDelayMillis + " ms.");
+        scanner.startScan(filters, settings, scanCallback);
+        scanning = true;
+        sink.onLeScanStarted();
+    }
+
+    public synchronized void stop() {
+        if (!scanning) {
+            return;
+        }
+        try {
+            scanner.stopScan(scanCallback);
+        } catch (IllegalStateException e) {
+            // The adapter was turned off, the scan is already gone.
+            Log.d(TAG, "Unable to stop LE scan: " + e.getMessage());
+        }
+        scanning = false;
+        sink.onLeScanStopped();
+    }
+
+    public boolean isScanning() {
+        return scanning;
+    }
+
+    public long getResultCount() {
+        return resultCount.get();
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    // Overridden by JVM tests, where the android.jar stubs make ScanSettings.Builder return null.
+    ScanSettings buildSettings(int scanMode, long reportDelayMillis) {
+        return new ScanSettings.Builder()
+                .setScanMode(scanMode)
+                .setReportDelay(reportDelayMillis)
+                .build();
+    }
+
+    // Exposed for tests driving the controller through a fake scanner.
+    ScanCallback getScanCallback() {
+        return scanCallback;
+    }
+
+    private void onResults(List<ScanResult> results) {
+        resultCount.addAndGet(results.size());
+        batchCount.incrementAndGet();
+        sink.onLeScanResults(results);
+    }
+}
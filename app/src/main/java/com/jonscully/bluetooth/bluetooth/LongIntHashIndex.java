@@ -0,0 +1,88 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import java.util.Arrays;
+
+// Open addressing table from a packed MAC address (see MacAddress) to the index of its entry in
+// the owner's arrays, shared by DeviceRegistry, DeviceIndex and RssiEstimator. Linear probing
+// over a power of two table of two to four slots per entry, with backward shift deletion so
+// lookups never stop early on a freed slot. The keys are not copied here: lookups and removals
+// read them from the owner's address array, indexed by entry, so a slot costs 4 bytes.
+// Not thread safe, the owners call it under their own lock.
+class LongIntHashIndex {
+    static final int NOT_FOUND = -1;
+
+    private int mask;
+    // Hash slot -> entry index + 1, zero meaning empty.
+    private int[] slots;
+
+    LongIntHashIndex(int capacity) {
+        allocate(capacity);
+    }
+
+    // Entry of the key, or NOT_FOUND.
+    int find(long key, long[] keys) {
+        for (int slot = hash(key); ; slot = (slot + 1) & mask) {
+            int value = slots[slot];
+            if (value == 0) {
+                return NOT_FOUND;
+            }
+            if (keys[value - 1] == key) {
+                return value - 1;
+            }
+        }
+    }
+
+    // The key must not be in the table, and the table must have room for it.
+    void insert(long key, int entry) {
+        int slot = hash(key);
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = entry + 1;
+    }
+
+    // The key must be in the table.
+    void remove(long key, long[] keys) {
+        int slot = hash(key);
+        while (keys[slots[slot] - 1] != key) {
+            slot = (slot + 1) & mask;
+        }
+        int free = slot;
+        for (int next = (free + 1) & mask; slots[next] != 0; next = (next + 1) & mask) {
+            int home = hash(keys[slots[next] - 1]);
+            // Moves the entry only if its home slot is not between the free slot and itself.
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                slots[free] = slots[next];
+                free = next;
+            }
+        }
+        slots[free] = 0;
+    }
+
+    // Sizes the table for capacity entries and inserts the entries 0 to count - 1 again.
+    void resize(int capacity, long[] keys, int count) {
+        allocate(capacity);
+        for (int entry = 0; entry < count; entry++) {
+            insert(keys[entry], entry);
+        }
+    }
+
+    void clear() {
+        Arrays.fill(slots, 0);
+    }
+
+    int slotCount() {
+        return slots.length;
+    }
+
+    private void allocate(int capacity) {
+        int slotCount = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        mask = slotCount - 1;
+        slots = new int[slotCount];
+    }
+
+    private int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+}
@@ -0,0 +1,47 @@
+package com.jonscully.bluetooth.bluetooth;
+
+public final class MacAddress {
+    public static final long INVALID = -1L;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private MacAddress() {
+    }
+
+    // Packs an "AA:BB:CC:DD:EE:FF" address into the low 48 bits of a long without allocating.
+    // Returns INVALID if the text is not a well formed address.
+    public static long toLong(CharSequence address) {
+        if (address == null || address.length() != 17) {
+            return INVALID;
+        }
+        long value = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return INVALID;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return INVALID;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    public static String toString(long address) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int octet = (int) (address >>> (40 - i * 8)) & 0xFF;
+            chars[i * 3] = HEX_DIGITS[octet >>> 4];
+            chars[i * 3 + 1] = HEX_DIGITS[octet & 0x0F];
+            if (i < 5) {
+                chars[i * 3 + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+}
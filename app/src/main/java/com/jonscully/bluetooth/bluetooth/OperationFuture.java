@@ -0,0 +1,146 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Outcome of a queued operation, completed once by the queue that owns it. Subclasses say how a
+// cancel reaches the queue and how their listener is called, see BondFuture and GattFuture.
+public abstract class OperationFuture<V, L> implements Future<V> {
+    private final String description;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<L> listeners = new ArrayList<>();
+    private final List<Executor> executors = new ArrayList<>();
+    private V value;
+    private Throwable failure;
+    private boolean cancelled;
+
+    // description names the operation in the timeout and cancellation messages.
+    protected OperationFuture(String description) {
+        this.description = description;
+    }
+
+    // Calls the listener on the executor once the operation completes, or right away if it
+    // already has.
+    public void addListener(L listener, Executor executor) {
+        synchronized (this) {
+            if (!isDone()) {
+                listeners.add(listener);
+                executors.add(executor);
+                return;
+            }
+        }
+        dispatch(listener, executor);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return withdraw() && completeCancelled();
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException(description + " still in progress");
+        }
+        return result();
+    }
+
+    // Removes the operation from its queue, false once it has started.
+    protected abstract boolean withdraw();
+
+    // Called on the listener's executor, error is null on success.
+    protected abstract void onResult(L listener, V value, Throwable error);
+
+    protected boolean complete(V result) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            value = result;
+            done.countDown();
+        }
+        notifyListeners();
+        return true;
+    }
+
+    protected boolean fail(Throwable error) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            failure = error;
+            done.countDown();
+        }
+        notifyListeners();
+        return true;
+    }
+
+    private boolean completeCancelled() {
+        synchronized (this) {
+            cancelled = true;
+        }
+        return fail(new CancellationException(description + " cancelled"));
+    }
+
+    private synchronized V result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException(description + " cancelled");
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+
+    private void notifyListeners() {
+        List<L> pendingListeners;
+        List<Executor> pendingExecutors;
+        synchronized (this) {
+            pendingListeners = new ArrayList<>(listeners);
+            pendingExecutors = new ArrayList<>(executors);
+            listeners.clear();
+            executors.clear();
+        }
+        for (int i = 0; i < pendingListeners.size(); i++) {
+            dispatch(pendingListeners.get(i), pendingExecutors.get(i));
+        }
+    }
+
+    private void dispatch(final L listener, Executor executor) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Throwable error;
+                V result;
+                synchronized (OperationFuture.this) {
+                    error = failure;
+                    result = value;
+                }
+                onResult(listener, result, error);
+            }
+        });
+    }
+}
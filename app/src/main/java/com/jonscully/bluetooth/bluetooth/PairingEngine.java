@@ -0,0 +1,447 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+// Queues bond requests and runs up to maxConcurrent of them at a time. Each request is answered
+// through a BondFuture completed from ACTION_BOND_STATE_CHANGED; a bond that is refused, times
+// out or fails for a transient reason is retried up to maxRetries times, after a delay doubling
+// from retryDelayMillis, before its future fails. A bond declined by either user fails at once
+// with a rejected PairingException. Devices already bonded complete right away.
+//
+// Bond state reads, createBond() and the future completions run after the lock is released, so
+// a listener or a slow Bluetooth service never holds up the broadcast thread behind it.
+public class PairingEngine {
+    public static final int DEFAULT_MAX_CONCURRENT = 1;
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30 * 1000;
+    public static final int DEFAULT_MAX_RETRIES = 1;
+    public static final long DEFAULT_RETRY_DELAY_MILLIS = 1000;
+    // Hidden BluetoothDevice.EXTRA_REASON of a BOND_NONE broadcast, and the values it takes.
+    public static final String EXTRA_REASON = "android.bluetooth.device.extra.REASON";
+    public static final int REASON_UNKNOWN = -1;
+    static final int REASON_AUTH_FAILED = 1;
+    static final int REASON_AUTH_REJECTED = 2;
+    static final int REASON_AUTH_CANCELED = 3;
+    static final int REASON_REMOTE_DEVICE_DOWN = 4;
+    static final int REASON_DISCOVERY_IN_PROGRESS = 5;
+    static final int REASON_AUTH_TIMEOUT = 6;
+    static final int REASON_REPEATED_ATTEMPTS = 7;
+    static final int REASON_REMOTE_AUTH_CANCELED = 8;
+
+    private static final String TAG = "PairingEngine";
+    private final Bonder bonder;
+    private final Handler handler;
+    private final int queueCapacity;
+    private final ArrayDeque<Request> queue = new ArrayDeque<>();
+    private final Map<String, Request> active = new HashMap<>();
+    // Failed requests waiting for their retry delay.
+    private final List<Request> retrying = new ArrayList<>();
+    // Work decided under the lock and done after releasing it, see runPending().
+    private final List<Request> starting = new ArrayList<>();
+    private final List<Runnable> completions = new ArrayList<>();
+    private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+    private boolean paused;
+    private long bondedCount;
+    private long failedCount;
+    private long retryCount;
+    private long totalLatencyMillis;
+    private long maxLatencyMillis;
+
+    public interface Bonder {
+        int getBondState(BluetoothDevice device);
+        boolean createBond(BluetoothDevice device);
+        // The attempt ended without a bond broadcast, after a refused createBond() or a timeout.
+        void onAttemptAbandoned(BluetoothDevice device);
+    }
+
+    private class Request implements Runnable {
+        final String address;
+        final BluetoothDevice device;
+        final BondFuture future;
+        final long queuedAt = SystemClock.elapsedRealtime();
+        int attempts;
+        final Runnable retryTask = new Runnable() {
+            @Override
+            public void run() {
+                onRetryDue(address);
+            }
+        };
+
+        Request(String address, BluetoothDevice device) {
+            this.address = address;
+            this.device = device;
+            this.future = new BondFuture(address, device, PairingEngine.this);
+        }
+
+        // Timeout of the current attempt.
+        @Override
+        public void run() {
+            onAttemptTimedOut(address);
+        }
+    }
+
+    public PairingEngine(Bonder bonder, Handler handler, int queueCapacity) {
+        this.bonder = bonder;
+        this.handler = handler;
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void configure(int maxConcurrent, long timeoutMillis, int maxRetries) {
+        synchronized (this) {
+            this.maxConcurrent = Math.max(1, maxConcurrent);
+            this.timeoutMillis = timeoutMillis;
+            this.maxRetries = Math.max(0, maxRetries);
+            startPending();
+        }
+        runPending();
+    }
+
+    // Delay before the first retry of a request, doubled for each further retry.
+    public synchronized void setRetryDelayMillis(long retryDelayMillis) {
+        this.retryDelayMillis = Math.max(0, retryDelayMillis);
+    }
+
+    // While paused requests are queued but no bond is started, the ones already started go on.
+    public void setPaused(boolean paused) {
+        synchronized (this) {
+            if (this.paused == paused) {
+                return;
+            }
+            this.paused = paused;
+            Log.d(TAG, paused ? "Paused." : "Resumed.");
+            startPending();
+        }
+        runPending();
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    // Requests for a device already queued, bonding or waiting to retry share the same future.
+    // When the queue is full the returned future has already failed.
+    public BondFuture pair(BluetoothDevice device) {
+        return pair(device.getAddress(), device);
+    }
+
+    BondFuture pair(String address, BluetoothDevice device) {
+        synchronized (this) {
+            Request existing = findRequest(address);
+            if (existing != null) {
+                return existing.future;
+            }
+        }
+        // Can be a binder call, made without the lock.
+        int bondState = bonder.getBondState(device);
+        BondFuture future;
+        synchronized (this) {
+            future = enqueue(address, device, bondState);
+        }
+        runPending();
+        return future;
+    }
+
+    private BondFuture enqueue(String address, BluetoothDevice device, int bondState) {
+        Request existing = findRequest(address);
+        if (existing != null) {
+            // Queued by another caller while the bond state was read.
+            return existing.future;
+        }
+
+        Request request = new Request(address, device);
+        if (bondState == BluetoothDevice.BOND_BONDED) {
+            // createBond() would refuse it, which is not a failure.
+            Log.d(TAG, "Already bonded with " + address + ".");
+            completeLater(request.future, null);
+            return request.future;
+        }
+        if (queue.size() >= queueCapacity) {
+            completeLater(request.future, new PairingException("Pairing queue full (" + queueCapacity + " requests)"));
+            failedCount++;
+            return request.future;
+        }
+        queue.addLast(request);
+        startPending();
+        return request.future;
+    }
+
+    // reason is the EXTRA_REASON of the broadcast, or REASON_UNKNOWN.
+    public void onBondStateChanged(BluetoothDevice device, int bondState, int reason) {
+        onBondStateChanged(device.getAddress(), bondState, reason);
+    }
+
+    void onBondStateChanged(String address, int bondState, int reason) {
+        synchronized (this) {
+            Request request = active.get(address);
+            if (request == null) {
+                return;
+            }
+            switch (bondState) {
+                case BluetoothDevice.BOND_BONDED:
+                    finish(request);
+                    onBonded(request);
+                    startPending();
+                    break;
+                case BluetoothDevice.BOND_NONE:
+                    if (isTransient(reason)) {
+                        onAttemptFailed(request, new PairingException("Bond with " + address
+                                + " failed, reason " + reason));
+                    } else {
+                        // Asking again would only show the dialog the user just dismissed.
+                        finish(request);
+                        Log.d(TAG, "Bond with " + address + " rejected, reason " + reason + ".");
+                        failedCount++;
+                        completeLater(request.future, new PairingException("Bond with " + address
+                                + " was rejected", true));
+                    }
+                    startPending();
+                    break;
+                default:
+                    // Still bonding.
+                    break;
+            }
+        }
+        runPending();
+    }
+
+    // Posted on the handler timeoutMillis after each createBond().
+    void onAttemptTimedOut(String address) {
+        synchronized (this) {
+            Request request = active.get(address);
+            if (request != null) {
+                bonder.onAttemptAbandoned(request.device);
+                onAttemptFailed(request, new TimeoutException("No bond with " + address
+                        + " after " + timeoutMillis + " ms"));
+                startPending();
+            }
+        }
+        runPending();
+    }
+
+    // Posted on the handler once the retry delay of a failed request has passed.
+    void onRetryDue(String address) {
+        synchronized (this) {
+            for (Request request : retrying) {
+                if (request.address.equals(address)) {
+                    retrying.remove(request);
+                    // Goes back to the front so a retry does not wait behind the whole queue.
+                    queue.addFirst(request);
+                    startPending();
+                    break;
+                }
+            }
+        }
+        runPending();
+    }
+
+    synchronized boolean cancel(BondFuture future) {
+        Iterator<Request> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().future == future) {
+                iterator.remove();
+                return true;
+            }
+        }
+        for (Request request : retrying) {
+            if (request.future == future) {
+                retrying.remove(request);
+                handler.removeCallbacks(request.retryTask);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized boolean isIdle() {
+        return queue.isEmpty() && active.isEmpty() && retrying.isEmpty();
+    }
+
+    public synchronized int getActiveCount() {
+        return active.size();
+    }
+
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    public synchronized int getRetryingCount() {
+        return retrying.size();
+    }
+
+    public synchronized long getBondedCount() {
+        return bondedCount;
+    }
+
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    public synchronized long getRetryCount() {
+        return retryCount;
+    }
+
+    // Mean time from request to BOND_BONDED, queueing and retries included.
+    public synchronized long getMeanLatencyMillis() {
+        return bondedCount == 0 ? 0 : totalLatencyMillis / bondedCount;
+    }
+
+    public synchronized long getMaxLatencyMillis() {
+        return maxLatencyMillis;
+    }
+
+    // Takes the slots of the requests to start; their bond state is checked and createBond()
+    // called in runPending().
+    private void startPending() {
+        while (!paused && active.size() < maxConcurrent && !queue.isEmpty()) {
+            Request request = queue.pollFirst();
+            request.attempts++;
+            active.put(request.address, request);
+            starting.add(request);
+        }
+    }
+
+    // Called without the lock at the end of every entry point. A refused bond frees its slot
+    // for the next turn of this loop, so a run of refused bonds does not recurse.
+    private void runPending() {
+        while (true) {
+            List<Runnable> done;
+            List<Request> bonds;
+            synchronized (this) {
+                if (completions.isEmpty() && starting.isEmpty()) {
+                    return;
+                }
+                done = new ArrayList<>(completions);
+                bonds = new ArrayList<>(starting);
+                completions.clear();
+                starting.clear();
+            }
+            for (Runnable completion : done) {
+                completion.run();
+            }
+            for (Request request : bonds) {
+                // Bonded while queued, or the BOND_BONDED broadcast of the last attempt was missed.
+                boolean bonded = bonder.getBondState(request.device) == BluetoothDevice.BOND_BONDED;
+                boolean accepted = false;
+                if (!bonded) {
+                    try {
+                        accepted = bonder.createBond(request.device);
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "createBond failed for " + request.address + ".", e);
+                    }
+                }
+                synchronized (this) {
+                    onBondStarted(request, bonded, accepted);
+                }
+            }
+        }
+    }
+
+    private void onBondStarted(Request request, boolean bonded, boolean accepted) {
+        if (active.get(request.address) != request) {
+            // The bond ended while createBond() was running.
+            return;
+        }
+        if (bonded) {
+            finish(request);
+            onBonded(request);
+            startPending();
+            return;
+        }
+        if (!accepted) {
+            bonder.onAttemptAbandoned(request.device);
+            onAttemptFailed(request, new PairingException("createBond refused for " + request.address));
+            startPending();
+            return;
+        }
+        handler.postDelayed(request, timeoutMillis);
+    }
+
+    // Remote device out of reach, or the stack busy or throttling: worth asking again.
+    private static boolean isTransient(int reason) {
+        switch (reason) {
+            case REASON_REMOTE_DEVICE_DOWN:
+            case REASON_DISCOVERY_IN_PROGRESS:
+            case REASON_AUTH_TIMEOUT:
+            case REASON_REPEATED_ATTEMPTS:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Completes the future with BOND_BONDED, or fails it with the error, once the lock is released.
+    private void completeLater(final BondFuture future, final Exception error) {
+        completions.add(new Runnable() {
+            @Override
+            public void run() {
+                if (error == null) {
+                    future.complete(BluetoothDevice.BOND_BONDED);
+                } else {
+                    future.fail(error);
+                }
+            }
+        });
+    }
+
+    private void onBonded(Request request) {
+        long latency = SystemClock.elapsedRealtime() - request.queuedAt;
+        bondedCount++;
+        totalLatencyMillis += latency;
+        maxLatencyMillis = Math.max(maxLatencyMillis, latency);
+        Log.d(TAG, "Bonded with " + request.address + " in " + latency + " ms.");
+        completeLater(request.future, null);
+    }
+
+    private void onAttemptFailed(Request request, Exception error) {
+        finish(request);
+        if (request.attempts <= maxRetries) {
+            long delay = retryDelayMillis << Math.min(request.attempts - 1, 16);
+            Log.d(TAG, "Retrying bond with " + request.address + " in " + delay + " ms: " + error.getMessage());
+            retryCount++;
+            retrying.add(request);
+            handler.postDelayed(request.retryTask, delay);
+        } else {
+            Log.d(TAG, "Giving up bond with " + request.address + ": " + error.getMessage());
+            failedCount++;
+            completeLater(request.future, error);
+        }
+    }
+
+    private void finish(Request request) {
+        handler.removeCallbacks(request);
+        active.remove(request.address);
+    }
+
+    private Request findRequest(String address) {
+        Request request = active.get(address);
+        return request != null ? request : findWaiting(address);
+    }
+
+    private Request findWaiting(String address) {
+        for (Request request : queue) {
+            if (request.address.equals(address)) {
+                return request;
+            }
+        }
+        for (Request request : retrying) {
+            if (request.address.equals(address)) {
+                return request;
+            }
+        }
+        return null;
+    }
+}
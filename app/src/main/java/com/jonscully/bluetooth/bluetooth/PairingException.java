@@ -0,0 +1,21 @@
+package com.jonscully.bluetooth.bluetooth;
+
+public class PairingException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean rejected;
+
+    public PairingException(String message) {
+        this(message, false);
+    }
+
+    public PairingException(String message, boolean rejected) {
+        super(message);
+        this.rejected = rejected;
+    }
+
+    // The user, on this device or the remote one, declined the bond. It is not retried.
+    public boolean isRejected() {
+        return rejected;
+    }
+}
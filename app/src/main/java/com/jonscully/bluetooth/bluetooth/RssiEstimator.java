@@ -0,0 +1,221 @@
+package com.jonscully.bluetooth.bluetooth;
+
+// Smoothed signal strength per device, from a scalar Kalman filter updated on every sighting.
+// Raw ACTION_FOUND RSSI readings jump by several dB between sightings; the filter estimate
+// follows the trend, and its process noise grows with the time since the last reading so a
+// device that moves is picked up again quickly.
+//
+// State lives in primitive arrays reached through a LongIntHashIndex keyed by the packed
+// address, so updates and queries never allocate. When the arrays are full the device with the
+// oldest reading is replaced, which costs a scan but only happens past capacity.
+public class RssiEstimator implements BluetoothEventSink {
+    public static final int DEFAULT_CAPACITY = 4096;
+    // Variance of a single reading, (4 dB)^2.
+    public static final float DEFAULT_MEASUREMENT_NOISE = 16f;
+    // Variance added to the estimate per second without a reading.
+    public static final float DEFAULT_PROCESS_NOISE = 4f;
+    // Measured power at one metre and path loss exponent of the distance model.
+    public static final int DEFAULT_TX_POWER = -59;
+    public static final float DEFAULT_PATH_LOSS_EXPONENT = 2f;
+
+    private final int capacity;
+    private final float measurementNoise;
+    private final float processNoise;
+    private final LongIntHashIndex addressIndex;
+    private final long[] addresses;
+    private final float[] estimates;
+    private final float[] variances;
+    private final long[] updatedAt;
+    private final int[] readingCounts;
+    private int size;
+    private long updateCount;
+
+    public RssiEstimator() {
+        this(DEFAULT_CAPACITY, DEFAULT_MEASUREMENT_NOISE, DEFAULT_PROCESS_NOISE);
+    }
+
+    public RssiEstimator(int capacity, float measurementNoise, float processNoise) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.measurementNoise = measurementNoise;
+        this.processNoise = processNoise;
+        this.addressIndex = new LongIntHashIndex(capacity);
+        this.addresses = new long[capacity];
+        this.estimates = new float[capacity];
+        this.variances = new float[capacity];
+        this.updatedAt = new long[capacity];
+        this.readingCounts = new int[capacity];
+    }
+
+    // Folds one reading into the device estimate and returns the new estimate.
+    public synchronized float update(long address, long timestamp, short rssi) {
+        updateCount++;
+        int entry = find(address);
+        if (entry == DeviceRegistry.NOT_FOUND) {
+            entry = size < capacity ? size++ : evictOldest();
+            addresses[entry] = address;
+            addressIndex.insert(address, entry);
+            estimates[entry] = rssi;
+            variances[entry] = measurementNoise;
+            updatedAt[entry] = timestamp;
+            readingCounts[entry] = 1;
+            return rssi;
+        }
+        long elapsed = Math.max(0, timestamp - updatedAt[entry]);
+        float variance = variances[entry] + processNoise * elapsed / 1000f;
+        float gain = variance / (variance + measurementNoise);
+        estimates[entry] += gain * (rssi - estimates[entry]);
+        variances[entry] = (1 - gain) * variance;
+        updatedAt[entry] = timestamp;
+        readingCounts[entry]++;
+        return estimates[entry];
+    }
+
+    @Override
+    public void onDeviceFound(long timestamp, long address, String name, short rssi, int deviceClass) {
+        if (rssi != DeviceRegistry.RSSI_UNKNOWN) {
+            update(address, timestamp, rssi);
+        }
+    }
+
+    @Override
+    public void onNameChanged(long timestamp, long address, String name) {
+    }
+
+    @Override
+    public void onClassChanged(long timestamp, long address, int deviceClass) {
+    }
+
+    @Override
+    public void onDiscoveryStarted(long timestamp) {
+    }
+
+    @Override
+    public void onDiscoveryFinished(long timestamp) {
+    }
+
+    @Override
+    public void onAdapterStateChanged(long timestamp, int state) {
+    }
+
+    @Override
+    public void onBondStateChanged(long timestamp, long address, int bondState) {
+    }
+
+    // Smoothed RSSI in dBm, or NaN for an unknown device.
+    public synchronized float getEstimate(long address) {
+        int entry = find(address);
+        return entry == DeviceRegistry.NOT_FOUND ? Float.NaN : estimates[entry];
+    }
+
+    public synchronized int getReadingCount(long address) {
+        int entry = find(address);
+        return entry == DeviceRegistry.NOT_FOUND ? 0 : readingCounts[entry];
+    }
+
+    // Log-distance path loss model, in metres.
+    public static float estimateDistance(float rssi, int txPower, float pathLossExponent) {
+        return (float) Math.pow(10, (txPower - rssi) / (10 * pathLossExponent));
+    }
+
+    // Writes the k devices with the strongest estimate, read at or after notBefore, into the
+    // arrays, strongest first, and returns how many were written (at most the array length).
+    // A min-heap of k entries is kept in the output arrays themselves: O(n log k), no allocation.
+    public synchronized int nearest(long notBefore, long[] addressesOut, float[] estimatesOut) {
+        int k = Math.min(addressesOut.length, estimatesOut.length);
+        if (k == 0) {
+            return 0;
+        }
+        int count = 0;
+        for (int entry = 0; entry < size; entry++) {
+            if (updatedAt[entry] < notBefore) {
+                continue;
+            }
+            float estimate = estimates[entry];
+            if (count < k) {
+                addressesOut[count] = addresses[entry];
+                estimatesOut[count] = estimate;
+                siftUp(addressesOut, estimatesOut, count++);
+            } else if (estimate > estimatesOut[0]) {
+                addressesOut[0] = addresses[entry];
+                estimatesOut[0] = estimate;
+                siftDown(addressesOut, estimatesOut, 0, count);
+            }
+        }
+        // Heap sort: repeatedly moves the weakest to the end, leaving the strongest first.
+        for (int end = count - 1; end > 0; end--) {
+            swap(addressesOut, estimatesOut, 0, end);
+            siftDown(addressesOut, estimatesOut, 0, end);
+        }
+        return count;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long getUpdateCount() {
+        return updateCount;
+    }
+
+    public synchronized void clear() {
+        addressIndex.clear();
+        size = 0;
+    }
+
+    private static void siftUp(long[] keys, float[] values, int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (values[parent] <= values[index]) {
+                return;
+            }
+            swap(keys, values, parent, index);
+            index = parent;
+        }
+    }
+
+    private static void siftDown(long[] keys, float[] values, int index, int count) {
+        while (true) {
+            int smallest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < count && values[left] < values[smallest]) {
+                smallest = left;
+            }
+            if (right < count && values[right] < values[smallest]) {
+                smallest = right;
+            }
+            if (smallest == index) {
+                return;
+            }
+            swap(keys, values, index, smallest);
+            index = smallest;
+        }
+    }
+
+    private static void swap(long[] keys, float[] values, int a, int b) {
+        long key = keys[a];
+        keys[a] = keys[b];
+        keys[b] = key;
+        float value = values[a];
+        values[a] = values[b];
+        values[b] = value;
+    }
+
+    private int find(long address) {
+        return addressIndex.find(address, addresses);
+    }
+
+    private int evictOldest() {
+        int oldest = 0;
+        for (int entry = 1; entry < size; entry++) {
+            if (updatedAt[entry] < updatedAt[oldest]) {
+                oldest = entry;
+            }
+        }
+        addressIndex.remove(addresses[oldest], addresses);
+        return oldest;
+    }
+}
@@ -0,0 +1,290 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Deterministic stand-in for the Bluetooth stack. Commands go through the BluetoothAdapterPort
+// methods and their consequences are scheduled as events on a virtual clock; advanceBy() and
+// runUntilIdle() deliver them, in time order, to the registered sinks. Given the same Config and
+// the same calls it always produces the same event stream. Not thread safe, drive it from a
+// single thread.
+//
+// BluetoothDevice objects cannot be built off-device, so bonds are tracked by address
+// (createBond(long), getBondedAddresses()) and getBondedDevices() is always empty.
+public class SimulatedBluetoothStack implements BluetoothAdapterPort {
+    public static final long ADDRESS_BASE = 0x00AA00000000L;
+
+    private final Config config;
+    private final Random random;
+    private final List<BluetoothEventSink> sinks = new CopyOnWriteArrayList<>();
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private final Set<Long> bondedAddresses = new HashSet<>();
+    private long now;
+    private long sequence;
+    private int state = BluetoothAdapter.STATE_OFF;
+    private boolean discovering;
+    // Incremented on every discovery start and cancel, so sightings of an old cycle are dropped.
+    private int discoveryCycle;
+    private long deliveredEventCount;
+
+    public static class Config {
+        public int deviceCount = 1000;
+        public int sightingsPerSecond = 1000;
+        public long discoveryDurationMillis = 12000;
+        public long turnOnDelayMillis = 1500;
+        public long turnOffDelayMillis = 500;
+        public long bondDelayMillis = 3000;
+        public double enableFailureRate;
+        public double discoveryFailureRate;
+        public double bondFailureRate;
+        public long seed = 42;
+    }
+
+    private static final int DEVICE_FOUND = 0;
+    private static final int DISCOVERY_STARTED = 1;
+    private static final int DISCOVERY_FINISHED = 2;
+    private static final int STATE_CHANGED = 3;
+    private static final int BOND_STATE_CHANGED = 4;
+
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long sequence;
+        final int type;
+        final long address;
+        final int value;
+        final short rssi;
+
+        Event(long time, long sequence, int type, long address, int value, short rssi) {
+            this.time = time;
+            this.sequence = sequence;
+            this.type = type;
+            this.address = address;
+            this.value = value;
+            this.rssi = rssi;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (time != other.time) {
+                return time < other.time ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    public SimulatedBluetoothStack(Config config) {
+        this.config = config;
+        this.random = new Random(config.seed);
+    }
+
+    public void addSink(BluetoothEventSink sink) {
+        sinks.add(sink);
+    }
+
+    public void removeSink(BluetoothEventSink sink) {
+        sinks.remove(sink);
+    }
+
+    public long now() {
+        return now;
+    }
+
+    public static long addressOf(int device) {
+        return ADDRESS_BASE + device;
+    }
+
+    public static String nameOf(long address) {
+        return "SIM-" + (address - ADDRESS_BASE);
+    }
+
+    // Delivers every event due within the next millis of virtual time.
+    public void advanceBy(long millis) {
+        long until = now + millis;
+        while (!events.isEmpty() && events.peek().time <= until) {
+            deliver(events.poll());
+        }
+        now = until;
+    }
+
+    // Delivers every pending event, moving the clock to the last one.
+    public void runUntilIdle() {
+        while (!events.isEmpty()) {
+            deliver(events.poll());
+        }
+    }
+
+    public int getPendingEventCount() {
+        return events.size();
+    }
+
+    public long getDeliveredEventCount() {
+        return deliveredEventCount;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return state == BluetoothAdapter.STATE_ON;
+    }
+
+    @Override
+    public boolean enable() {
+        if (state != BluetoothAdapter.STATE_OFF) {
+            return state == BluetoothAdapter.STATE_ON || state == BluetoothAdapter.STATE_TURNING_ON;
+        }
+        setState(BluetoothAdapter.STATE_TURNING_ON, now);
+        boolean fails = random.nextDouble() < config.enableFailureRate;
+        setState(fails ? BluetoothAdapter.STATE_OFF : BluetoothAdapter.STATE_ON, now + config.turnOnDelayMillis);
+        return true;
+    }
+
+    @Override
+    public boolean disable() {
+        if (state != BluetoothAdapter.STATE_ON) {
+            return false;
+        }
+        cancelDiscovery();
+        setState(BluetoothAdapter.STATE_TURNING_OFF, now);
+        setState(BluetoothAdapter.STATE_OFF, now + config.turnOffDelayMillis);
+        return true;
+    }
+
+    @Override
+    public int getState() {
+        return state;
+    }
+
+    @Override
+    public boolean isDiscovering() {
+        return discovering;
+    }
+
+    @Override
+    public boolean startDiscovery() {
+        if (state != BluetoothAdapter.STATE_ON || random.nextDouble() < config.discoveryFailureRate) {
+            return false;
+        }
+        if (discovering) {
+            return true;
+        }
+        discovering = true;
+        discoveryCycle++;
+        schedule(now, DISCOVERY_STARTED, 0, discoveryCycle, (short) 0);
+        long sightings = config.discoveryDurationMillis * config.sightingsPerSecond / 1000;
+        for (long i = 0; i < sightings; i++) {
+            long time = now + i * config.discoveryDurationMillis / Math.max(1, sightings);
+            long address = addressOf(random.nextInt(config.deviceCount));
+            schedule(time, DEVICE_FOUND, address, discoveryCycle, (short) (-40 - random.nextInt(50)));
+        }
+        schedule(now + config.discoveryDurationMillis, DISCOVERY_FINISHED, 0, discoveryCycle, (short) 0);
+        return true;
+    }
+
+    @Override
+    public boolean cancelDiscovery() {
+        if (!discovering) {
+            return false;
+        }
+        discovering = false;
+        discoveryCycle++;
+        schedule(now, DISCOVERY_FINISHED, 0, discoveryCycle, (short) 0);
+        return true;
+    }
+
+    public boolean createBond(long address) {
+        if (state != BluetoothAdapter.STATE_ON) {
+            return false;
+        }
+        schedule(now, BOND_STATE_CHANGED, address, BluetoothDevice.BOND_BONDING, (short) 0);
+        boolean fails = random.nextDouble() < config.bondFailureRate;
+        schedule(now + config.bondDelayMillis, BOND_STATE_CHANGED, address,
+                fails ? BluetoothDevice.BOND_NONE : BluetoothDevice.BOND_BONDED, (short) 0);
+        return true;
+    }
+
+    public Set<Long> getBondedAddresses() {
+        return Collections.unmodifiableSet(bondedAddresses);
+    }
+
+    @Override
+    public Set<BluetoothDevice> getBondedDevices() {
+        return Collections.emptySet();
+    }
+
+    @Override
+    public BluetoothLeScanner getBluetoothLeScanner() {
+        return null;
+    }
+
+    @Override
+    public boolean isOffloadedScanBatchingSupported() {
+        return false;
+    }
+
+    private void setState(int newState, long time) {
+        schedule(time, STATE_CHANGED, 0, newState, (short) 0);
+    }
+
+    private void schedule(long time, int type, long address, int value, short rssi) {
+        events.add(new Event(time, sequence++, type, address, value, rssi));
+    }
+
+    private void deliver(Event event) {
+        now = Math.max(now, event.time);
+        switch (event.type) {
+            case DEVICE_FOUND:
+                if (!discovering || event.value != discoveryCycle) {
+                    return;
+                }
+                for (BluetoothEventSink sink : sinks) {
+                    sink.onDeviceFound(now, event.address, nameOf(event.address), event.rssi, BluetoothEventSink.UNKNOWN_CLASS);
+                }
+                break;
+            case DISCOVERY_STARTED:
+                for (BluetoothEventSink sink : sinks) {
+                    sink.onDiscoveryStarted(now);
+                }
+                break;
+            case DISCOVERY_FINISHED:
+                if (event.value != discoveryCycle) {
+                    // Finish of a cycle that was cancelled, the cancel already reported it.
+                    return;
+                }
+                discovering = false;
+                for (BluetoothEventSink sink : sinks) {
+                    sink.onDiscoveryFinished(now);
+                }
+                break;
+            case STATE_CHANGED:
+                state = event.value;
+                if (state != BluetoothAdapter.STATE_ON) {
+                    discovering = false;
+                }
+                for (BluetoothEventSink sink : sinks) {
+                    sink.onAdapterStateChanged(now, state);
+                }
+                break;
+            case BOND_STATE_CHANGED:
+                if (event.value == BluetoothDevice.BOND_BONDED) {
+                    bondedAddresses.add(event.address);
+                } else if (event.value == BluetoothDevice.BOND_NONE) {
+                    bondedAddresses.remove(event.address);
+                }
+                for (BluetoothEventSink sink : sinks) {
+                    sink.onBondStateChanged(now, event.address, event.value);
+                }
+                break;
+            default:
+                return;
+        }
+        deliveredEventCount++;
+    }
+}
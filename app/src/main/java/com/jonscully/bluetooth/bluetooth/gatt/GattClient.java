@@ -0,0 +1,154 @@
+package com.jonscully.bluetooth.bluetooth.gatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.util.UUID;
+
+// GATT connection to a BLE peripheral. Operations go through a GattOperationQueue; once the
+// services are discovered the client asks for a high priority connection and the largest MTU
+// before running them, which shortens the connection interval and lets every write carry up to
+// MTU - 3 bytes.
+public class GattClient implements Closeable {
+    private static final String TAG = "GattClient";
+    private final BluetoothDevice device;
+    private final GattOperationQueue queue;
+    private volatile BluetoothGatt gatt;
+    private final BluetoothGattCallback callback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt connection, int status, int newState) {
+            if (status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothProfile.STATE_CONNECTED) {
+                Log.d(TAG, "Connected to " + device.getAddress() + ", discovering services.");
+                connection.discoverServices();
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                Log.d(TAG, "Disconnected from " + device.getAddress() + " with status " + status + ".");
+                queue.onDisconnected();
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt connection, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.d(TAG, "Service discovery failed with status " + status + ".");
+                connection.disconnect();
+                return;
+            }
+            gatt = connection;
+            queue.onReady();
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt connection, BluetoothGattCharacteristic characteristic, int status) {
+            queue.onCharacteristicRead(characteristic.getUuid(), characteristic.getValue(), status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt connection, BluetoothGattCharacteristic characteristic, int status) {
+            queue.onCharacteristicWrite(characteristic.getUuid(), status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt connection, int mtu, int status) {
+            queue.onMtuChanged(mtu, status);
+        }
+    };
+
+    private GattClient(BluetoothDevice device, Handler handler, int queueCapacity) {
+        this.device = device;
+        this.queue = new GattOperationQueue(wrap(this), handler, queueCapacity);
+    }
+
+    // Connects over LE. Callbacks arrive on a binder thread, handler only runs the timeouts.
+    public static GattClient connect(Context context, BluetoothDevice device, Handler handler) {
+        GattClient client = new GattClient(device, handler, GattOperationQueue.DEFAULT_QUEUE_CAPACITY);
+        client.queue.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        client.queue.requestMtu(GattOperationQueue.MAX_MTU);
+        client.gatt = device.connectGatt(context, false, client.callback, BluetoothDevice.TRANSPORT_LE);
+        return client;
+    }
+
+    public GattFuture read(UUID service, UUID characteristic) {
+        return queue.read(service, characteristic);
+    }
+
+    public GattFuture write(UUID service, UUID characteristic, byte[] value) {
+        return queue.write(service, characteristic, value);
+    }
+
+    public GattFuture writeWithResponse(UUID service, UUID characteristic, byte[] value) {
+        return queue.writeWithResponse(service, characteristic, value);
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    public GattOperationQueue getQueue() {
+        return queue;
+    }
+
+    @Override
+    public void close() {
+        queue.close();
+        BluetoothGatt connection = gatt;
+        if (connection != null) {
+            connection.disconnect();
+            connection.close();
+        }
+    }
+
+    private BluetoothGattCharacteristic find(UUID service, UUID characteristic) {
+        BluetoothGatt connection = gatt;
+        BluetoothGattService gattService = connection == null ? null : connection.getService(service);
+        return gattService == null ? null : gattService.getCharacteristic(characteristic);
+    }
+
+    private static GattOperationQueue.Driver wrap(final GattClient client) {
+        return new GattOperationQueue.Driver() {
+            @Override
+            public boolean read(UUID service, UUID characteristic) {
+                BluetoothGattCharacteristic target = client.find(service, characteristic);
+                return target != null && client.gatt.readCharacteristic(target);
+            }
+
+            @Override
+            public boolean write(UUID service, UUID characteristic, byte[] value, boolean withResponse) {
+                BluetoothGattCharacteristic target = client.find(service, characteristic);
+                if (target == null) {
+                    return false;
+                }
+                target.setWriteType(withResponse ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+                        : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                target.setValue(value);
+                return client.gatt.writeCharacteristic(target);
+            }
+
+            @Override
+            public boolean canWriteWithoutResponse(UUID service, UUID characteristic) {
+                BluetoothGattCharacteristic target = client.find(service, characteristic);
+                return target != null
+                        && (target.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+            }
+
+            @Override
+            public boolean requestMtu(int mtu) {
+                BluetoothGatt connection = client.gatt;
+                return connection != null && connection.requestMtu(mtu);
+            }
+
+            @Override
+            public boolean requestConnectionPriority(int priority) {
+                BluetoothGatt connection = client.gatt;
+                return connection != null && connection.requestConnectionPriority(priority);
+            }
+        };
+    }
+}
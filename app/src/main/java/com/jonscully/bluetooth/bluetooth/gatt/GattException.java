@@ -0,0 +1,17 @@
+package com.jonscully.bluetooth.bluetooth.gatt;
+
+public class GattException extends Exception {
+    private static final long serialVersionUID = 1L;
+    private final int status;
+
+    public GattException(String message, int status) {
+        super(message);
+        this.status = status;
+    }
+
+    // BluetoothGatt status of the failed operation, GATT_FAILURE when the operation never reached
+    // the stack.
+    public int getStatus() {
+        return status;
+    }
+}
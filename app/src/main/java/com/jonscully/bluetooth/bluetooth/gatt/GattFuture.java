@@ -0,0 +1,45 @@
+package com.jonscully.bluetooth.bluetooth.gatt;
+
+import com.jonscully.bluetooth.bluetooth.OperationFuture;
+
+// Outcome of a GattOperationQueue operation. Completes with the value read, null for the other
+// operations, or fails with a GattException or a TimeoutException.
+public class GattFuture extends OperationFuture<byte[], GattFuture.Listener> {
+    private final GattOperationQueue queue;
+
+    public interface Listener {
+        void onComplete(byte[] value);
+        void onFailed(Throwable error);
+    }
+
+    GattFuture(GattOperationQueue queue) {
+        super("GATT operation");
+        this.queue = queue;
+    }
+
+    @Override
+    protected boolean withdraw() {
+        // Only operations still waiting in the queue can be withdrawn.
+        return queue.cancel(this);
+    }
+
+    @Override
+    protected void onResult(Listener listener, byte[] value, Throwable error) {
+        if (error == null) {
+            listener.onComplete(value);
+        } else {
+            listener.onFailed(error);
+        }
+    }
+
+    // Redeclared so GattOperationQueue can complete its futures.
+    @Override
+    protected boolean complete(byte[] result) {
+        return super.complete(result);
+    }
+
+    @Override
+    protected boolean fail(Throwable error) {
+        return super.fail(error);
+    }
+}
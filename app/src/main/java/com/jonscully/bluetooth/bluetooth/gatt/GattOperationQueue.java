@@ -0,0 +1,519 @@
+package com.jonscully.bluetooth.bluetooth.gatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+
+// Serializes the operations of one GATT connection. BluetoothGatt takes a single operation at a
+// time and refuses the next one until the callback of the previous one, so operations wait here
+// and each is started as soon as the connection is free.
+//
+// Writes to a characteristic that allows write-without-response are split into chunks of
+// MTU - 3 bytes and pipelined: chunks are sent back to back, up to maxInFlightWrites before the
+// first callback, as long as the driver accepts them. A driver refusing a chunk while others are
+// in flight means the stack buffer is full, the chunk is retried on the next write callback.
+// Reads, acknowledged writes and negotiations wait for the connection to drain and run alone.
+//
+// Operations queued before onReady() start once the services are discovered. A connection
+// silent for timeoutMillis fails the operations in flight and moves on.
+//
+// Futures are completed after the lock is released, so a listener on a direct executor can
+// queue the next operation without waiting on a callback thread.
+public class GattOperationQueue implements Closeable {
+    public static final int DEFAULT_MTU = 23;
+    public static final int MAX_MTU = 517;
+    public static final int ATT_HEADER_SIZE = 3;
+    public static final int DEFAULT_MAX_IN_FLIGHT_WRITES = 4;
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10 * 1000;
+
+    static final int READ = 1;
+    static final int WRITE = 2;
+    static final int REQUEST_MTU = 3;
+    static final int CONNECTION_PRIORITY = 4;
+
+    private static final String TAG = "GattOperationQueue";
+    private final Driver driver;
+    private final Handler handler;
+    private final int queueCapacity;
+    private final ArrayDeque<Operation> queue = new ArrayDeque<>();
+    // One entry per packet handed to the driver, in order, matched against the callbacks.
+    private final ArrayDeque<Sent> inFlight = new ArrayDeque<>();
+    // Future completions decided under the lock, run by runCompletions().
+    private final List<Runnable> completions = new ArrayList<>();
+    private final Runnable timeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+    private int maxInFlightWrites = DEFAULT_MAX_IN_FLIGHT_WRITES;
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private int mtu = DEFAULT_MTU;
+    private boolean ready;
+    private boolean closed;
+    private long completedCount;
+    private long failedCount;
+    private long busyCount;
+    private long bytesWritten;
+    private long bytesRead;
+    private long firstWriteNanos;
+    private long lastWriteNanos;
+
+    // What the queue asks of the connection, BluetoothGatt in GattClient. Every method returns
+    // false when the operation could not be started.
+    public interface Driver {
+        boolean read(UUID service, UUID characteristic);
+        boolean write(UUID service, UUID characteristic, byte[] value, boolean withResponse);
+        boolean canWriteWithoutResponse(UUID service, UUID characteristic);
+        boolean requestMtu(int mtu);
+        boolean requestConnectionPriority(int priority);
+    }
+
+    private static class Operation {
+        final int type;
+        final UUID service;
+        final UUID characteristic;
+        final byte[] value;
+        final int argument;
+        final boolean withResponse;
+        final GattFuture future;
+        // Write progress: bytes handed to the driver and chunks not acknowledged yet.
+        int offset;
+        int pendingChunks;
+        boolean pipelined;
+        // Set under the lock once the outcome is decided, the future completes later.
+        boolean finished;
+
+        Operation(int type, UUID service, UUID characteristic, byte[] value, int argument, boolean withResponse,
+                  GattFuture future) {
+            this.type = type;
+            this.service = service;
+            this.characteristic = characteristic;
+            this.value = value;
+            this.argument = argument;
+            this.withResponse = withResponse;
+            this.future = future;
+        }
+    }
+
+    private static class Sent {
+        final Operation operation;
+        final int length;
+
+        Sent(Operation operation, int length) {
+            this.operation = operation;
+            this.length = length;
+        }
+    }
+
+    public GattOperationQueue(Driver driver, Handler handler, int queueCapacity) {
+        this.driver = driver;
+        this.handler = handler;
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void configure(int maxInFlightWrites, long timeoutMillis) {
+        synchronized (this) {
+            this.maxInFlightWrites = Math.max(1, maxInFlightWrites);
+            this.timeoutMillis = timeoutMillis;
+            pump();
+        }
+        runCompletions();
+    }
+
+    public GattFuture read(UUID service, UUID characteristic) {
+        return enqueue(READ, service, characteristic, null, 0, true);
+    }
+
+    // Writes without response when the characteristic allows it, see the class comment.
+    public GattFuture write(UUID service, UUID characteristic, byte[] value) {
+        return enqueue(WRITE, service, characteristic, value, 0, false);
+    }
+
+    public GattFuture writeWithResponse(UUID service, UUID characteristic, byte[] value) {
+        return enqueue(WRITE, service, characteristic, value, 0, true);
+    }
+
+    // The negotiated MTU is reported by getMtu() once the future completes.
+    public GattFuture requestMtu(int requestedMtu) {
+        return enqueue(REQUEST_MTU, null, null, null, requestedMtu, true);
+    }
+
+    // priority is one of the BluetoothGatt.CONNECTION_PRIORITY_* constants.
+    public GattFuture requestConnectionPriority(int priority) {
+        return enqueue(CONNECTION_PRIORITY, null, null, null, priority, true);
+    }
+
+    // Services discovered, the queued operations can start.
+    public void onReady() {
+        synchronized (this) {
+            ready = true;
+            pump();
+        }
+        runCompletions();
+    }
+
+    // Fails everything queued or in flight. The queue accepts operations again after the next
+    // onReady().
+    public void onDisconnected() {
+        synchronized (this) {
+            ready = false;
+            mtu = DEFAULT_MTU;
+            failAll("Disconnected");
+        }
+        runCompletions();
+    }
+
+    public void onCharacteristicRead(UUID characteristic, byte[] value, int status) {
+        synchronized (this) {
+            Sent sent = inFlight.peekFirst();
+            if (sent == null || sent.operation.type != READ || !sent.operation.characteristic.equals(characteristic)) {
+                Log.d(TAG, "Unexpected read callback for " + characteristic + ", ignored.");
+                return;
+            }
+            inFlight.pollFirst();
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                bytesRead += value == null ? 0 : value.length;
+                succeed(sent.operation, value);
+            } else {
+                fail(sent.operation, new GattException("Read of " + characteristic + " failed", status));
+            }
+            onProgress();
+        }
+        runCompletions();
+    }
+
+    public void onCharacteristicWrite(UUID characteristic, int status) {
+        synchronized (this) {
+            Sent sent = inFlight.peekFirst();
+            if (sent == null || sent.operation.type != WRITE || !sent.operation.characteristic.equals(characteristic)) {
+                Log.d(TAG, "Unexpected write callback for " + characteristic + ", ignored.");
+                return;
+            }
+            inFlight.pollFirst();
+            Operation operation = sent.operation;
+            operation.pendingChunks--;
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                fail(operation, new GattException("Write to " + characteristic + " failed", status));
+            } else {
+                bytesWritten += sent.length;
+                lastWriteNanos = System.nanoTime();
+                if (operation.offset == operation.value.length && operation.pendingChunks == 0) {
+                    succeed(operation, null);
+                }
+            }
+            onProgress();
+        }
+        runCompletions();
+    }
+
+    public void onMtuChanged(int newMtu, int status) {
+        synchronized (this) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mtu = newMtu;
+            }
+            Sent sent = inFlight.peekFirst();
+            if (sent == null || sent.operation.type != REQUEST_MTU) {
+                // Negotiated by the remote device.
+                return;
+            }
+            inFlight.pollFirst();
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                Log.d(TAG, "MTU is now " + newMtu + ".");
+                succeed(sent.operation, null);
+            } else {
+                fail(sent.operation, new GattException("MTU request failed", status));
+            }
+            onProgress();
+        }
+        runCompletions();
+    }
+
+    public synchronized int getMtu() {
+        return mtu;
+    }
+
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public synchronized long getCompletedCount() {
+        return completedCount;
+    }
+
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    // Chunks refused by the driver while others were in flight.
+    public synchronized long getBusyCount() {
+        return busyCount;
+    }
+
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public synchronized long getBytesRead() {
+        return bytesRead;
+    }
+
+    // Acknowledged bytes over the time from the first write sent to the last one acknowledged.
+    public synchronized double getWriteBytesPerSecond() {
+        long elapsedNanos = lastWriteNanos - firstWriteNanos;
+        return elapsedNanos <= 0 ? 0 : bytesWritten * 1e9 / elapsedNanos;
+    }
+
+    public synchronized void resetStats() {
+        completedCount = 0;
+        failedCount = 0;
+        busyCount = 0;
+        bytesWritten = 0;
+        bytesRead = 0;
+        firstWriteNanos = 0;
+        lastWriteNanos = 0;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            ready = false;
+            failAll("Connection closed");
+        }
+        runCompletions();
+    }
+
+    synchronized boolean cancel(GattFuture future) {
+        Iterator<Operation> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            Operation operation = iterator.next();
+            // A write partly sent cannot be withdrawn.
+            if (operation.future == future && operation.offset == 0) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private GattFuture enqueue(int type, UUID service, UUID characteristic, byte[] value, int argument, boolean withResponse) {
+        GattFuture future = new GattFuture(this);
+        Operation operation = new Operation(type, service, characteristic, value, argument, withResponse, future);
+        synchronized (this) {
+            if (closed) {
+                failLater(operation, new GattException("Connection closed", BluetoothGatt.GATT_FAILURE));
+            } else if (queue.size() >= queueCapacity) {
+                failedCount++;
+                failLater(operation, new GattException("GATT queue full (" + queueCapacity + " operations)",
+                        BluetoothGatt.GATT_FAILURE));
+            } else {
+                queue.addLast(operation);
+                pump();
+            }
+        }
+        runCompletions();
+        return future;
+    }
+
+    // Starts the head operations the connection can take now.
+    private void pump() {
+        while (ready && !queue.isEmpty()) {
+            Operation operation = queue.peekFirst();
+            if (operation.finished) {
+                // A chunk of it failed, the rest is not sent.
+                queue.pollFirst();
+                continue;
+            }
+            if (operation.type == WRITE && operation.offset == 0 && operation.pendingChunks == 0) {
+                operation.pipelined = !operation.withResponse
+                        && driver.canWriteWithoutResponse(operation.service, operation.characteristic);
+            }
+            if (operation.type == WRITE && operation.pipelined) {
+                if (!sendChunk(operation)) {
+                    break;
+                }
+                continue;
+            }
+            if (!inFlight.isEmpty()) {
+                break;
+            }
+            queue.pollFirst();
+            start(operation);
+        }
+    }
+
+    // Returns false when the pipeline is full and the chunk has to wait.
+    private boolean sendChunk(Operation operation) {
+        Sent last = inFlight.peekLast();
+        if (last != null && (!last.operation.pipelined || inFlight.size() >= maxInFlightWrites)) {
+            return false;
+        }
+        int length = Math.min(operation.value.length - operation.offset, mtu - ATT_HEADER_SIZE);
+        byte[] chunk = operation.offset == 0 && length == operation.value.length
+                ? operation.value : Arrays.copyOfRange(operation.value, operation.offset, operation.offset + length);
+        if (!driver.write(operation.service, operation.characteristic, chunk, false)) {
+            if (!inFlight.isEmpty()) {
+                busyCount++;
+                return false;
+            }
+            queue.pollFirst();
+            fail(operation, new GattException("Write to " + operation.characteristic + " refused", BluetoothGatt.GATT_FAILURE));
+            return true;
+        }
+        if (firstWriteNanos == 0) {
+            firstWriteNanos = System.nanoTime();
+        }
+        operation.offset += length;
+        operation.pendingChunks++;
+        addInFlight(new Sent(operation, length));
+        if (operation.offset == operation.value.length) {
+            queue.pollFirst();
+        }
+        return true;
+    }
+
+    private void start(Operation operation) {
+        boolean started;
+        switch (operation.type) {
+            case READ:
+                started = driver.read(operation.service, operation.characteristic);
+                break;
+            case WRITE:
+                started = driver.write(operation.service, operation.characteristic, operation.value, true);
+                if (started) {
+                    if (firstWriteNanos == 0) {
+                        firstWriteNanos = System.nanoTime();
+                    }
+                    operation.offset = operation.value.length;
+                    operation.pendingChunks = 1;
+                }
+                break;
+            case REQUEST_MTU:
+                started = driver.requestMtu(operation.argument);
+                break;
+            case CONNECTION_PRIORITY:
+                // No callback reports the new connection parameters, done once accepted.
+                if (driver.requestConnectionPriority(operation.argument)) {
+                    succeed(operation, null);
+                } else {
+                    fail(operation, new GattException("Connection priority refused", BluetoothGatt.GATT_FAILURE));
+                }
+                return;
+            default:
+                started = false;
+                break;
+        }
+        if (!started) {
+            fail(operation, new GattException("GATT operation " + operation.type + " refused", BluetoothGatt.GATT_FAILURE));
+            return;
+        }
+        addInFlight(new Sent(operation, operation.type == WRITE ? operation.value.length : 0));
+    }
+
+    private void addInFlight(Sent sent) {
+        if (inFlight.isEmpty()) {
+            handler.postDelayed(timeoutTask, timeoutMillis);
+        }
+        inFlight.addLast(sent);
+    }
+
+    // A callback arrived: restarts the timeout and fills the connection again.
+    private void onProgress() {
+        handler.removeCallbacks(timeoutTask);
+        if (!inFlight.isEmpty()) {
+            handler.postDelayed(timeoutTask, timeoutMillis);
+        }
+        pump();
+    }
+
+    private void onTimeout() {
+        synchronized (this) {
+            if (inFlight.isEmpty()) {
+                return;
+            }
+            Log.d(TAG, "No GATT callback for " + timeoutMillis + " ms, failing " + inFlight.size() + " operations.");
+            while (!inFlight.isEmpty()) {
+                Operation operation = inFlight.pollFirst().operation;
+                fail(operation, new TimeoutException("No GATT callback after " + timeoutMillis + " ms"));
+            }
+            pump();
+        }
+        runCompletions();
+    }
+
+    private void failAll(String reason) {
+        handler.removeCallbacks(timeoutTask);
+        GattException error = new GattException(reason, BluetoothGatt.GATT_FAILURE);
+        while (!inFlight.isEmpty()) {
+            fail(inFlight.pollFirst().operation, error);
+        }
+        while (!queue.isEmpty()) {
+            fail(queue.pollFirst(), error);
+        }
+    }
+
+    private void succeed(final Operation operation, final byte[] value) {
+        if (operation.finished) {
+            return;
+        }
+        operation.finished = true;
+        completedCount++;
+        completions.add(new Runnable() {
+            @Override
+            public void run() {
+                operation.future.complete(value);
+            }
+        });
+    }
+
+    private void fail(Operation operation, Throwable error) {
+        if (operation.finished) {
+            return;
+        }
+        failedCount++;
+        failLater(operation, error);
+    }
+
+    private void failLater(final Operation operation, final Throwable error) {
+        operation.finished = true;
+        completions.add(new Runnable() {
+            @Override
+            public void run() {
+                operation.future.fail(error);
+            }
+        });
+    }
+
+    // Called without the lock at the end of every entry point. Completions queued by a listener
+    // calling back into the queue are picked up by the next turn of the loop.
+    private void runCompletions() {
+        while (true) {
+            List<Runnable> done;
+            synchronized (this) {
+                if (completions.isEmpty()) {
+                    return;
+                }
+                done = new ArrayList<>(completions);
+                completions.clear();
+            }
+            for (Runnable completion : done) {
+                completion.run();
+            }
+        }
+    }
+}
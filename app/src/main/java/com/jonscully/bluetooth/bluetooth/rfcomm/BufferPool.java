@@ -0,0 +1,42 @@
+package com.jonscully.bluetooth.bluetooth.rfcomm;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// Fixed size heap buffers recycled between frames so steady state reads do not allocate.
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> pool;
+    private long allocationCount;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.pool = new ArrayDeque<>(maxPooled);
+    }
+
+    public synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = pool.pollFirst();
+        if (buffer == null) {
+            allocationCount++;
+            return ByteBuffer.allocate(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize && pool.size() < maxPooled) {
+            pool.offerFirst(buffer);
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public synchronized long getAllocationCount() {
+        return allocationCount;
+    }
+}
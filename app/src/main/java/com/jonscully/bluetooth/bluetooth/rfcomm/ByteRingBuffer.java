@@ -0,0 +1,68 @@
+package com.jonscully.bluetooth.bluetooth.rfcomm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+// Single reader byte ring refilled straight from an InputStream. Capacity is a power of two so
+// positions wrap with a mask.
+public class ByteRingBuffer {
+    private final byte[] data;
+    private final int mask;
+    private long readPosition;
+    private long writePosition;
+
+    public ByteRingBuffer(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.data = new byte[capacity];
+        this.mask = capacity - 1;
+    }
+
+    public int available() {
+        return (int) (writePosition - readPosition);
+    }
+
+    public int capacity() {
+        return data.length;
+    }
+
+    // Reads once from the stream into the free space. Returns the number of bytes read, or -1 at
+    // end of stream.
+    public int fill(InputStream in) throws IOException {
+        int free = data.length - available();
+        if (free == 0) {
+            return 0;
+        }
+        int offset = (int) (writePosition & mask);
+        int read = in.read(data, offset, Math.min(free, data.length - offset));
+        if (read > 0) {
+            writePosition += read;
+        }
+        return read;
+    }
+
+    // Big endian int at the read position, without consuming it.
+    public int peekInt() {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (data[(int) ((readPosition + i) & mask)] & 0xFF);
+        }
+        return value;
+    }
+
+    public void skip(int length) {
+        readPosition += length;
+    }
+
+    public void get(ByteBuffer destination, int length) {
+        int offset = (int) (readPosition & mask);
+        int first = Math.min(length, data.length - offset);
+        destination.put(data, offset, first);
+        if (first < length) {
+            destination.put(data, 0, length - first);
+        }
+        readPosition += length;
+    }
+}
@@ -0,0 +1,178 @@
+package com.jonscully.bluetooth.bluetooth.rfcomm;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+// Length-prefixed frame channel over a stream pair, normally the streams of an RFCOMM
+// BluetoothSocket. Each frame is a 4 byte big endian length followed by the payload.
+//
+// Writes are gathered in a reusable buffer and pushed to the stream once flushThresholdBytes
+// are pending (0 flushes after every frame) or when flush() is called. Reads go through a ring
+// buffer and land in pooled ByteBuffers that the caller hands back with release(), so a steady
+// stream of frames does not allocate. One reader thread and one writer thread may use the
+// channel at the same time.
+public class RfcommChannel implements Closeable {
+    public static final UUID SERIAL_PORT_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024;
+    public static final int DEFAULT_FLUSH_THRESHOLD = 16 * 1024;
+
+    private static final String TAG = "RfcommChannel";
+    private static final int HEADER_SIZE = 4;
+    private static final int POOLED_BUFFERS = 8;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Closeable transport;
+    private final int maxFrameSize;
+    private final int flushThreshold;
+    private final BufferPool bufferPool;
+    private final ByteRingBuffer readRing;
+    private final ByteBuffer writeBuffer;
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+    private volatile long framesWritten;
+    private volatile long framesRead;
+    private volatile long bytesWritten;
+    private volatile long bytesRead;
+    private volatile long flushCount;
+
+    public RfcommChannel(InputStream in, OutputStream out, Closeable transport, int maxFrameSize, int flushThreshold) {
+        this.in = in;
+        this.out = out;
+        this.transport = transport;
+        this.maxFrameSize = maxFrameSize;
+        this.flushThreshold = flushThreshold;
+        this.bufferPool = new BufferPool(maxFrameSize, POOLED_BUFFERS);
+        this.readRing = new ByteRingBuffer(Integer.highestOneBit(maxFrameSize + HEADER_SIZE - 1) << 1);
+        this.writeBuffer = ByteBuffer.allocate(Math.max(flushThreshold, maxFrameSize) + HEADER_SIZE);
+    }
+
+    // Opens an RFCOMM connection to a bonded device. Discovery should be cancelled first, it
+    // slows the connection down considerably.
+    public static RfcommChannel connect(BluetoothDevice device, UUID serviceUuid) throws IOException {
+        BluetoothSocket socket = device.createRfcommSocketToServiceRecord(serviceUuid);
+        try {
+            socket.connect();
+            return new RfcommChannel(socket.getInputStream(), socket.getOutputStream(), socket,
+                    DEFAULT_MAX_FRAME_SIZE, DEFAULT_FLUSH_THRESHOLD);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public void writeFrame(ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+        if (length > maxFrameSize) {
+            throw new IOException("Frame of " + length + " bytes exceeds " + maxFrameSize);
+        }
+        synchronized (writeLock) {
+            if (writeBuffer.remaining() < length + HEADER_SIZE) {
+                flushLocked();
+            }
+            writeBuffer.putInt(length);
+            writeBuffer.put(payload);
+            framesWritten++;
+            if (writeBuffer.position() >= flushThreshold) {
+                flushLocked();
+            }
+        }
+    }
+
+    public void writeFrame(byte[] payload, int offset, int length) throws IOException {
+        writeFrame(ByteBuffer.wrap(payload, offset, length));
+    }
+
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            flushLocked();
+        }
+    }
+
+    // Blocks until a whole frame has arrived. The returned buffer is flipped for reading and
+    // should be given back with release() once consumed.
+    public ByteBuffer readFrame() throws IOException {
+        synchronized (readLock) {
+            ensureAvailable(HEADER_SIZE);
+            int length = readRing.peekInt();
+            if (length < 0 || length > maxFrameSize) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            ensureAvailable(HEADER_SIZE + length);
+            readRing.skip(HEADER_SIZE);
+            ByteBuffer frame = bufferPool.acquire();
+            readRing.get(frame, length);
+            frame.flip();
+            framesRead++;
+            return frame;
+        }
+    }
+
+    public void release(ByteBuffer frame) {
+        bufferPool.release(frame);
+    }
+
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    public long getFramesRead() {
+        return framesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } catch (IOException e) {
+            Log.d(TAG, "Unable to flush before closing: " + e.getMessage());
+        }
+        transport.close();
+    }
+
+    private void flushLocked() throws IOException {
+        int pending = writeBuffer.position();
+        if (pending == 0) {
+            return;
+        }
+        out.write(writeBuffer.array(), 0, pending);
+        out.flush();
+        writeBuffer.clear();
+        bytesWritten += pending;
+        flushCount++;
+    }
+
+    private void ensureAvailable(int length) throws IOException {
+        while (readRing.available() < length) {
+            int read = readRing.fill(in);
+            if (read < 0) {
+                throw new EOFException("Channel closed");
+            }
+            bytesRead += read;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.jonscully.bluetooth.bluetooth.stream;
+
+import com.jonscully.bluetooth.bluetooth.MacAddress;
+
+// One ACTION_FOUND (or simulated sighting). The address is packed, see MacAddress, and the
+// timestamp is elapsedRealtime() milliseconds, which the time based operators rely on.
+public class DeviceSighting {
+    public final long timestamp;
+    public final long address;
+    public final String name;
+    public final short rssi;
+    public final int deviceClass;
+
+    public DeviceSighting(long timestamp, long address, String name, short rssi, int deviceClass) {
+        this.timestamp = timestamp;
+        this.address = address;
+        this.name = name;
+        this.rssi = rssi;
+        this.deviceClass = deviceClass;
+    }
+
+    @Override
+    public String toString() {
+        return MacAddress.toString(address) + " " + rssi + " dBm at " + timestamp;
+    }
+}
@@ -0,0 +1,179 @@
+package com.jonscully.bluetooth.bluetooth.stream;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Base of the stream operators. It sits between an upstream Publisher and one downstream
+// Subscriber and only requests one upstream item at a time, while the downstream has demand
+// and nothing is ready for it. Operators therefore hold at most the item they are building
+// (a window, a sample) plus one ready output, whatever the upstream rate.
+abstract class Operator<T, R> implements Subscriber<T>, Subscription {
+    private final Subscriber<? super R> downstream;
+    // Guarded by its own monitor, which is never held while calling another stage.
+    private final ArrayDeque<R> ready = new ArrayDeque<>(2);
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicBoolean upstreamRequested = new AtomicBoolean();
+    private volatile Subscription upstream;
+    private volatile boolean done;
+    private volatile boolean cancelled;
+    private volatile Throwable error;
+    private boolean terminated;
+
+    Operator(Subscriber<? super R> downstream) {
+        this.downstream = downstream;
+    }
+
+    static long addCapped(long a, long b) {
+        long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    static void addDemand(AtomicLong demand, long n) {
+        long current;
+        do {
+            current = demand.get();
+            if (current == Long.MAX_VALUE) {
+                return;
+            }
+        } while (!demand.compareAndSet(current, addCapped(current, n)));
+    }
+
+    // Long.MAX_VALUE means unbounded and is never consumed.
+    static void consumeDemand(AtomicLong demand, long n) {
+        long current;
+        do {
+            current = demand.get();
+            if (current == Long.MAX_VALUE) {
+                return;
+            }
+        } while (!demand.compareAndSet(current, current - n));
+    }
+
+    // Handles one upstream item, calling emit() for what it produces. Upstream calls are serial,
+    // so the operator's own state needs no locking.
+    abstract void onItem(T item);
+
+    // Emits what the operator still holds when the upstream completes.
+    void onUpstreamComplete() {
+    }
+
+    final void emit(R item) {
+        synchronized (ready) {
+            ready.addLast(item);
+        }
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        upstream = subscription;
+        downstream.onSubscribe(this);
+    }
+
+    @Override
+    public void onNext(T item) {
+        if (!cancelled && !done) {
+            onItem(item);
+        }
+        upstreamRequested.set(false);
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        if (!done) {
+            this.error = error;
+            done = true;
+        }
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        if (!done) {
+            onUpstreamComplete();
+            done = true;
+        }
+        drain();
+    }
+
+    @Override
+    public void request(long n) {
+        if (cancelled) {
+            return;
+        }
+        if (n <= 0) {
+            cancel();
+            downstream.onError(new IllegalArgumentException("Non-positive request: " + n));
+            return;
+        }
+        addDemand(demand, n);
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        if (!cancelled) {
+            cancelled = true;
+            synchronized (ready) {
+                ready.clear();
+            }
+            upstream.cancel();
+        }
+    }
+
+    private R pollReady() {
+        synchronized (ready) {
+            return ready.pollFirst();
+        }
+    }
+
+    private boolean isReadyEmpty() {
+        synchronized (ready) {
+            return ready.isEmpty();
+        }
+    }
+
+    // Whichever thread moves wip off zero drains for everyone: calls from other threads, and
+    // an upstream answering request(1) synchronously, only bump wip and get picked up by
+    // another turn of the loop. No monitor is held across onNext() or upstream.request(), so
+    // this stage and its neighbours cannot deadlock on each other.
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            long requested = demand.get();
+            long emitted = 0;
+            while (emitted != requested && !cancelled) {
+                R item = pollReady();
+                if (item == null) {
+                    break;
+                }
+                downstream.onNext(item);
+                emitted++;
+            }
+            if (emitted != 0) {
+                consumeDemand(demand, emitted);
+            }
+            if (!cancelled) {
+                if (done) {
+                    if (isReadyEmpty() && !terminated) {
+                        terminated = true;
+                        if (error != null) {
+                            downstream.onError(error);
+                        } else {
+                            downstream.onComplete();
+                        }
+                    }
+                } else if (demand.get() > 0 && isReadyEmpty() && upstreamRequested.compareAndSet(false, true)) {
+                    upstream.request(1);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
@@ -0,0 +1,7 @@
+package com.jonscully.bluetooth.bluetooth.stream;
+
+// Same contract as java.util.concurrent.Flow.Publisher, which needs API 30. Items are only sent
+// after the subscriber asked for them with Subscription.request().
+public interface Publisher<T> {
+    void subscribe(Subscriber<? super T> subscriber);
+}
@@ -0,0 +1,219 @@
+package com.jonscully.bluetooth.bluetooth.stream;
+
+import com.jonscully.bluetooth.bluetooth.BluetoothEventBus;
+import com.jonscully.bluetooth.bluetooth.BluetoothEventSink;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Publishes device sightings to any number of subscribers, each with its own demand. Sightings
+// arriving while a subscriber has no outstanding demand wait in a buffer of bufferCapacity
+// items per subscriber; when it is full the oldest sighting is dropped and counted, so a slow
+// subscriber costs bounded memory and never blocks the receiver.
+//
+// Feed it as a BluetoothEventSink, from SimulatedBluetoothStack for example, or attach() it to
+// the controller's event bus. Subscribers are called on the thread that delivers the sighting
+// or, for buffered ones, the thread that calls request().
+public class SightingPublisher implements Publisher<DeviceSighting>, BluetoothEventSink, Closeable {
+    private final int bufferCapacity;
+    private final CopyOnWriteArrayList<SightingSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private BluetoothEventBus eventBus;
+    private BluetoothEventBus.Subscription busSubscription;
+    private volatile boolean closed;
+
+    public SightingPublisher(int bufferCapacity) {
+        this.bufferCapacity = bufferCapacity;
+    }
+
+    // Creates a publisher fed by the device events of the bus, until close().
+    public static SightingPublisher attach(BluetoothEventBus eventBus, int bufferCapacity) {
+        SightingPublisher publisher = new SightingPublisher(bufferCapacity);
+        publisher.eventBus = eventBus;
+        publisher.busSubscription = eventBus.subscribe(publisher, BluetoothEventBus.EVENT_DEVICE_FOUND, null);
+        return publisher;
+    }
+
+    private class SightingSubscription implements Subscription {
+        private final Subscriber<? super DeviceSighting> subscriber;
+        // Guarded by its own monitor, which is never held while calling the subscriber.
+        private final ArrayDeque<DeviceSighting> buffer = new ArrayDeque<>();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private long droppedCount;
+        private volatile boolean completed;
+        private volatile boolean cancelled;
+        private boolean terminated;
+
+        SightingSubscription(Subscriber<? super DeviceSighting> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void offer(DeviceSighting sighting) {
+            synchronized (buffer) {
+                if (cancelled || completed) {
+                    return;
+                }
+                if (buffer.size() >= bufferCapacity) {
+                    buffer.pollFirst();
+                    droppedCount++;
+                }
+                buffer.addLast(sighting);
+            }
+            drain();
+        }
+
+        void complete() {
+            synchronized (buffer) {
+                completed = true;
+            }
+            drain();
+        }
+
+        long getDroppedCount() {
+            synchronized (buffer) {
+                return droppedCount;
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (cancelled) {
+                return;
+            }
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+                return;
+            }
+            Operator.addDemand(demand, n);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            synchronized (buffer) {
+                buffer.clear();
+            }
+            subscriptions.remove(this);
+        }
+
+        private DeviceSighting poll() {
+            synchronized (buffer) {
+                return buffer.pollFirst();
+            }
+        }
+
+        private boolean isEmpty() {
+            synchronized (buffer) {
+                return buffer.isEmpty();
+            }
+        }
+
+        // Same work-in-progress loop as Operator.drain(): the receiver thread offering and a
+        // subscriber requesting from another thread, or from inside onNext(), never wait on
+        // each other, and only one of them calls the subscriber at a time.
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                long requested = demand.get();
+                long emitted = 0;
+                while (emitted != requested && !cancelled) {
+                    DeviceSighting sighting = poll();
+                    if (sighting == null) {
+                        break;
+                    }
+                    subscriber.onNext(sighting);
+                    emitted++;
+                }
+                if (emitted != 0) {
+                    Operator.consumeDemand(demand, emitted);
+                }
+                if (completed && isEmpty() && !terminated && !cancelled) {
+                    terminated = true;
+                    subscriptions.remove(this);
+                    subscriber.onComplete();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super DeviceSighting> subscriber) {
+        SightingSubscription subscription = new SightingSubscription(subscriber);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+        if (closed) {
+            subscription.complete();
+        }
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    // Sightings dropped from the buffers of the current subscribers.
+    public long getDroppedCount() {
+        long dropped = 0;
+        for (SightingSubscription subscription : subscriptions) {
+            dropped += subscription.getDroppedCount();
+        }
+        return dropped;
+    }
+
+    @Override
+    public void onDeviceFound(long timestamp, long address, String name, short rssi, int deviceClass) {
+        if (closed || subscriptions.isEmpty()) {
+            return;
+        }
+        DeviceSighting sighting = new DeviceSighting(timestamp, address, name, rssi, deviceClass);
+        for (SightingSubscription subscription : subscriptions) {
+            subscription.offer(sighting);
+        }
+    }
+
+    @Override
+    public void onNameChanged(long timestamp, long address, String name) {
+    }
+
+    @Override
+    public void onClassChanged(long timestamp, long address, int deviceClass) {
+    }
+
+    @Override
+    public void onDiscoveryStarted(long timestamp) {
+    }
+
+    @Override
+    public void onDiscoveryFinished(long timestamp) {
+    }
+
+    @Override
+    public void onAdapterStateChanged(long timestamp, int state) {
+    }
+
+    @Override
+    public void onBondStateChanged(long timestamp, long address, int bondState) {
+    }
+
+    // Stops publishing. Subscribers receive what is still buffered as they request it, then
+    // onComplete.
+    @Override
+    public void close() {
+        closed = true;
+        if (busSubscription != null) {
+            eventBus.unsubscribe(busSubscription);
+            busSubscription = null;
+        }
+        for (SightingSubscription subscription : subscriptions) {
+            subscription.complete();
+        }
+    }
+}
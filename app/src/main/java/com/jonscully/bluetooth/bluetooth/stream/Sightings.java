@@ -0,0 +1,109 @@
+package com.jonscully.bluetooth.bluetooth.stream;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Operators over sighting streams. Time is the sightings' own timestamps rather than a timer,
+// so a window or a sample closes when the first sighting past its end arrives, or when the
+// upstream completes. None of them buffers more than one window of sightings.
+public class Sightings {
+    private Sightings() {
+    }
+
+    // First sighting of each address. Only the last maxAddresses addresses are remembered, a
+    // device forgotten since is reported again.
+    public static Publisher<DeviceSighting> distinctByAddress(final Publisher<DeviceSighting> upstream,
+                                                              final int maxAddresses) {
+        return new Publisher<DeviceSighting>() {
+            @Override
+            public void subscribe(Subscriber<? super DeviceSighting> subscriber) {
+                upstream.subscribe(new Operator<DeviceSighting, DeviceSighting>(subscriber) {
+                    private final Map<Long, Boolean> seen = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+                        @Override
+                        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                            return size() > maxAddresses;
+                        }
+                    };
+
+                    @Override
+                    void onItem(DeviceSighting sighting) {
+                        if (seen.put(sighting.address, Boolean.TRUE) == null) {
+                            emit(sighting);
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    // Latest sighting of each periodMillis period.
+    public static Publisher<DeviceSighting> sample(final Publisher<DeviceSighting> upstream, final long periodMillis) {
+        return new Publisher<DeviceSighting>() {
+            @Override
+            public void subscribe(Subscriber<? super DeviceSighting> subscriber) {
+                upstream.subscribe(new Operator<DeviceSighting, DeviceSighting>(subscriber) {
+                    private DeviceSighting latest;
+
+                    @Override
+                    void onItem(DeviceSighting sighting) {
+                        if (latest != null && sighting.timestamp / periodMillis != latest.timestamp / periodMillis) {
+                            emit(latest);
+                        }
+                        latest = sighting;
+                    }
+
+                    @Override
+                    void onUpstreamComplete() {
+                        if (latest != null) {
+                            emit(latest);
+                            latest = null;
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    // Sightings grouped by windows of windowMillis starting at the first sighting of each window.
+    // A window is also closed when it reaches maxSize sightings. Empty windows are not emitted.
+    public static Publisher<List<DeviceSighting>> window(final Publisher<DeviceSighting> upstream,
+                                                         final long windowMillis, final int maxSize) {
+        return new Publisher<List<DeviceSighting>>() {
+            @Override
+            public void subscribe(Subscriber<? super List<DeviceSighting>> subscriber) {
+                upstream.subscribe(new Operator<DeviceSighting, List<DeviceSighting>>(subscriber) {
+                    private List<DeviceSighting> current = new ArrayList<>();
+                    private long windowStart;
+
+                    @Override
+                    void onItem(DeviceSighting sighting) {
+                        if (!current.isEmpty() && sighting.timestamp - windowStart >= windowMillis) {
+                            close();
+                        }
+                        if (current.isEmpty()) {
+                            windowStart = sighting.timestamp;
+                        }
+                        current.add(sighting);
+                        if (current.size() >= maxSize) {
+                            close();
+                        }
+                    }
+
+                    @Override
+                    void onUpstreamComplete() {
+                        if (!current.isEmpty()) {
+                            close();
+                        }
+                    }
+
+                    private void close() {
+                        emit(current);
+                        current = new ArrayList<>();
+                    }
+                });
+            }
+        };
+    }
+}
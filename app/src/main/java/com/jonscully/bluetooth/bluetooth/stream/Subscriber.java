@@ -0,0 +1,10 @@
+package com.jonscully.bluetooth.bluetooth.stream;
+
+// Same contract as java.util.concurrent.Flow.Subscriber: onSubscribe first, then at most as
+// many onNext as requested, then onComplete or onError.
+public interface Subscriber<T> {
+    void onSubscribe(Subscription subscription);
+    void onNext(T item);
+    void onError(Throwable error);
+    void onComplete();
+}
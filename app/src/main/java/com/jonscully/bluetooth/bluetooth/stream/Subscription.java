@@ -0,0 +1,6 @@
+package com.jonscully.bluetooth.bluetooth.stream;
+
+public interface Subscription {
+    void request(long n);
+    void cancel();
+}
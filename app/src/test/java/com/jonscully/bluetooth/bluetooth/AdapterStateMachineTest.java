@@ -0,0 +1,175 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AdapterStateMachineTest {
+    // Runs the commands against the simulated stack and records what the machine reports.
+    private static class Harness implements AdapterStateMachine.Actions, AdapterStateMachine.Listener {
+        final SimulatedBluetoothStack stack;
+        final AdapterStateMachine machine;
+        final List<Integer> failedCommands = new ArrayList<>();
+        long discoveryStartedAt = -1;
+        int enableCalls;
+        int discoveryCalls;
+        boolean calledLocked;
+        boolean discoverOnTurnedOn;
+
+        Harness(SimulatedBluetoothStack.Config config) {
+            config.deviceCount = 10;
+            config.sightingsPerSecond = 10;
+            stack = new SimulatedBluetoothStack(config);
+            machine = new AdapterStateMachine(this, this, stack.getState(), stack.isDiscovering());
+            stack.addSink(machine);
+        }
+
+        @Override
+        public boolean enable() {
+            calledLocked |= Thread.holdsLock(machine);
+            enableCalls++;
+            return stack.enable();
+        }
+
+        @Override
+        public boolean disable() {
+            return stack.disable();
+        }
+
+        @Override
+        public boolean startDiscovery() {
+            calledLocked |= Thread.holdsLock(machine);
+            discoveryCalls++;
+            if (discoveryStartedAt < 0) {
+                discoveryStartedAt = stack.now();
+            }
+            return stack.startDiscovery();
+        }
+
+        @Override
+        public void onStateChanged(int oldState, int newState) {
+            calledLocked |= Thread.holdsLock(machine);
+            if (discoverOnTurnedOn && oldState == AdapterStateMachine.STATE_TURNING_ON) {
+                machine.discover();
+            }
+        }
+
+        @Override
+        public void onCommandFailed(int command) {
+            calledLocked |= Thread.holdsLock(machine);
+            failedCommands.add(command);
+        }
+    }
+
+    @Test
+    public void discover_startsWhenAdapterTurnsOn() {
+        SimulatedBluetoothStack.Config config = new SimulatedBluetoothStack.Config();
+        Harness harness = new Harness(config);
+
+        harness.machine.turnOn();
+        harness.machine.discover();
+        assertEquals(AdapterStateMachine.STATE_TURNING_ON, harness.machine.getState());
+        assertEquals(1, harness.machine.getPendingCount());
+
+        harness.stack.advanceBy(config.turnOnDelayMillis);
+        assertEquals(config.turnOnDelayMillis, harness.discoveryStartedAt);
+        assertEquals(AdapterStateMachine.STATE_DISCOVERING, harness.machine.getState());
+        assertEquals(0, harness.machine.getPendingCount());
+
+        harness.stack.runUntilIdle();
+        assertEquals(AdapterStateMachine.STATE_ON, harness.machine.getState());
+    }
+
+    @Test
+    public void commandsWhileTurningOn_areCoalescedNotLost() {
+        SimulatedBluetoothStack.Config config = new SimulatedBluetoothStack.Config();
+        Harness harness = new Harness(config);
+
+        harness.machine.turnOn();
+        harness.stack.advanceBy(config.turnOnDelayMillis / 2);
+        harness.machine.turnOn();
+        harness.machine.discover();
+        harness.machine.discover();
+        harness.stack.advanceBy(config.turnOnDelayMillis);
+
+        assertEquals(1, harness.enableCalls);
+        assertEquals(1, harness.discoveryCalls);
+        assertEquals(2, harness.machine.getCoalescedCount());
+        assertEquals(AdapterStateMachine.STATE_DISCOVERING, harness.machine.getState());
+        assertTrue(harness.failedCommands.isEmpty());
+    }
+
+    @Test
+    public void turnOff_dropsPendingCommands() {
+        SimulatedBluetoothStack.Config config = new SimulatedBluetoothStack.Config();
+        Harness harness = new Harness(config);
+
+        harness.machine.turnOn();
+        harness.machine.discover();
+        harness.machine.turnOff();
+        assertEquals(1, harness.machine.getDroppedCount());
+
+        // The turn-off waits for the turn-on in flight, then runs.
+        harness.stack.runUntilIdle();
+        assertEquals(0, harness.discoveryCalls);
+        assertEquals(BluetoothAdapter.STATE_OFF, harness.stack.getState());
+        assertEquals(AdapterStateMachine.STATE_OFF, harness.machine.getState());
+        assertEquals(0, harness.machine.getPendingCount());
+    }
+
+    @Test
+    public void failedTurnOn_failsQueuedDiscovery() {
+        SimulatedBluetoothStack.Config config = new SimulatedBluetoothStack.Config();
+        config.enableFailureRate = 1;
+        Harness harness = new Harness(config);
+
+        harness.machine.turnOn();
+        harness.machine.discover();
+        harness.stack.runUntilIdle();
+
+        assertEquals(AdapterStateMachine.STATE_OFF, harness.machine.getState());
+        assertEquals(1, harness.failedCommands.size());
+        assertEquals(AdapterStateMachine.COMMAND_DISCOVER, (int) harness.failedCommands.get(0));
+        assertEquals(0, harness.discoveryCalls);
+    }
+
+    @Test
+    public void discover_waitsForBondToFinish() {
+        SimulatedBluetoothStack.Config config = new SimulatedBluetoothStack.Config();
+        Harness harness = new Harness(config);
+        harness.machine.turnOn();
+        harness.stack.advanceBy(config.turnOnDelayMillis);
+
+        harness.stack.createBond(SimulatedBluetoothStack.addressOf(1));
+        harness.stack.advanceBy(0);
+        assertEquals(AdapterStateMachine.STATE_BONDING, harness.machine.getState());
+        harness.machine.discover();
+        assertEquals(0, harness.discoveryCalls);
+
+        harness.stack.advanceBy(config.bondDelayMillis);
+        assertEquals(1, harness.discoveryCalls);
+        assertEquals(config.turnOnDelayMillis + config.bondDelayMillis, harness.discoveryStartedAt);
+    }
+
+    @Test
+    public void actionsAndListener_runUnlockedAndMayReenter() {
+        SimulatedBluetoothStack.Config config = new SimulatedBluetoothStack.Config();
+        Harness harness = new Harness(config);
+        harness.discoverOnTurnedOn = true;
+
+        harness.machine.turnOn();
+        harness.stack.runUntilIdle();
+        harness.machine.turnOff();
+        harness.machine.discover();
+
+        assertFalse(harness.calledLocked);
+        // The discovery asked for from the listener ran once the listener returned.
+        assertEquals(1, harness.discoveryCalls);
+        assertEquals(AdapterStateMachine.COMMAND_DISCOVER, (int) harness.failedCommands.get(0));
+    }
+}
@@ -0,0 +1,226 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class BluetoothEventBusTest {
+    private static class CountingSink implements BluetoothEventSink {
+        int found;
+        int finished;
+        int stateChanges;
+        int bondChanges;
+        int nameChanges;
+        int classChanges;
+        long lastAddress;
+        String lastName;
+        int lastDeviceClass;
+
+        @Override
+        public void onDeviceFound(long timestamp, long address, String name, short rssi, int deviceClass) {
+            found++;
+            lastAddress = address;
+        }
+
+        @Override
+        public void onNameChanged(long timestamp, long address, String name) {
+            nameChanges++;
+            lastName = name;
+        }
+
+        @Override
+        public void onClassChanged(long timestamp, long address, int deviceClass) {
+            classChanges++;
+            lastDeviceClass = deviceClass;
+        }
+
+        @Override
+        public void onDiscoveryStarted(long timestamp) {
+        }
+
+        @Override
+        public void onDiscoveryFinished(long timestamp) {
+            finished++;
+        }
+
+        @Override
+        public void onAdapterStateChanged(long timestamp, int state) {
+            stateChanges++;
+        }
+
+        @Override
+        public void onBondStateChanged(long timestamp, long address, int bondState) {
+            bondChanges++;
+        }
+    }
+
+    // Runs tasks only when asked to, standing in for a slow subscriber thread.
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    @Test
+    public void deliversOnlySubscribedTypesAndAddresses() {
+        BluetoothEventBus bus = new BluetoothEventBus();
+        CountingSink devices = new CountingSink();
+        CountingSink adapter = new CountingSink();
+        bus.subscribe(devices, BluetoothEventBus.EVENT_DEVICE_FOUND | BluetoothEventBus.EVENT_BOND_STATE_CHANGED,
+                BluetoothEventBus.addresses(1, 3));
+        bus.subscribe(adapter, BluetoothEventBus.EVENT_ADAPTER_STATE_CHANGED, null);
+
+        assertTrue(bus.isSubscribed(BluetoothEventBus.EVENT_DEVICE_FOUND));
+        assertFalse(bus.isSubscribed(BluetoothEventBus.EVENT_DISCOVERY_FINISHED));
+
+        for (long address = 0; address < 5; address++) {
+            bus.onDeviceFound(0, address, null, (short) -50, 0);
+        }
+        bus.onBondStateChanged(0, 2, BluetoothDevice.BOND_BONDED);
+        bus.onBondStateChanged(0, 3, BluetoothDevice.BOND_BONDED);
+        bus.onDiscoveryFinished(0);
+        bus.onAdapterStateChanged(0, BluetoothAdapter.STATE_ON);
+
+        assertEquals(2, devices.found);
+        assertEquals(3, devices.lastAddress);
+        assertEquals(1, devices.bondChanges);
+        assertEquals(0, devices.finished);
+        assertEquals(0, devices.stateChanges);
+        assertEquals(1, adapter.stateChanges);
+        assertEquals(0, adapter.found);
+    }
+
+    @Test
+    public void nameAndClassChangesAreFilteredByAddress() {
+        BluetoothEventBus bus = new BluetoothEventBus();
+        CountingSink names = new CountingSink();
+        CountingSink all = new CountingSink();
+        bus.subscribe(names, BluetoothEventBus.EVENT_NAME_CHANGED, BluetoothEventBus.addresses(1));
+        bus.subscribe(all, BluetoothEventBus.ALL_EVENTS, null);
+
+        bus.onNameChanged(0, 1, "Pixel");
+        bus.onNameChanged(0, 2, "Jabra");
+        bus.onClassChanged(0, 1, 0x0418);
+
+        assertEquals(1, names.nameChanges);
+        assertEquals("Pixel", names.lastName);
+        assertEquals(0, names.classChanges);
+        assertEquals(2, all.nameChanges);
+        assertEquals(1, all.classChanges);
+        assertEquals(0x0418, all.lastDeviceClass);
+    }
+
+    @Test
+    public void fullQueueDropsAndCounts() {
+        BluetoothEventBus bus = new BluetoothEventBus();
+        ManualExecutor executor = new ManualExecutor();
+        CountingSink slow = new CountingSink();
+        CountingSink fast = new CountingSink();
+        BluetoothEventBus.Subscription slowSubscription = bus.subscribe(slow, BluetoothEventBus.ALL_EVENTS, null, executor, 10);
+        bus.subscribe(fast, BluetoothEventBus.ALL_EVENTS, null);
+
+        for (int i = 0; i < 25; i++) {
+            bus.onDeviceFound(i, i, null, (short) -50, 0);
+        }
+        assertEquals(25, fast.found);
+        assertEquals(0, slow.found);
+        assertEquals(10, slowSubscription.getQueuedCount());
+        assertEquals(15, slowSubscription.getDroppedCount());
+        assertEquals(1, executor.tasks.size());
+
+        executor.runAll();
+        assertEquals(10, slow.found);
+        assertEquals(0, slowSubscription.getQueuedCount());
+
+        bus.onDeviceFound(30, 30, null, (short) -50, 0);
+        executor.runAll();
+        assertEquals(11, slow.found);
+        assertEquals(15, bus.getDroppedCount());
+    }
+
+    @Test
+    public void unsubscribeStopsDeliveryAndClearsMask() {
+        BluetoothEventBus bus = new BluetoothEventBus();
+        ManualExecutor executor = new ManualExecutor();
+        CountingSink sink = new CountingSink();
+        BluetoothEventBus.Subscription subscription = bus.subscribe(sink, BluetoothEventBus.EVENT_DISCOVERY_FINISHED,
+                null, executor, BluetoothEventBus.DEFAULT_QUEUE_CAPACITY);
+
+        bus.onDiscoveryFinished(0);
+        bus.unsubscribe(subscription);
+        executor.runAll();
+        bus.onDiscoveryFinished(1);
+
+        assertEquals(0, sink.finished);
+        assertEquals(0, bus.getSubscriptionCount());
+        assertFalse(bus.isSubscribed(BluetoothEventBus.EVENT_DISCOVERY_FINISHED));
+    }
+
+    @Test
+    public void concurrentSubscribersAllRegistered() throws InterruptedException {
+        final BluetoothEventBus bus = new BluetoothEventBus();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        bus.subscribe(new CountingSink(), BluetoothEventBus.EVENT_DEVICE_FOUND, null);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400, bus.getSubscriptionCount());
+    }
+
+    @Test
+    public void throwingSink_doesNotStallItsQueue() {
+        BluetoothEventBus bus = new BluetoothEventBus();
+        ManualExecutor executor = new ManualExecutor();
+        final CountingSink sink = new CountingSink();
+        bus.subscribe(new CountingSink() {
+            @Override
+            public void onDeviceFound(long timestamp, long address, String name, short rssi, int deviceClass) {
+                if (address == 1) {
+                    throw new IllegalStateException("Sink failure");
+                }
+                sink.onDeviceFound(timestamp, address, name, rssi, deviceClass);
+            }
+        }, BluetoothEventBus.EVENT_DEVICE_FOUND, null, executor, BluetoothEventBus.DEFAULT_QUEUE_CAPACITY);
+
+        for (long address = 0; address < 3; address++) {
+            bus.onDeviceFound(0, address, null, (short) -50, 0);
+        }
+        try {
+            executor.runAll();
+            fail("The exception should reach the executor");
+        } catch (IllegalStateException expected) {
+        }
+        // The event after the failing one went to a new task.
+        executor.runAll();
+        bus.onDeviceFound(0, 3, null, (short) -50, 0);
+        executor.runAll();
+        assertEquals(3, sink.found);
+        assertEquals(3, sink.lastAddress);
+    }
+}
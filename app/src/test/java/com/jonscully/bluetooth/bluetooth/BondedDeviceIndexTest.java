@@ -0,0 +1,146 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowBluetoothDevice;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+// Robolectric only for ShadowBluetoothDevice, the adapter is a fake port.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+public class BondedDeviceIndexTest {
+    // Reports the bonded set it is given and counts the queries.
+    private static class FakeAdapterPort implements BluetoothAdapterPort {
+        final Set<BluetoothDevice> bonded = new HashSet<>();
+        int queryCount;
+
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public boolean enable() {
+            return true;
+        }
+
+        @Override
+        public boolean disable() {
+            return true;
+        }
+
+        @Override
+        public int getState() {
+            return BluetoothAdapter.STATE_ON;
+        }
+
+        @Override
+        public boolean isDiscovering() {
+            return false;
+        }
+
+        @Override
+        public boolean startDiscovery() {
+            return false;
+        }
+
+        @Override
+        public boolean cancelDiscovery() {
+            return false;
+        }
+
+        @Override
+        public Set<BluetoothDevice> getBondedDevices() {
+            queryCount++;
+            return new HashSet<>(bonded);
+        }
+
+        @Override
+        public BluetoothLeScanner getBluetoothLeScanner() {
+            return null;
+        }
+
+        @Override
+        public boolean isOffloadedScanBatchingSupported() {
+            return false;
+        }
+    }
+
+    private final FakeAdapterPort adapter = new FakeAdapterPort();
+    private BluetoothDevice a;
+    private BluetoothDevice b;
+    private BluetoothDevice c;
+
+    @Before
+    public void setUp() {
+        a = ShadowBluetoothDevice.newInstance("00:00:00:00:00:0A");
+        b = ShadowBluetoothDevice.newInstance("00:00:00:00:00:0B");
+        c = ShadowBluetoothDevice.newInstance("00:00:00:00:00:0C");
+    }
+
+    @Test
+    public void bondChanges_updateTheIndexWithoutQueryingTheAdapter() {
+        adapter.bonded.add(a);
+        BondedDeviceIndex index = new BondedDeviceIndex(adapter);
+
+        assertTrue(index.contains(a.getAddress()));
+        assertFalse(index.contains(b.getAddress()));
+        assertEquals(1, adapter.queryCount);
+
+        index.onBondStateChanged(b, BluetoothDevice.BOND_BONDING);
+        assertFalse(index.contains(b.getAddress()));
+        index.onBondStateChanged(b, BluetoothDevice.BOND_BONDED);
+        index.onBondStateChanged(a, BluetoothDevice.BOND_NONE);
+        assertTrue(index.contains(b.getAddress()));
+        assertFalse(index.contains(a.getAddress()));
+        assertEquals(1, index.getDevices().size());
+
+        assertEquals(1, adapter.queryCount);
+        assertEquals(1, index.getAdapterQueryCount());
+        // Every lookup after the first one was served from the index.
+        assertEquals(5, index.getAvoidedQueryCount());
+    }
+
+    @Test
+    public void changesBeforeTheFirstLoad_areLeftToTheLoad() {
+        BondedDeviceIndex index = new BondedDeviceIndex(adapter);
+        index.onBondStateChanged(a, BluetoothDevice.BOND_BONDED);
+        assertEquals(0, adapter.queryCount);
+
+        adapter.bonded.add(b);
+        assertFalse(index.contains(a.getAddress()));
+        assertTrue(index.contains(b.getAddress()));
+        assertEquals(1, index.getAdapterQueryCount());
+    }
+
+    @Test
+    public void invalidate_reloadsTheWholeSetOnce() {
+        adapter.bonded.add(a);
+        adapter.bonded.add(b);
+        BondedDeviceIndex index = new BondedDeviceIndex(adapter);
+        assertEquals(2, index.getDevices().size());
+
+        // The adapter forgot a and learned c while the index was not listening.
+        adapter.bonded.remove(a);
+        adapter.bonded.add(c);
+        index.invalidate();
+        assertFalse(index.contains(a.getAddress()));
+        assertTrue(index.contains(b.getAddress()));
+        assertTrue(index.contains(c.getAddress()));
+
+        assertEquals(2, adapter.queryCount);
+        assertEquals(2, index.getAdapterQueryCount());
+        assertEquals(2, index.getAvoidedQueryCount());
+    }
+}
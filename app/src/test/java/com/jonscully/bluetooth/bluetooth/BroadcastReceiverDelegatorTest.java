@@ -0,0 +1,188 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanResult;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowBluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+// Drives the real receiver, with its background HandlerThread, through broadcasts and checks what
+// reaches the main thread. A recording executor stands in for MainThreadExecutor. Runs on API 28,
+// Robolectric needs Java 9 for API 29 and the Gradle 5.4 wrapper may run on Java 8.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class BroadcastReceiverDelegatorTest {
+    private static final int DEVICES = 50;
+    private static final int SIGHTINGS_PER_DEVICE = 20;
+
+    // Queues the listener calls until the test, playing the main thread, runs them.
+    private static class RecordingMainExecutor implements Executor {
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final ConcurrentLinkedQueue<Thread> callers = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public void execute(Runnable task) {
+            callers.add(Thread.currentThread());
+            tasks.add(task);
+        }
+
+        int drain() {
+            int count = 0;
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+                count++;
+            }
+            return count;
+        }
+    }
+
+    private static class UiListener implements BluetoothDiscoveryDeviceListener {
+        final Thread mainThread = Thread.currentThread();
+        final List<List<BluetoothDevice>> batches = new ArrayList<>();
+        int singleDevices;
+        int endCount;
+        boolean offMainThread;
+
+        @Override
+        public void onDeviceDiscovered(BluetoothDevice device) {
+            offMainThread |= Thread.currentThread() != mainThread;
+            singleDevices++;
+        }
+
+        @Override
+        public void onDevicesDiscovered(List<BluetoothDevice> devices) {
+            offMainThread |= Thread.currentThread() != mainThread;
+            batches.add(devices);
+        }
+
+        @Override
+        public void onDeviceDiscoveryStarted() {
+        }
+
+        @Override
+        public void setBluetoothController(BluetoothController bluetooth) {
+        }
+
+        @Override
+        public void onDeviceDiscoveryEnd() {
+            offMainThread |= Thread.currentThread() != mainThread;
+            endCount++;
+        }
+
+        @Override
+        public void onBluetoothStatusChanged() {
+        }
+
+        @Override
+        public void onBluetoothTurningOn() {
+        }
+
+        @Override
+        public void onDevicePairingEnded() {
+        }
+    }
+
+    private Context context;
+    private UiListener ui;
+    private RecordingMainExecutor mainExecutor;
+    private BluetoothController controller;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack(new SimulatedBluetoothStack.Config());
+        stack.enable();
+        stack.runUntilIdle();
+        ui = new UiListener();
+        mainExecutor = new RecordingMainExecutor();
+        controller = new BluetoothController(context, stack, ui, DiscoveryCoalescer.DEFAULT_WINDOW_MILLIS,
+                true, mainExecutor);
+    }
+
+    @After
+    public void tearDown() {
+        controller.close();
+    }
+
+    @Test
+    public void backgroundReceiver_postsOnlyCoalescedBatchesToMainThread() {
+        BroadcastReceiverDelegator receiver = controller.getBroadcastReceiverDelegator();
+        assertTrue(receiver.isReceivingInBackground());
+        Looper receiverLooper = receiver.getLooper();
+        assertNotSame(Looper.getMainLooper(), receiverLooper);
+
+        for (int sighting = 0; sighting < SIGHTINGS_PER_DEVICE; sighting++) {
+            for (int device = 0; device < DEVICES; device++) {
+                context.sendBroadcast(found(device, (short) (-40 - sighting)));
+            }
+        }
+        context.sendBroadcast(new Intent(BluetoothAdapter.ACTION_DISCOVERY_FINISHED));
+        shadowOf(receiverLooper).idle();
+
+        // Parsing, the pipeline and the coalescer ran on the receiver thread, every sighting
+        // counted there.
+        assertEquals(DEVICES * SIGHTINGS_PER_DEVICE, controller.getDiscoveryCoalescer().getRawEventCount());
+        assertEquals(DEVICES, controller.getDeviceRegistry().size());
+        // The main thread gets one batch of distinct devices and the end of the discovery.
+        assertEquals(2, mainExecutor.tasks.size());
+        for (Thread caller : mainExecutor.callers) {
+            assertEquals(receiverLooper.getThread(), caller);
+        }
+
+        assertEquals(2, mainExecutor.drain());
+        assertFalse(ui.offMainThread);
+        assertEquals(0, ui.singleDevices);
+        assertEquals(1, ui.batches.size());
+        assertEquals(DEVICES, ui.batches.get(0).size());
+        assertEquals(1, ui.endCount);
+    }
+
+    @Test
+    public void leResults_doNotEndTheDiscoveryFirstResultWait() {
+        BroadcastReceiverDelegator receiver = controller.getBroadcastReceiverDelegator();
+        BluetoothMetrics metrics = controller.getMetrics();
+        metrics.onDiscoveryRequested(SystemClock.elapsedRealtime());
+
+        BluetoothDevice beacon = ShadowBluetoothDevice.newInstance(MacAddress.toString(SimulatedBluetoothStack.addressOf(1)));
+        receiver.onLeScanResults(Collections.singletonList(new ScanResult(beacon, null, -60, 0)));
+        shadowOf(receiver.getLooper()).idle();
+        assertEquals(1, controller.getDeviceRegistry().size());
+        assertEquals(0, metrics.getDiscoveryFirstResult().snapshot().getCount());
+
+        context.sendBroadcast(found(2, (short) -50));
+        shadowOf(receiver.getLooper()).idle();
+        assertEquals(1, metrics.getDiscoveryFirstResult().snapshot().getCount());
+    }
+
+    private static Intent found(int device, short rssi) {
+        long address = SimulatedBluetoothStack.addressOf(device);
+        Intent intent = new Intent(BluetoothDevice.ACTION_FOUND);
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, ShadowBluetoothDevice.newInstance(MacAddress.toString(address)));
+        intent.putExtra(BluetoothDevice.EXTRA_NAME, SimulatedBluetoothStack.nameOf(address));
+        intent.putExtra(BluetoothDevice.EXTRA_RSSI, rssi);
+        return intent;
+    }
+}
@@ -0,0 +1,122 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class DeviceCacheTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("devices", ".cache");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void load_returnsLatestRecordPerDevice() throws IOException {
+        DeviceCache cache = new DeviceCache(file);
+        cache.append(1L, 10, (short) -40, 10, "first");
+        cache.append(2L, 20, (short) -50, 12, "second");
+        cache.append(1L, 30, (short) -45, 12, null);
+        cache.close();
+
+        cache = new DeviceCache(file);
+        List<DeviceCache.Entry> entries = cache.load();
+        cache.close();
+        assertEquals(2, entries.size());
+        assertEquals(1L, entries.get(0).address);
+        assertEquals(30, entries.get(0).lastSeen);
+        assertEquals(12, entries.get(0).bondState);
+        assertEquals("first", entries.get(0).name);
+        assertEquals("second", entries.get(1).name);
+    }
+
+    @Test
+    public void open_dropsTornTailRecord() throws IOException {
+        DeviceCache cache = new DeviceCache(file);
+        cache.append(1L, 10, (short) -40, 10, "kept");
+        cache.append(2L, 20, (short) -50, 10, "torn");
+        cache.close();
+
+        // Simulates a crash in the middle of writing the second record.
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.setLength(raw.length() - 10);
+        raw.close();
+
+        cache = new DeviceCache(file);
+        assertEquals(1, cache.getRecordCount());
+        cache.append(3L, 30, (short) -60, 10, "appended");
+        List<DeviceCache.Entry> entries = cache.load();
+        cache.close();
+        assertEquals(2, entries.size());
+        assertEquals("kept", entries.get(0).name);
+        assertEquals("appended", entries.get(1).name);
+    }
+
+    @Test
+    public void compact_keepsOneRecordPerDevice() throws IOException {
+        DeviceCache cache = new DeviceCache(file);
+        for (int i = 0; i < 1000; i++) {
+            cache.append(i % 10, i, (short) -50, 10, "device" + (i % 10));
+        }
+        assertTrue(cache.compactIfNeeded());
+        assertEquals(10, cache.getRecordCount());
+        assertEquals(10, cache.load().size());
+        cache.close();
+        assertEquals(8 + 10 * DeviceCache.RECORD_SIZE, file.length());
+    }
+
+    @Test
+    public void append_truncatesLongNamesOnCharacterBoundary() throws IOException {
+        DeviceCache cache = new DeviceCache(file);
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            name.append('\u00e9');
+        }
+        cache.append(1L, 1, (short) 0, 10, name.toString());
+        String stored = cache.load().get(0).name;
+        cache.close();
+        assertEquals(20, stored.length());
+    }
+
+    @Test
+    public void pipeline_writesThroughTheGivenExecutor() throws IOException {
+        final List<Runnable> queued = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        };
+        DeviceCache cache = new DeviceCache(file);
+        DeviceEventPipeline pipeline = new DeviceEventPipeline(new DeviceRegistry());
+        pipeline.setDeviceCache(cache, executor);
+
+        pipeline.onDeviceFound(1, 1L, "first", (short) -40, 0);
+        pipeline.onDiscoveryFinished(2);
+        assertEquals(0, cache.getRecordCount());
+        assertEquals(2, queued.size());
+
+        for (Runnable write : queued) {
+            write.run();
+        }
+        List<DeviceCache.Entry> entries = cache.load();
+        cache.close();
+        assertEquals(1, entries.size());
+        assertEquals("first", entries.get(0).name);
+    }
+}
@@ -0,0 +1,124 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DeviceIndexTest {
+    private static final int HEADPHONES = BluetoothClass.Device.Major.AUDIO_VIDEO | 0x18;
+    private static final int PHONE = BluetoothClass.Device.Major.PHONE | 0x0C;
+
+    private static long[] sorted(long[] addresses, int count) {
+        long[] result = Arrays.copyOf(addresses, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    @Test
+    public void namePrefix_isCaseInsensitiveAndFollowsRenames() {
+        DeviceIndex index = new DeviceIndex(2);
+        index.update(1, "Jabra Elite", HEADPHONES, DeviceIndex.ANY, 10);
+        index.update(2, "JBL Flip", HEADPHONES, DeviceIndex.ANY, 20);
+        index.update(3, "Pixel", PHONE, DeviceIndex.ANY, 30);
+        long[] found = new long[8];
+
+        assertArrayEquals(new long[]{1, 2}, sorted(found, index.find(new DeviceIndex.Query().namePrefix("j"), found)));
+        assertArrayEquals(new long[]{1}, sorted(found, index.find(new DeviceIndex.Query().namePrefix("JAB"), found)));
+        assertEquals(0, index.count(new DeviceIndex.Query().namePrefix("jabx")));
+
+        index.onNameChanged(40, 1, "Bose QC");
+        assertEquals(1, index.count(new DeviceIndex.Query().namePrefix("j")));
+        assertEquals(1, index.count(new DeviceIndex.Query().namePrefix("bose")));
+        assertEquals(3, index.size());
+
+        index.onClassChanged(50, 3, HEADPHONES);
+        assertEquals(3, index.count(new DeviceIndex.Query().majorClass(BluetoothClass.Device.Major.AUDIO_VIDEO)));
+        assertEquals(0, index.count(new DeviceIndex.Query().majorClass(BluetoothClass.Device.Major.PHONE)));
+    }
+
+    @Test
+    public void classAndBondState_areIntersected() {
+        DeviceIndex index = new DeviceIndex();
+        index.update(1, "a", HEADPHONES, DeviceIndex.ANY, 10);
+        index.update(2, "b", HEADPHONES, DeviceIndex.ANY, 20);
+        index.update(3, "c", PHONE, DeviceIndex.ANY, 30);
+        index.onBondStateChanged(40, 2, BluetoothDevice.BOND_BONDED);
+        index.onBondStateChanged(41, 3, BluetoothDevice.BOND_BONDED);
+        long[] found = new long[8];
+
+        DeviceIndex.Query bondedAudio = new DeviceIndex.Query()
+                .majorClass(BluetoothClass.Device.Major.AUDIO_VIDEO)
+                .bondState(BluetoothDevice.BOND_BONDED);
+        assertArrayEquals(new long[]{2}, sorted(found, index.find(bondedAudio, found)));
+        assertEquals(1, index.count(new DeviceIndex.Query().bondState(BluetoothDevice.BOND_NONE)));
+
+        index.onBondStateChanged(50, 2, BluetoothDevice.BOND_NONE);
+        assertEquals(0, index.count(bondedAudio));
+        assertEquals(BluetoothDevice.BOND_NONE, index.getBondState(2));
+        // Bond events are not sightings.
+        assertEquals(20, index.getLastSeen(2));
+    }
+
+    @Test
+    public void unreportedClass_isNotMisc() {
+        DeviceIndex index = new DeviceIndex();
+        index.onDeviceFound(10, 1, "a", (short) -50, BluetoothEventSink.UNKNOWN_CLASS);
+        index.onDeviceFound(20, 2, "b", (short) -50, BluetoothClass.Device.Major.MISC);
+        index.onBondStateChanged(30, 3, BluetoothDevice.BOND_BONDED);
+        long[] found = new long[8];
+
+        assertArrayEquals(new long[]{2}, sorted(found, index.find(new DeviceIndex.Query().majorClass(BluetoothClass.Device.Major.MISC), found)));
+        assertArrayEquals(new long[]{1, 3}, sorted(found, index.find(new DeviceIndex.Query().unknownClass(), found)));
+        assertEquals(DeviceIndex.ANY, index.getDeviceClass(1));
+
+        index.onClassChanged(40, 1, PHONE);
+        // A sighting without a class keeps the reported one.
+        index.onDeviceFound(50, 1, "a", (short) -50, BluetoothEventSink.UNKNOWN_CLASS);
+        assertEquals(1, index.count(new DeviceIndex.Query().unknownClass()));
+        assertEquals(1, index.count(new DeviceIndex.Query().majorClass(BluetoothClass.Device.Major.PHONE)));
+    }
+
+    @Test
+    public void seenBetween_returnsMostRecentFirst() {
+        DeviceIndex index = new DeviceIndex(4);
+        for (int i = 1; i <= 10; i++) {
+            index.update(i, "dev" + i, PHONE, DeviceIndex.ANY, i * 100);
+        }
+        // Out of order sighting, moves the device to its place in time.
+        index.update(3, null, -1, DeviceIndex.ANY, 750);
+        index.onBondStateChanged(0, 99, BluetoothDevice.BOND_BONDED);
+        long[] found = new long[8];
+
+        int count = index.find(new DeviceIndex.Query().seenBetween(400, 800), found);
+        assertArrayEquals(new long[]{8, 3, 7, 6, 5, 4}, Arrays.copyOf(found, count));
+        count = index.find(new DeviceIndex.Query().seenBetween(400, 800).namePrefix("dev1"), found);
+        assertEquals(0, count);
+        assertEquals(2, index.count(new DeviceIndex.Query().seenBetween(900, Long.MAX_VALUE)));
+        assertEquals(DeviceIndex.NEVER_SEEN, index.getLastSeen(99));
+        assertEquals(11, index.count(new DeviceIndex.Query()));
+    }
+
+    @Test
+    public void simulatedDiscovery_indexesEveryDevice() {
+        SimulatedBluetoothStack.Config config = new SimulatedBluetoothStack.Config();
+        config.deviceCount = 2000;
+        config.sightingsPerSecond = 2000;
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack(config);
+        DeviceIndex index = new DeviceIndex();
+        stack.addSink(index);
+        stack.enable();
+        stack.runUntilIdle();
+        stack.startDiscovery();
+        stack.runUntilIdle();
+
+        assertTrue(index.size() > 1900);
+        assertEquals(index.size(), index.count(new DeviceIndex.Query().namePrefix("sim-")));
+        assertEquals(11, index.count(new DeviceIndex.Query().namePrefix("SIM-199")));
+        assertEquals("SIM-5", index.getName(SimulatedBluetoothStack.addressOf(5)));
+    }
+}
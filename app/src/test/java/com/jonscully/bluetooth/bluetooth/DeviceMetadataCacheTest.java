@@ -0,0 +1,72 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DeviceMetadataCacheTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    @Test
+    public void servesBroadcastValuesAsHits() {
+        DeviceMetadataCache cache = new DeviceMetadataCache();
+        cache.onDeviceFound(ADDRESS, "Speaker", 0x0418, BluetoothDevice.BOND_NONE);
+
+        assertEquals("Speaker", cache.getName(ADDRESS, null));
+        assertEquals(0x0418, cache.getDeviceClass(ADDRESS, null));
+        assertEquals(BluetoothDevice.BOND_NONE, cache.getBondState(ADDRESS, null));
+        assertEquals(3, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void changesUpdateOnlyTheirField() {
+        DeviceMetadataCache cache = new DeviceMetadataCache();
+        cache.onDeviceFound(ADDRESS, null, 0x0418, BluetoothDevice.BOND_NONE);
+        assertNull(cache.getName(ADDRESS, null));
+        assertEquals(1, cache.getMissCount());
+
+        cache.onNameChanged(ADDRESS, "Speaker");
+        cache.onBondStateChanged(ADDRESS, BluetoothDevice.BOND_BONDED);
+        cache.onClassChanged(ADDRESS, 0x0404);
+        // A sighting without a name keeps the resolved one.
+        cache.onDeviceFound(ADDRESS, null, DeviceMetadataCache.UNKNOWN, DeviceMetadataCache.UNKNOWN);
+
+        assertEquals("Speaker", cache.getName(ADDRESS, null));
+        assertEquals(0x0404, cache.getDeviceClass(ADDRESS, null));
+        assertEquals(BluetoothDevice.BOND_BONDED, cache.getBondState(ADDRESS, null));
+        assertEquals(3, cache.getHitCount());
+    }
+
+    @Test
+    public void unknownDevicesMiss() {
+        DeviceMetadataCache cache = new DeviceMetadataCache(2);
+        assertEquals(DeviceMetadataCache.UNKNOWN, cache.getBondState(ADDRESS, null));
+        assertEquals(1, cache.getMissCount());
+
+        cache.onNameChanged("00:00:00:00:00:01", "a");
+        cache.invalidate("00:00:00:00:00:01");
+        assertEquals(0, cache.size());
+        assertNull(cache.getName("00:00:00:00:00:01", null));
+    }
+
+    @Test
+    public void capacityEvictsLeastRecentlyUsed() {
+        DeviceMetadataCache cache = new DeviceMetadataCache(2);
+        cache.onNameChanged("00:00:00:00:00:01", "a");
+        cache.onNameChanged("00:00:00:00:00:02", "b");
+        cache.onNameChanged("00:00:00:00:00:03", "c");
+        assertEquals(2, cache.size());
+        assertNull(cache.getName("00:00:00:00:00:01", null));
+        assertEquals("c", cache.getName("00:00:00:00:00:03", null));
+
+        // A lookup counts as a use, so the untouched device goes next.
+        assertEquals("b", cache.getName("00:00:00:00:00:02", null));
+        cache.onNameChanged("00:00:00:00:00:04", "d");
+        assertNull(cache.getName("00:00:00:00:00:03", null));
+        assertEquals("b", cache.getName("00:00:00:00:00:02", null));
+        assertEquals("d", cache.getName("00:00:00:00:00:04", null));
+    }
+}
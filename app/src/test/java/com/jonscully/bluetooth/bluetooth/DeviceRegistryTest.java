@@ -0,0 +1,70 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+    @Test
+    public void macAddress_roundTrips() {
+        long address = MacAddress.toLong("00:1A:7d:DA:71:13");
+        assertEquals(0x001A7DDA7113L, address);
+        assertEquals("00:1A:7D:DA:71:13", MacAddress.toString(address));
+        assertEquals(MacAddress.INVALID, MacAddress.toLong("00:1A:7D:DA:71"));
+        assertEquals(MacAddress.INVALID, MacAddress.toLong("00-1A-7D-DA-71-13"));
+        assertEquals(MacAddress.INVALID, MacAddress.toLong(null));
+    }
+
+    @Test
+    public void update_storesAndRefreshesFields() {
+        DeviceRegistry registry = new DeviceRegistry(4);
+        assertTrue(registry.update(1L, 100, (short) -60, 10, "tag"));
+        assertFalse(registry.update(1L, 200, (short) -50, 12, null));
+
+        assertEquals(1, registry.size());
+        assertEquals(200, registry.getLastSeen(1L));
+        assertEquals(-50, registry.getRssi(1L));
+        assertEquals(12, registry.getBondState(1L));
+        assertEquals("tag", registry.getName(1L));
+        assertEquals(DeviceRegistry.RSSI_UNKNOWN, registry.getRssi(2L));
+    }
+
+    @Test
+    public void update_evictsLeastRecentlySeen() {
+        DeviceRegistry registry = new DeviceRegistry(3);
+        registry.update(1L, 1, (short) 0, 0, null);
+        registry.update(2L, 2, (short) 0, 0, null);
+        registry.update(3L, 3, (short) 0, 0, null);
+        // Refreshing 1 makes 2 the oldest.
+        registry.update(1L, 4, (short) 0, 0, null);
+        registry.update(4L, 5, (short) 0, 0, null);
+
+        assertFalse(registry.contains(2L));
+        assertTrue(registry.contains(1L));
+        assertTrue(registry.contains(3L));
+        assertTrue(registry.contains(4L));
+        assertEquals(1, registry.getEvictionCount());
+
+        long[] addresses = new long[3];
+        assertEquals(3, registry.copyAddresses(addresses));
+        assertArrayEquals(new long[]{4L, 1L, 3L}, addresses);
+    }
+
+    @Test
+    public void registry_holdsHundredThousandEntries() {
+        int capacity = 100000;
+        DeviceRegistry registry = new DeviceRegistry(capacity);
+        for (long i = 0; i < capacity * 2; i++) {
+            registry.update(i * 31, i, (short) -70, 10, null);
+        }
+        assertEquals(capacity, registry.size());
+        assertEquals(capacity, registry.getEvictionCount());
+        // Only the newest half survives and all of it is still reachable after the evictions.
+        for (long i = 0; i < capacity; i++) {
+            assertFalse(registry.contains(i * 31));
+        }
+        for (long i = capacity; i < capacity * 2; i++) {
+            assertEquals(i, registry.getLastSeen(i * 31));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowBluetoothDevice;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+// The flush is posted on the paused main looper, idleFor() moves the clock through the window.
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class DiscoveryCoalescerTest {
+    private static final long WINDOW = 500;
+
+    private static class RecordingListener implements BluetoothDiscoveryDeviceListener {
+        final List<List<BluetoothDevice>> batches = new ArrayList<>();
+
+        @Override
+        public void onDeviceDiscovered(BluetoothDevice device) {
+            fail("Sightings are only delivered in batches");
+        }
+
+        @Override
+        public void onDevicesDiscovered(List<BluetoothDevice> devices) {
+            batches.add(devices);
+        }
+
+        @Override
+        public void onDeviceDiscoveryStarted() {
+        }
+
+        @Override
+        public void setBluetoothController(BluetoothController bluetooth) {
+        }
+
+        @Override
+        public void onDeviceDiscoveryEnd() {
+        }
+
+        @Override
+        public void onBluetoothStatusChanged() {
+        }
+
+        @Override
+        public void onBluetoothTurningOn() {
+        }
+
+        @Override
+        public void onDevicePairingEnded() {
+        }
+    }
+
+    private final RecordingListener listener = new RecordingListener();
+    private ShadowLooper looper;
+    private BluetoothDevice a;
+    private BluetoothDevice b;
+
+    @Before
+    public void setUp() {
+        looper = shadowOf(Looper.getMainLooper());
+        a = ShadowBluetoothDevice.newInstance("00:00:00:00:00:0A");
+        b = ShadowBluetoothDevice.newInstance("00:00:00:00:00:0B");
+    }
+
+    private DiscoveryCoalescer coalescer(long windowMillis) {
+        return new DiscoveryCoalescer(listener, new Handler(Looper.getMainLooper()), windowMillis);
+    }
+
+    @Test
+    public void sightingsInsideTheWindow_areDeliveredAsOneBatch() {
+        DiscoveryCoalescer coalescer = coalescer(WINDOW);
+        coalescer.onDeviceFound(a);
+        looper.idleFor(WINDOW / 2, TimeUnit.MILLISECONDS);
+        coalescer.onDeviceFound(b);
+        coalescer.onDeviceFound(a);
+        looper.idleFor(WINDOW / 2 - 1, TimeUnit.MILLISECONDS);
+        assertTrue(listener.batches.isEmpty());
+
+        // The window runs from the first sighting, later ones do not push the flush back.
+        looper.idleFor(1, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(Arrays.asList(a, b)), listener.batches);
+        assertEquals(3, coalescer.getRawEventCount());
+        assertEquals(2, coalescer.getDeliveredEventCount());
+    }
+
+    @Test
+    public void deliveredAddress_isDroppedUntilTheWindowHasPassed() {
+        DiscoveryCoalescer coalescer = coalescer(WINDOW);
+        coalescer.onDeviceFound(a);
+        looper.idleFor(WINDOW, TimeUnit.MILLISECONDS);
+
+        coalescer.onDeviceFound(a);
+        coalescer.onDeviceFound(b);
+        looper.idleFor(WINDOW, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(b), listener.batches.get(1));
+
+        coalescer.onDeviceFound(a);
+        looper.idleFor(WINDOW, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(a), listener.batches.get(2));
+        assertEquals(3, coalescer.getDeliveredEventCount());
+    }
+
+    @Test
+    public void discoveryFinished_flushesAtOnceAndOnlyOnce() {
+        DiscoveryCoalescer coalescer = coalescer(WINDOW);
+        coalescer.onDeviceFound(a);
+        coalescer.onDeviceFound(b);
+
+        // What BroadcastReceiverDelegator does on ACTION_DISCOVERY_FINISHED.
+        coalescer.flush();
+        assertEquals(1, listener.batches.size());
+        looper.idleFor(WINDOW, TimeUnit.MILLISECONDS);
+        assertEquals(1, listener.batches.size());
+        coalescer.flush();
+        assertEquals(1, listener.batches.size());
+    }
+}
@@ -0,0 +1,144 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.os.Handler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DiscoverySchedulerTest {
+    // Stands in for the controller: a requested cycle goes straight to requestDiscovery(), as
+    // the state machine does while the adapter is on.
+    private static class FakeRadio implements DiscoveryScheduler.Radio {
+        DiscoveryScheduler scheduler;
+        boolean discovering;
+        boolean accept = true;
+        int startCount;
+        int requestCount;
+        boolean calledLocked;
+
+        @Override
+        public boolean isDiscovering() {
+            calledLocked |= Thread.holdsLock(scheduler);
+            return discovering;
+        }
+
+        @Override
+        public boolean startDiscovery() {
+            startCount++;
+            calledLocked |= Thread.holdsLock(scheduler);
+            discovering = accept;
+            return accept;
+        }
+
+        @Override
+        public void requestCycle() {
+            requestCount++;
+            scheduler.requestDiscovery();
+        }
+
+        void finishCycle(int newDevices) {
+            for (int i = 0; i < newDevices; i++) {
+                scheduler.onDeviceFound(true);
+            }
+            scheduler.onDeviceFound(false);
+            discovering = false;
+            scheduler.onCycleFinished();
+        }
+    }
+
+    private static FakeRadio radio() {
+        FakeRadio radio = new FakeRadio();
+        radio.scheduler = new DiscoveryScheduler(radio, new Handler());
+        return radio;
+    }
+
+    @Test
+    public void requestsDuringACycle_joinIt() {
+        FakeRadio radio = radio();
+        DiscoveryScheduler scheduler = radio.scheduler;
+
+        scheduler.requestDiscovery();
+        scheduler.requestDiscovery();
+        assertEquals(1, radio.startCount);
+        assertEquals(1, scheduler.getCoalescedRequestCount());
+        assertTrue(scheduler.isCycleRunning());
+
+        radio.finishCycle(3);
+        assertFalse(scheduler.isCycleRunning());
+        assertEquals(1, scheduler.getCycleCount());
+        // Elapsed radio time is clamped to 1 ms when the clock does not move.
+        assertEquals(3000.0, scheduler.getLastCycleEfficiency(), 0);
+
+        // A cycle started by someone else is adopted, not restarted.
+        radio.discovering = true;
+        scheduler.requestDiscovery();
+        assertEquals(1, radio.startCount);
+        assertTrue(scheduler.isCycleRunning());
+    }
+
+    @Test
+    public void periodicCycles_backOffWhileNothingIsFound() {
+        FakeRadio radio = radio();
+        DiscoveryScheduler scheduler = radio.scheduler;
+
+        scheduler.startPeriodic(1000, 3000);
+        assertEquals(1, radio.requestCount);
+        assertEquals(1, radio.startCount);
+        radio.finishCycle(0);
+        assertEquals(2000, scheduler.getCurrentIntervalMillis());
+
+        scheduler.onPeriodicDue();
+        radio.finishCycle(0);
+        assertEquals(3000, scheduler.getCurrentIntervalMillis());
+        scheduler.onPeriodicDue();
+        radio.finishCycle(0);
+        assertEquals(3000, scheduler.getCurrentIntervalMillis());
+
+        scheduler.onPeriodicDue();
+        radio.finishCycle(2);
+        assertEquals(1000, scheduler.getCurrentIntervalMillis());
+        // Every periodic cycle went through the owner of the adapter.
+        assertEquals(4, radio.requestCount);
+        assertEquals(4, scheduler.getCycleCount());
+
+        scheduler.stopPeriodic();
+        scheduler.onPeriodicDue();
+        assertEquals(4, radio.requestCount);
+    }
+
+    @Test
+    public void failedStarts_backOffAndKeepThePeriod() {
+        FakeRadio radio = radio();
+        DiscoveryScheduler scheduler = radio.scheduler;
+        radio.accept = false;
+
+        scheduler.startPeriodic(1000, 8000);
+        assertFalse(scheduler.isCycleRunning());
+        assertEquals(2000, scheduler.getCurrentIntervalMillis());
+
+        // Refused by the state machine before the radio was asked.
+        scheduler.onRequestFailed();
+        assertEquals(4000, scheduler.getCurrentIntervalMillis());
+        assertTrue(scheduler.isPeriodic());
+        assertEquals(0, scheduler.getCycleCount());
+    }
+
+    @Test
+    public void adapterOffMidCycle_endsTheCycle() {
+        FakeRadio radio = radio();
+        DiscoveryScheduler scheduler = radio.scheduler;
+
+        scheduler.requestDiscovery();
+        // Turned off before ACTION_DISCOVERY_FINISHED, which then never comes.
+        radio.discovering = false;
+        scheduler.onAdapterOff();
+        assertFalse(scheduler.isCycleRunning());
+        assertEquals(0, scheduler.getCycleCount());
+
+        scheduler.requestDiscovery();
+        assertEquals(2, radio.startCount);
+        assertEquals(0, scheduler.getCoalescedRequestCount());
+        assertFalse(radio.calledLocked);
+    }
+}
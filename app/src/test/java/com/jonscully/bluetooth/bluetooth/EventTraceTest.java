@@ -0,0 +1,175 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EventTraceTest {
+    // Keeps every event as a line, to compare streams.
+    private static class RecordingSink implements BluetoothEventSink {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onDeviceFound(long timestamp, long address, String name, short rssi, int deviceClass) {
+            events.add("found " + timestamp + " " + address + " " + name + " " + rssi + " " + deviceClass);
+        }
+
+        @Override
+        public void onNameChanged(long timestamp, long address, String name) {
+            events.add("name " + timestamp + " " + address + " " + name);
+        }
+
+        @Override
+        public void onClassChanged(long timestamp, long address, int deviceClass) {
+            events.add("class " + timestamp + " " + address + " " + deviceClass);
+        }
+
+        @Override
+        public void onDiscoveryStarted(long timestamp) {
+            events.add("started " + timestamp);
+        }
+
+        @Override
+        public void onDiscoveryFinished(long timestamp) {
+            events.add("finished " + timestamp);
+        }
+
+        @Override
+        public void onAdapterStateChanged(long timestamp, int state) {
+            events.add("state " + timestamp + " " + state);
+        }
+
+        @Override
+        public void onBondStateChanged(long timestamp, long address, int bondState) {
+            events.add("bond " + timestamp + " " + address + " " + bondState);
+        }
+    }
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("events", ".trace");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void replay_reproducesRecordedStream() throws IOException, InterruptedException {
+        SimulatedBluetoothStack.Config config = new SimulatedBluetoothStack.Config();
+        config.deviceCount = 50;
+        config.sightingsPerSecond = 100;
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack(config);
+        RecordingSink live = new RecordingSink();
+        EventTraceRecorder recorder = new EventTraceRecorder(file);
+        stack.addSink(live);
+        stack.addSink(recorder);
+        stack.enable();
+        stack.runUntilIdle();
+        stack.startDiscovery();
+        stack.createBond(SimulatedBluetoothStack.addressOf(3));
+        stack.runUntilIdle();
+        recorder.close();
+
+        EventTraceReplayer replayer = new EventTraceReplayer(file);
+        RecordingSink replayed = new RecordingSink();
+        assertEquals(live.events.size(), replayer.replay(replayed, EventTraceReplayer.AS_FAST_AS_POSSIBLE));
+        replayer.close();
+        assertEquals(recorder.getRecordCount(), live.events.size());
+        assertEquals(live.events, replayed.events);
+    }
+
+    @Test
+    public void longNames_areTruncatedOnCharacterBoundary() throws IOException, InterruptedException {
+        EventTraceRecorder recorder = new EventTraceRecorder(file);
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            name.append('\u00e9');
+        }
+        recorder.onDeviceFound(1, 2, name.toString(), (short) -50, 0x0404);
+        recorder.onDeviceFound(2, 3, null, (short) -60, 0);
+        recorder.close();
+
+        RecordingSink replayed = new RecordingSink();
+        EventTraceReplayer replayer = new EventTraceReplayer(file);
+        replayer.replay(replayed, EventTraceReplayer.AS_FAST_AS_POSSIBLE);
+        replayer.close();
+        assertEquals("found 1 2 " + name.substring(0, 20) + " -50 1028", replayed.events.get(0));
+        assertEquals("found 2 3 null -60 0", replayed.events.get(1));
+    }
+
+    @Test
+    public void replay_rebuildsDeviceIndexFromLateNameAndClass() throws IOException, InterruptedException {
+        EventTraceRecorder recorder = new EventTraceRecorder(file);
+        recorder.onDeviceFound(1, 2, null, (short) -50, BluetoothEventSink.UNKNOWN_CLASS);
+        recorder.onNameChanged(2, 2, "Jabra Elite");
+        recorder.onClassChanged(3, 2, 0x0418);
+        recorder.close();
+
+        RecordingSink replayed = new RecordingSink();
+        DeviceIndex index = new DeviceIndex();
+        EventTraceReplayer replayer = new EventTraceReplayer(file);
+        replayer.replay(replayed, EventTraceReplayer.AS_FAST_AS_POSSIBLE);
+        replayer.replay(index, EventTraceReplayer.AS_FAST_AS_POSSIBLE);
+        replayer.close();
+        assertEquals("name 2 2 Jabra Elite", replayed.events.get(1));
+        assertEquals("class 3 2 1048", replayed.events.get(2));
+        assertEquals("Jabra Elite", index.getName(2));
+        assertEquals(0x0418, index.getDeviceClass(2));
+    }
+
+    @Test
+    public void tornLastRecord_isIgnored() throws IOException, InterruptedException {
+        EventTraceRecorder recorder = new EventTraceRecorder(file);
+        recorder.onBondStateChanged(5, 7, BluetoothDevice.BOND_BONDED);
+        recorder.onDiscoveryStarted(6);
+        recorder.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 10);
+        raf.close();
+
+        RecordingSink replayed = new RecordingSink();
+        EventTraceReplayer replayer = new EventTraceReplayer(file);
+        assertEquals(1, replayer.getRecordCount());
+        assertEquals(1, replayer.replay(replayed, EventTraceReplayer.AS_FAST_AS_POSSIBLE));
+        replayer.close();
+        assertEquals("bond 5 7 " + BluetoothDevice.BOND_BONDED, replayed.events.get(0));
+    }
+
+    @Test
+    public void replay_reproducesGapsDividedBySpeed() throws IOException, InterruptedException {
+        EventTraceRecorder recorder = new EventTraceRecorder(file);
+        recorder.onDiscoveryStarted(1000);
+        recorder.onDiscoveryFinished(1500);
+        recorder.close();
+
+        EventTraceReplayer replayer = new EventTraceReplayer(file);
+        assertEquals(500, replayer.getDurationMillis());
+        long start = System.nanoTime();
+        replayer.replay(new RecordingSink(), 10);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+        replayer.close();
+        assertTrue("Replay took " + elapsedMillis + " ms", elapsedMillis >= 50);
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFile_isRejected() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeLong(42);
+        raf.close();
+        new EventTraceReplayer(file);
+    }
+}
@@ -0,0 +1,117 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void bucketsCoverEveryValue() {
+        long[] values = {0, 1, 15, 16, 17, 31, 32, 1000, 123456789L, Long.MAX_VALUE};
+        for (long value : values) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(LatencyHistogram.lowerBoundOf(bucket) <= value);
+            if (LatencyHistogram.bucketOf(value + 1) != bucket && value != Long.MAX_VALUE) {
+                assertEquals(value + 1, LatencyHistogram.lowerBoundOf(bucket + 1));
+            }
+        }
+    }
+
+    @Test
+    public void percentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.record(i);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(10000, snapshot.getMax());
+        assertEquals(5000.5, snapshot.getMean(), 0.001);
+        assertEquals(5000, snapshot.getPercentile(50), 5000 * 0.07);
+        assertEquals(9900, snapshot.getPercentile(99), 9900 * 0.07);
+        assertEquals(10000, snapshot.getPercentile(100));
+    }
+
+    @Test
+    public void snapshotAndResetClears() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(42);
+        assertEquals(1, histogram.snapshotAndReset().getCount());
+        LatencyHistogram.Snapshot empty = histogram.snapshot();
+        assertEquals(0, empty.getCount());
+        assertEquals(0, empty.getMax());
+        assertEquals(0, empty.getPercentile(99));
+    }
+
+    @Test
+    public void concurrentRecordsAreNotLost() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        histogram.record(i % 5000);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000, histogram.snapshot().getCount());
+    }
+
+    @Test
+    public void metricsMeasureSimulatedStack() {
+        SimulatedBluetoothStack.Config config = new SimulatedBluetoothStack.Config();
+        config.deviceCount = 10;
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack(config);
+        BluetoothMetrics metrics = new BluetoothMetrics();
+        stack.addSink(metrics);
+
+        metrics.onTurnOnRequested(stack.now());
+        stack.enable();
+        stack.runUntilIdle();
+        assertEquals(BluetoothAdapter.STATE_ON, stack.getState());
+        LatencyHistogram.Snapshot turnOn = metrics.getAdapterTurnOn().snapshot();
+        assertEquals(1, turnOn.getCount());
+        assertEquals(config.turnOnDelayMillis, turnOn.getMax());
+
+        metrics.onDiscoveryRequested(stack.now());
+        stack.startDiscovery();
+        stack.runUntilIdle();
+        assertEquals(1, metrics.getDiscoveryFirstResult().snapshot().getCount());
+
+        long address = SimulatedBluetoothStack.addressOf(3);
+        metrics.onBondRequested(stack.now(), address);
+        stack.createBond(address);
+        stack.runUntilIdle();
+        assertTrue(stack.getBondedAddresses().contains(address));
+        assertEquals(config.bondDelayMillis, metrics.getBond().snapshot().getMax());
+
+        metrics.reset();
+        assertEquals(0, metrics.snapshot().get(BluetoothMetrics.BOND).getCount());
+    }
+
+    @Test
+    public void abandonedBondsFreeTheirSlot() {
+        BluetoothMetrics metrics = new BluetoothMetrics();
+        // More timed out bonds than there are slots, none of them broadcast an outcome.
+        for (long address = 0; address < 100; address++) {
+            metrics.onBondRequested(0, address);
+            metrics.onBondAbandoned(address);
+        }
+        assertEquals(0, metrics.getPendingBondCount());
+
+        metrics.onBondRequested(10, 200);
+        metrics.onBondStateChanged(40, 200, BluetoothDevice.BOND_BONDED);
+        assertEquals(1, metrics.getBond().snapshot().getCount());
+        assertEquals(30, metrics.getBond().snapshot().getMax());
+    }
+}
@@ -0,0 +1,118 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LeScanControllerTest {
+    private static final int RESULTS = 10000;
+    private static final int BATCH_SIZE = 100;
+
+    // Keeps the callback so the test can play the chip.
+    private static class FakeScanner implements LeScanController.Scanner {
+        ScanCallback callback;
+        int stopCount;
+
+        @Override
+        public void startScan(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void stopScan(ScanCallback callback) {
+            stopCount++;
+        }
+    }
+
+    private static class CountingSink implements LeScanController.ResultSink {
+        long resultCount;
+        int batchCount;
+        int startedCount;
+        int stoppedCount;
+
+        @Override
+        public void onLeScanStarted() {
+            startedCount++;
+        }
+
+        @Override
+        public void onLeScanResults(List<ScanResult> results) {
+            resultCount += results.size();
+            batchCount++;
+        }
+
+        @Override
+        public void onLeScanStopped() {
+            stoppedCount++;
+        }
+    }
+
+    private static LeScanController newController(FakeScanner scanner, CountingSink sink) {
+        return new LeScanController(scanner, sink) {
+            @Override
+            ScanSettings buildSettings(int scanMode, long reportDelayMillis) {
+                return null;
+            }
+        };
+    }
+
+    @Test
+    public void forwardsEveryResultOncePerCallback() {
+        FakeScanner scanner = new FakeScanner();
+        CountingSink sink = new CountingSink();
+        LeScanController controller = newController(scanner, sink);
+        controller.start(ScanSettings.SCAN_MODE_LOW_LATENCY, 0, null);
+        assertSame(controller.getScanCallback(), scanner.callback);
+        assertEquals(1, sink.startedCount);
+
+        List<ScanResult> batch = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            batch.add(new ScanResult(null, null, -60, 0));
+        }
+        scanner.callback.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, batch.get(0));
+        scanner.callback.onBatchScanResults(batch);
+        assertEquals(6, sink.resultCount);
+        assertEquals(2, sink.batchCount);
+        assertEquals(6, controller.getResultCount());
+        assertEquals(2, controller.getBatchCount());
+
+        controller.stop();
+        controller.stop();
+        assertEquals(1, scanner.stopCount);
+        assertEquals(1, sink.stoppedCount);
+        assertFalse(controller.isScanning());
+    }
+
+    // Immediate and batched reporting mixed, every result counted once.
+    @Test
+    public void forwardsImmediateAndBatchedResults() {
+        FakeScanner scanner = new FakeScanner();
+        CountingSink sink = new CountingSink();
+        LeScanController controller = newController(scanner, sink);
+        controller.start(ScanSettings.SCAN_MODE_LOW_LATENCY, 0, null);
+        ScanResult result = new ScanResult(null, null, -60, 0);
+        List<ScanResult> batch = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch.add(result);
+        }
+
+        for (int i = 0; i < RESULTS; i++) {
+            scanner.callback.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
+        }
+        for (int i = 0; i < RESULTS / BATCH_SIZE; i++) {
+            scanner.callback.onBatchScanResults(batch);
+        }
+
+        assertEquals(2 * RESULTS, sink.resultCount);
+        assertEquals(RESULTS + RESULTS / BATCH_SIZE, sink.batchCount);
+        assertEquals(2 * RESULTS, controller.getResultCount());
+    }
+}
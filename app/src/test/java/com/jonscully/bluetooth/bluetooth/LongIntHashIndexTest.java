@@ -0,0 +1,71 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongIntHashIndexTest {
+    @Test
+    public void slots_areTwoToFourPerEntry() {
+        assertEquals(2, new LongIntHashIndex(1).slotCount());
+        assertEquals(8, new LongIntHashIndex(3).slotCount());
+        assertEquals(8, new LongIntHashIndex(4).slotCount());
+        assertEquals(16, new LongIntHashIndex(5).slotCount());
+    }
+
+    @Test
+    public void randomInsertsAndRemoves_matchAMap() {
+        int capacity = 64;
+        LongIntHashIndex index = new LongIntHashIndex(capacity);
+        long[] keys = new long[capacity];
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int step = 0; step < 20000; step++) {
+            // Few distinct addresses, so the table stays full and clusters form and break up.
+            long key = SimulatedBluetoothStack.addressOf(random.nextInt(2 * capacity));
+            Integer entry = expected.get(key);
+            if (entry != null) {
+                index.remove(key, keys);
+                expected.remove(key);
+                keys[entry] = 0;
+            } else if (expected.size() < capacity) {
+                int free = 0;
+                while (expected.containsValue(free)) {
+                    free++;
+                }
+                keys[free] = key;
+                index.insert(key, free);
+                expected.put(key, free);
+            }
+            for (int i = 0; i < 2 * capacity; i++) {
+                long probe = SimulatedBluetoothStack.addressOf(i);
+                Integer found = expected.get(probe);
+                assertEquals(found == null ? LongIntHashIndex.NOT_FOUND : (int) found, index.find(probe, keys));
+            }
+        }
+    }
+
+    @Test
+    public void resize_keepsTheEntries() {
+        long[] keys = new long[8];
+        LongIntHashIndex index = new LongIntHashIndex(4);
+        for (int entry = 0; entry < 4; entry++) {
+            keys[entry] = MacAddress.toLong("00:11:22:33:44:0" + entry);
+            index.insert(keys[entry], entry);
+        }
+
+        index.resize(keys.length, keys, 4);
+        assertEquals(16, index.slotCount());
+        for (int entry = 0; entry < 4; entry++) {
+            assertEquals(entry, index.find(keys[entry], keys));
+        }
+        assertEquals(LongIntHashIndex.NOT_FOUND, index.find(MacAddress.toLong("00:11:22:33:44:05"), keys));
+
+        index.clear();
+        assertEquals(LongIntHashIndex.NOT_FOUND, index.find(keys[0], keys));
+    }
+}
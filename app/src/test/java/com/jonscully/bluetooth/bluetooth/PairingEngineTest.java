@@ -0,0 +1,212 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class PairingEngineTest {
+    private static final String A = "00:00:00:00:00:0A";
+    private static final String B = "00:00:00:00:00:0B";
+    private static final String C = "00:00:00:00:00:0C";
+    private static final String D = "00:00:00:00:00:0D";
+
+    // The devices are null in JVM tests, the engine tracks requests by address.
+    private static class FakeBonder implements PairingEngine.Bonder {
+        int bondState = BluetoothDevice.BOND_NONE;
+        boolean accept = true;
+        int createBondCount;
+        int abandonedCount;
+        PairingEngine engine;
+        boolean calledLocked;
+
+        @Override
+        public int getBondState(BluetoothDevice device) {
+            calledLocked |= Thread.holdsLock(engine);
+            return bondState;
+        }
+
+        @Override
+        public boolean createBond(BluetoothDevice device) {
+            createBondCount++;
+            calledLocked |= Thread.holdsLock(engine);
+            return accept;
+        }
+
+        @Override
+        public void onAttemptAbandoned(BluetoothDevice device) {
+            abandonedCount++;
+        }
+    }
+
+    private static PairingEngine engine(FakeBonder bonder, int queueCapacity, int maxRetries) {
+        PairingEngine engine = new PairingEngine(bonder, new Handler(), queueCapacity);
+        bonder.engine = engine;
+        engine.configure(1, PairingEngine.DEFAULT_TIMEOUT_MILLIS, maxRetries);
+        return engine;
+    }
+
+    private static Throwable failure(BondFuture future) throws InterruptedException {
+        try {
+            future.get();
+            fail();
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    @Test
+    public void alreadyBonded_completesWithoutCreateBond() throws Exception {
+        FakeBonder bonder = new FakeBonder();
+        bonder.bondState = BluetoothDevice.BOND_BONDED;
+        PairingEngine engine = engine(bonder, PairingEngine.DEFAULT_QUEUE_CAPACITY, 3);
+
+        BondFuture future = engine.pair(A, null);
+        assertEquals(BluetoothDevice.BOND_BONDED, (int) future.get());
+        assertEquals(0, bonder.createBondCount);
+        assertEquals(0, engine.getRetryCount());
+        assertTrue(engine.isIdle());
+    }
+
+    @Test
+    public void refusedBond_retriesFromTheHandlerThenFails() throws Exception {
+        FakeBonder bonder = new FakeBonder();
+        bonder.accept = false;
+        PairingEngine engine = engine(bonder, PairingEngine.DEFAULT_QUEUE_CAPACITY, 2);
+
+        BondFuture future = engine.pair(A, null);
+        // The retry waits for its delay instead of calling createBond() again right away.
+        assertEquals(1, bonder.createBondCount);
+        assertEquals(1, engine.getRetryingCount());
+        assertFalse(future.isDone());
+        assertSame(future, engine.pair(A, null));
+
+        engine.onRetryDue(A);
+        assertEquals(2, bonder.createBondCount);
+        engine.onRetryDue(A);
+        assertEquals(3, bonder.createBondCount);
+
+        assertTrue(failure(future) instanceof PairingException);
+        assertEquals(3, bonder.abandonedCount);
+        assertEquals(2, engine.getRetryCount());
+        assertEquals(1, engine.getFailedCount());
+        assertTrue(engine.isIdle());
+    }
+
+    @Test
+    public void timedOutAttempt_isRetriedUntilBonded() throws Exception {
+        FakeBonder bonder = new FakeBonder();
+        PairingEngine engine = engine(bonder, PairingEngine.DEFAULT_QUEUE_CAPACITY, 1);
+
+        BondFuture future = engine.pair(A, null);
+        assertEquals(1, engine.getActiveCount());
+        engine.onAttemptTimedOut(A);
+        assertEquals(1, bonder.abandonedCount);
+        assertEquals(0, engine.getActiveCount());
+        assertEquals(1, engine.getRetryingCount());
+
+        engine.onRetryDue(A);
+        assertEquals(2, bonder.createBondCount);
+        engine.onBondStateChanged(A, BluetoothDevice.BOND_BONDING, PairingEngine.REASON_UNKNOWN);
+        assertFalse(future.isDone());
+        engine.onBondStateChanged(A, BluetoothDevice.BOND_BONDED, PairingEngine.REASON_UNKNOWN);
+        assertEquals(BluetoothDevice.BOND_BONDED, (int) future.get());
+        assertEquals(1, engine.getBondedCount());
+
+        BondFuture second = engine.pair(B, null);
+        engine.onAttemptTimedOut(B);
+        engine.onRetryDue(B);
+        engine.onAttemptTimedOut(B);
+        assertTrue(failure(second) instanceof TimeoutException);
+    }
+
+    @Test
+    public void duplicatesShareAFutureAndAFullQueueFailsFast() throws Exception {
+        FakeBonder bonder = new FakeBonder();
+        PairingEngine engine = engine(bonder, 2, 0);
+
+        BondFuture a = engine.pair(A, null);
+        assertSame(a, engine.pair(A, null));
+        BondFuture b = engine.pair(B, null);
+        assertSame(b, engine.pair(B, null));
+        BondFuture c = engine.pair(C, null);
+        assertEquals(1, engine.getActiveCount());
+        assertEquals(2, engine.getQueuedCount());
+
+        BondFuture d = engine.pair(D, null);
+        assertTrue(failure(d) instanceof PairingException);
+        assertEquals(1, engine.getFailedCount());
+
+        // Without retries a failed bond fails at once and the next request starts.
+        engine.onBondStateChanged(A, BluetoothDevice.BOND_NONE, PairingEngine.REASON_REMOTE_DEVICE_DOWN);
+        assertTrue(failure(a) instanceof PairingException);
+        assertEquals(2, bonder.createBondCount);
+        assertTrue(c.cancel(false));
+        engine.onBondStateChanged(B, BluetoothDevice.BOND_BONDED, PairingEngine.REASON_UNKNOWN);
+        assertEquals(BluetoothDevice.BOND_BONDED, (int) b.get());
+        assertTrue(engine.isIdle());
+    }
+
+    @Test
+    public void declinedBond_failsAsRejectedWithoutRetry() throws Exception {
+        final FakeBonder bonder = new FakeBonder();
+        final PairingEngine engine = engine(bonder, PairingEngine.DEFAULT_QUEUE_CAPACITY, 2);
+        final Boolean[] completedLocked = new Boolean[1];
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+
+        BondFuture transientFailure = engine.pair(A, null);
+        engine.onBondStateChanged(A, BluetoothDevice.BOND_NONE, PairingEngine.REASON_AUTH_TIMEOUT);
+        assertEquals(1, engine.getRetryingCount());
+        assertFalse(transientFailure.isDone());
+
+        BondFuture declined = engine.pair(B, null);
+        declined.addListener(new BondFuture.Listener() {
+            @Override
+            public void onBonded(BluetoothDevice device) {
+            }
+
+            @Override
+            public void onBondFailed(BluetoothDevice device, Throwable error) {
+                completedLocked[0] = Thread.holdsLock(engine);
+            }
+        }, direct);
+        engine.onBondStateChanged(B, BluetoothDevice.BOND_NONE, PairingEngine.REASON_AUTH_CANCELED);
+        Throwable error = failure(declined);
+        assertTrue(((PairingException) error).isRejected());
+        assertEquals(2, bonder.createBondCount);
+        assertEquals(1, engine.getRetryCount());
+        assertEquals(Boolean.FALSE, completedLocked[0]);
+        assertFalse(bonder.calledLocked);
+    }
+
+    @Test
+    public void bondedWhileQueued_completesWithoutCreateBond() throws Exception {
+        FakeBonder bonder = new FakeBonder();
+        PairingEngine engine = engine(bonder, PairingEngine.DEFAULT_QUEUE_CAPACITY, 0);
+
+        BondFuture a = engine.pair(A, null);
+        BondFuture b = engine.pair(B, null);
+        // B was bonded from the system settings while A held the only slot.
+        bonder.bondState = BluetoothDevice.BOND_BONDED;
+        engine.onBondStateChanged(A, BluetoothDevice.BOND_BONDED, PairingEngine.REASON_UNKNOWN);
+
+        assertEquals(BluetoothDevice.BOND_BONDED, (int) a.get());
+        assertEquals(BluetoothDevice.BOND_BONDED, (int) b.get());
+        assertEquals(1, bonder.createBondCount);
+        assertEquals(2, engine.getBondedCount());
+        assertTrue(engine.isIdle());
+        assertFalse(bonder.calledLocked);
+    }
+}
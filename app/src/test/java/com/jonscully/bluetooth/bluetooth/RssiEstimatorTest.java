@@ -0,0 +1,81 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RssiEstimatorTest {
+    @Test
+    public void smoothsNoisyReadings() {
+        RssiEstimator estimator = new RssiEstimator();
+        Random random = new Random(7);
+        float maxError = 0;
+        for (int i = 0; i < 200; i++) {
+            short reading = (short) Math.round(-70 + random.nextGaussian() * 4);
+            float estimate = estimator.update(1, i * 100L, reading);
+            if (i >= 50) {
+                maxError = Math.max(maxError, Math.abs(estimate + 70));
+            }
+        }
+        assertTrue("error " + maxError, maxError < 3);
+        assertEquals(200, estimator.getReadingCount(1));
+    }
+
+    @Test
+    public void followsMovingDeviceAfterSilence() {
+        RssiEstimator estimator = new RssiEstimator();
+        for (int i = 0; i < 50; i++) {
+            estimator.update(1, i * 100L, (short) -80);
+        }
+        // Ten seconds later the device is much closer.
+        estimator.update(1, 15000, (short) -50);
+        float estimate = estimator.update(1, 15100, (short) -50);
+        assertTrue("estimate " + estimate, estimate > -56);
+    }
+
+    @Test
+    public void nearestReturnsStrongestFirst() {
+        RssiEstimator estimator = new RssiEstimator(1000, RssiEstimator.DEFAULT_MEASUREMENT_NOISE,
+                RssiEstimator.DEFAULT_PROCESS_NOISE);
+        for (int device = 0; device < 1000; device++) {
+            // Device 0 is weakest, device 999 strongest; odd devices were last seen long ago.
+            estimator.update(device, device % 2 == 0 ? 10000 : 0, (short) (-100 + device / 20));
+        }
+        long[] addresses = new long[5];
+        float[] estimates = new float[5];
+        assertEquals(5, estimator.nearest(5000, addresses, estimates));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, addresses[i] % 2);
+            if (i > 0) {
+                assertTrue(estimates[i - 1] >= estimates[i]);
+            }
+        }
+        assertEquals(-51, estimates[0], 0.001);
+
+        assertEquals(0, estimator.nearest(20000, addresses, estimates));
+    }
+
+    @Test
+    public void replacesOldestWhenFull() {
+        RssiEstimator estimator = new RssiEstimator(4, RssiEstimator.DEFAULT_MEASUREMENT_NOISE,
+                RssiEstimator.DEFAULT_PROCESS_NOISE);
+        for (int device = 0; device < 6; device++) {
+            estimator.update(device, device, (short) -60);
+        }
+        assertEquals(4, estimator.size());
+        assertTrue(Float.isNaN(estimator.getEstimate(0)));
+        assertTrue(Float.isNaN(estimator.getEstimate(1)));
+        assertEquals(-60, estimator.getEstimate(5), 0.001);
+        for (int device = 2; device < 6; device++) {
+            assertEquals(1, estimator.getReadingCount(device));
+        }
+    }
+
+    @Test
+    public void distanceModel() {
+        assertEquals(1, RssiEstimator.estimateDistance(-59, -59, 2), 0.001);
+        assertEquals(10, RssiEstimator.estimateDistance(-79, -59, 2), 0.001);
+    }
+}
@@ -0,0 +1,173 @@
+package com.jonscully.bluetooth.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SimulatedBluetoothStackTest {
+    // Counts events and folds them into a checksum to compare runs.
+    private static class RecordingSink implements BluetoothEventSink {
+        long checksum = 17;
+        int found;
+        int finished;
+        int lastState;
+        int lastBondState;
+
+        @Override
+        public void onDeviceFound(long timestamp, long address, String name, short rssi, int deviceClass) {
+            found++;
+            mix(timestamp, address, rssi);
+        }
+
+        @Override
+        public void onNameChanged(long timestamp, long address, String name) {
+        }
+
+        @Override
+        public void onClassChanged(long timestamp, long address, int deviceClass) {
+        }
+
+        @Override
+        public void onDiscoveryStarted(long timestamp) {
+            mix(timestamp, -1, 0);
+        }
+
+        @Override
+        public void onDiscoveryFinished(long timestamp) {
+            finished++;
+            mix(timestamp, -2, 0);
+        }
+
+        @Override
+        public void onAdapterStateChanged(long timestamp, int state) {
+            lastState = state;
+            mix(timestamp, -3, state);
+        }
+
+        @Override
+        public void onBondStateChanged(long timestamp, long address, int bondState) {
+            lastBondState = bondState;
+            mix(timestamp, address, bondState);
+        }
+
+        private void mix(long a, long b, long c) {
+            checksum = checksum * 31 + a;
+            checksum = checksum * 31 + b;
+            checksum = checksum * 31 + c;
+        }
+    }
+
+    @Test
+    public void enable_turnsOnAfterConfiguredDelay() {
+        SimulatedBluetoothStack.Config config = new SimulatedBluetoothStack.Config();
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack(config);
+        RecordingSink sink = new RecordingSink();
+        stack.addSink(sink);
+
+        assertFalse(stack.startDiscovery());
+        assertTrue(stack.enable());
+        stack.advanceBy(config.turnOnDelayMillis - 1);
+        assertEquals(BluetoothAdapter.STATE_TURNING_ON, stack.getState());
+        stack.advanceBy(1);
+        assertTrue(stack.isEnabled());
+        assertEquals(BluetoothAdapter.STATE_ON, sink.lastState);
+    }
+
+    @Test
+    public void discovery_emitsSightingsThenFinishes() {
+        SimulatedBluetoothStack.Config config = new SimulatedBluetoothStack.Config();
+        config.sightingsPerSecond = 500;
+        SimulatedBluetoothStack stack = enabledStack(config);
+        RecordingSink sink = new RecordingSink();
+        stack.addSink(sink);
+
+        assertTrue(stack.startDiscovery());
+        stack.runUntilIdle();
+        assertEquals(500 * config.discoveryDurationMillis / 1000, sink.found);
+        assertEquals(1, sink.finished);
+        assertFalse(stack.isDiscovering());
+    }
+
+    @Test
+    public void cancelDiscovery_dropsRemainingSightings() {
+        SimulatedBluetoothStack stack = enabledStack(new SimulatedBluetoothStack.Config());
+        RecordingSink sink = new RecordingSink();
+        stack.addSink(sink);
+
+        stack.startDiscovery();
+        stack.advanceBy(1000);
+        int foundBeforeCancel = sink.found;
+        assertTrue(stack.cancelDiscovery());
+        stack.runUntilIdle();
+        assertEquals(foundBeforeCancel, sink.found);
+        assertEquals(1, sink.finished);
+    }
+
+    @Test
+    public void createBond_honoursFailureRate() {
+        SimulatedBluetoothStack.Config config = new SimulatedBluetoothStack.Config();
+        config.bondFailureRate = 1;
+        SimulatedBluetoothStack stack = enabledStack(config);
+        RecordingSink sink = new RecordingSink();
+        stack.addSink(sink);
+
+        long address = SimulatedBluetoothStack.addressOf(3);
+        assertTrue(stack.createBond(address));
+        stack.runUntilIdle();
+        assertEquals(BluetoothDevice.BOND_NONE, sink.lastBondState);
+        assertTrue(stack.getBondedAddresses().isEmpty());
+    }
+
+    @Test
+    public void sameConfig_producesSameEventStream() {
+        assertEquals(runScenario(), runScenario());
+    }
+
+    // The controller's found path starts from Intents, which cannot be built on the JVM, so the
+    // load goes into the pipeline the receiver feeds.
+    @Test
+    public void pipeline_loadTest() {
+        final int cycles = 5;
+        SimulatedBluetoothStack.Config config = new SimulatedBluetoothStack.Config();
+        config.deviceCount = 20000;
+        config.sightingsPerSecond = 50000;
+        SimulatedBluetoothStack stack = enabledStack(config);
+        DeviceEventPipeline pipeline = new DeviceEventPipeline(new DeviceRegistry(config.deviceCount));
+        stack.addSink(pipeline);
+
+        for (int cycle = 0; cycle < cycles; cycle++) {
+            assertTrue(stack.startDiscovery());
+            stack.runUntilIdle();
+        }
+
+        // Every sighting, plus the started and finished events of each cycle.
+        long sightingsPerCycle = config.discoveryDurationMillis * config.sightingsPerSecond / 1000;
+        assertEquals(cycles * (sightingsPerCycle + 2), pipeline.getEventCount());
+        assertEquals(config.deviceCount, pipeline.getDeviceRegistry().size());
+    }
+
+    private static long runScenario() {
+        SimulatedBluetoothStack.Config config = new SimulatedBluetoothStack.Config();
+        config.bondFailureRate = 0.5;
+        SimulatedBluetoothStack stack = enabledStack(config);
+        RecordingSink sink = new RecordingSink();
+        stack.addSink(sink);
+        stack.startDiscovery();
+        stack.advanceBy(3000);
+        for (int i = 0; i < 10; i++) {
+            stack.createBond(SimulatedBluetoothStack.addressOf(i));
+        }
+        stack.runUntilIdle();
+        return sink.checksum;
+    }
+
+    private static SimulatedBluetoothStack enabledStack(SimulatedBluetoothStack.Config config) {
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack(config);
+        stack.enable();
+        stack.runUntilIdle();
+        return stack;
+    }
+}
@@ -0,0 +1,281 @@
+package com.jonscully.bluetooth.bluetooth.gatt;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class GattOperationQueueTest {
+    private static final UUID SERVICE = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
+    private static final UUID DATA = UUID.fromString("00002a00-0000-1000-8000-00805f9b34fb");
+    private static final UUID CONTROL = UUID.fromString("00002a01-0000-1000-8000-00805f9b34fb");
+
+    // Stands in for BluetoothGatt: accepts one acknowledged operation at a time and up to
+    // bufferSlots writes without response, and answers only when deliver() is called.
+    private static class FakeGattDriver implements GattOperationQueue.Driver {
+        final int bufferSlots;
+        final List<String> log = new ArrayList<>();
+        final ArrayDeque<Runnable> callbacks = new ArrayDeque<>();
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        GattOperationQueue queue;
+        int writeStatus = BluetoothGatt.GATT_SUCCESS;
+        int outstanding;
+        int maxOutstanding;
+        boolean exclusive;
+
+        FakeGattDriver(int bufferSlots) {
+            this.bufferSlots = bufferSlots;
+        }
+
+        @Override
+        public boolean read(UUID service, final UUID characteristic) {
+            if (!startExclusive()) {
+                return false;
+            }
+            log.add("read");
+            callbacks.add(new Runnable() {
+                @Override
+                public void run() {
+                    done();
+                    queue.onCharacteristicRead(characteristic, new byte[]{1, 2, 3}, BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean write(UUID service, final UUID characteristic, byte[] value, boolean withResponse) {
+            if (withResponse ? !startExclusive() : exclusive || outstanding >= bufferSlots) {
+                return false;
+            }
+            if (!withResponse) {
+                started();
+            }
+            log.add((withResponse ? "write " : "chunk ") + value.length);
+            received.write(value, 0, value.length);
+            callbacks.add(new Runnable() {
+                @Override
+                public void run() {
+                    done();
+                    queue.onCharacteristicWrite(characteristic, writeStatus);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean canWriteWithoutResponse(UUID service, UUID characteristic) {
+            return DATA.equals(characteristic);
+        }
+
+        @Override
+        public boolean requestMtu(final int mtu) {
+            if (!startExclusive()) {
+                return false;
+            }
+            log.add("mtu " + mtu);
+            callbacks.add(new Runnable() {
+                @Override
+                public void run() {
+                    done();
+                    queue.onMtuChanged(Math.min(mtu, 247), BluetoothGatt.GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int priority) {
+            log.add("priority " + priority);
+            return outstanding == 0;
+        }
+
+        void deliver() {
+            callbacks.pollFirst().run();
+        }
+
+        void deliverAll() {
+            while (!callbacks.isEmpty()) {
+                deliver();
+            }
+        }
+
+        private boolean startExclusive() {
+            if (outstanding > 0) {
+                return false;
+            }
+            exclusive = true;
+            started();
+            return true;
+        }
+
+        private void started() {
+            outstanding++;
+            maxOutstanding = Math.max(maxOutstanding, outstanding);
+        }
+
+        private void done() {
+            outstanding--;
+            exclusive = false;
+        }
+    }
+
+    private static GattOperationQueue readyQueue(FakeGattDriver driver) {
+        GattOperationQueue queue = new GattOperationQueue(driver, new Handler(), GattOperationQueue.DEFAULT_QUEUE_CAPACITY);
+        driver.queue = queue;
+        queue.onReady();
+        return queue;
+    }
+
+    private static byte[] payload(int length) {
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = (byte) i;
+        }
+        return value;
+    }
+
+    @Test
+    public void operations_runOneAtATimeInOrder() throws Exception {
+        FakeGattDriver driver = new FakeGattDriver(4);
+        GattOperationQueue queue = new GattOperationQueue(driver, new Handler(), GattOperationQueue.DEFAULT_QUEUE_CAPACITY);
+        driver.queue = queue;
+        GattFuture priority = queue.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        GattFuture mtu = queue.requestMtu(GattOperationQueue.MAX_MTU);
+        GattFuture read = queue.read(SERVICE, CONTROL);
+        GattFuture write = queue.writeWithResponse(SERVICE, CONTROL, payload(4));
+        // Nothing starts before the services are discovered.
+        assertTrue(driver.log.isEmpty());
+
+        queue.onReady();
+        driver.deliverAll();
+        assertEquals(1, driver.maxOutstanding);
+        assertTrue(priority.isDone() && mtu.isDone() && write.isDone());
+        assertArrayEquals(new byte[]{1, 2, 3}, read.get());
+        assertEquals(247, queue.getMtu());
+        assertEquals("[priority 1, mtu 517, read, write 4]", driver.log.toString());
+        assertEquals(4, queue.getCompletedCount());
+    }
+
+    @Test
+    public void writesWithoutResponse_arePipelinedInMtuChunks() throws Exception {
+        FakeGattDriver driver = new FakeGattDriver(3);
+        GattOperationQueue queue = readyQueue(driver);
+        byte[] data = payload(100);
+        GattFuture write = queue.write(SERVICE, DATA, data);
+
+        // 20 bytes per chunk with the default MTU, three in the stack buffer at once.
+        assertEquals(3, queue.getInFlightCount());
+        GattFuture read = queue.read(SERVICE, CONTROL);
+        driver.deliver();
+        assertEquals(3, queue.getInFlightCount());
+        driver.deliverAll();
+
+        assertNull(write.get());
+        assertTrue(read.isDone());
+        assertEquals(3, driver.maxOutstanding);
+        assertEquals("[chunk 20, chunk 20, chunk 20, chunk 20, chunk 20, read]", driver.log.toString());
+        assertArrayEquals(data, driver.received.toByteArray());
+        assertEquals(100, queue.getBytesWritten());
+        assertTrue(queue.getWriteBytesPerSecond() > 0);
+    }
+
+    @Test
+    public void refusedChunk_waitsForNextCallback() throws Exception {
+        FakeGattDriver driver = new FakeGattDriver(2);
+        GattOperationQueue queue = readyQueue(driver);
+        queue.configure(8, GattOperationQueue.DEFAULT_TIMEOUT_MILLIS);
+        GattFuture write = queue.write(SERVICE, DATA, payload(200));
+        assertEquals(2, queue.getInFlightCount());
+        assertEquals(1, queue.getBusyCount());
+
+        driver.deliverAll();
+        assertNull(write.get());
+        assertEquals(10, driver.log.size());
+        assertEquals(200, queue.getBytesWritten());
+    }
+
+    @Test
+    public void failedChunk_failsWriteAndSkipsRest() throws Exception {
+        FakeGattDriver driver = new FakeGattDriver(2);
+        GattOperationQueue queue = readyQueue(driver);
+        driver.writeStatus = BluetoothGatt.GATT_FAILURE;
+        GattFuture write = queue.write(SERVICE, DATA, payload(100));
+        driver.deliverAll();
+        driver.writeStatus = BluetoothGatt.GATT_SUCCESS;
+        GattFuture next = queue.writeWithResponse(SERVICE, CONTROL, payload(1));
+        driver.deliverAll();
+
+        try {
+            write.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(BluetoothGatt.GATT_FAILURE, ((GattException) e.getCause()).getStatus());
+        }
+        assertNull(next.get());
+        assertEquals("[chunk 20, chunk 20, write 1]", driver.log.toString());
+    }
+
+    @Test
+    public void disconnect_failsQueuedOperations() {
+        FakeGattDriver driver = new FakeGattDriver(2);
+        GattOperationQueue queue = readyQueue(driver);
+        GattFuture read = queue.read(SERVICE, CONTROL);
+        GattFuture queued = queue.read(SERVICE, CONTROL);
+        GattFuture cancelled = queue.read(SERVICE, CONTROL);
+        assertTrue(cancelled.cancel(false));
+        assertFalse(read.cancel(false));
+
+        queue.onDisconnected();
+        assertTrue(read.isDone() && queued.isDone());
+        assertEquals(0, queue.getQueuedCount());
+        assertEquals(0, queue.getInFlightCount());
+        // The late callback of the dropped read is ignored.
+        driver.deliverAll();
+        assertEquals(2, queue.getFailedCount());
+    }
+
+    @Test
+    public void listeners_runUnlockedAndMayQueueTheNextOperation() throws Exception {
+        FakeGattDriver driver = new FakeGattDriver(2);
+        final GattOperationQueue queue = readyQueue(driver);
+        final boolean[] calledLocked = new boolean[1];
+        final List<GattFuture> chained = new ArrayList<>();
+        queue.read(SERVICE, CONTROL).addListener(new GattFuture.Listener() {
+            @Override
+            public void onComplete(byte[] value) {
+                calledLocked[0] |= Thread.holdsLock(queue);
+                chained.add(queue.writeWithResponse(SERVICE, CONTROL, value));
+            }
+
+            @Override
+            public void onFailed(Throwable error) {
+                fail(error.toString());
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        driver.deliver();
+        assertFalse(calledLocked[0]);
+        assertEquals(1, chained.size());
+        assertEquals(1, queue.getInFlightCount());
+        driver.deliver();
+        assertNull(chained.get(0).get());
+        assertEquals("[read, write 3]", driver.log.toString());
+        assertEquals(2, queue.getCompletedCount());
+    }
+}
@@ -0,0 +1,71 @@
+package com.jonscully.bluetooth.bluetooth.rfcomm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+// Runs the channel over a loopback TCP socket pair standing in for an RFCOMM socket.
+public class RfcommChannelTest {
+    private Socket clientSocket;
+    private Socket serverSocket;
+    private RfcommChannel writer;
+    private RfcommChannel reader;
+
+    @Before
+    public void setUp() throws IOException {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        clientSocket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        serverSocket = server.accept();
+        server.close();
+        writer = open(clientSocket, RfcommChannel.DEFAULT_FLUSH_THRESHOLD);
+        reader = open(serverSocket, RfcommChannel.DEFAULT_FLUSH_THRESHOLD);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        writer.close();
+        reader.close();
+    }
+
+    @Test
+    public void frames_roundTripInOrder() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            byte[] payload = new byte[i * 37];
+            for (int j = 0; j < payload.length; j++) {
+                payload[j] = (byte) (i + j);
+            }
+            writer.writeFrame(payload, 0, payload.length);
+        }
+        writer.flush();
+
+        for (int i = 0; i < 100; i++) {
+            ByteBuffer frame = reader.readFrame();
+            assertEquals(i * 37, frame.remaining());
+            for (int j = 0; j < i * 37; j++) {
+                assertEquals((byte) (i + j), frame.get());
+            }
+            reader.release(frame);
+        }
+        // Batched writes: far fewer flushes than frames.
+        assertTrue(writer.getFlushCount() < 100);
+        assertEquals(1, reader.getBufferPool().getAllocationCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void writeFrame_rejectsOversizedFrame() throws IOException {
+        writer.writeFrame(ByteBuffer.allocate(RfcommChannel.DEFAULT_MAX_FRAME_SIZE + 1));
+    }
+
+    private static RfcommChannel open(Socket socket, int flushThreshold) throws IOException {
+        return new RfcommChannel(socket.getInputStream(), socket.getOutputStream(), socket,
+                RfcommChannel.DEFAULT_MAX_FRAME_SIZE, flushThreshold);
+    }
+}
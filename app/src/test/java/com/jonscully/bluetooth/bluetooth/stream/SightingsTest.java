@@ -0,0 +1,231 @@
+package com.jonscully.bluetooth.bluetooth.stream;
+
+import com.jonscully.bluetooth.bluetooth.SimulatedBluetoothStack;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class SightingsTest {
+    // Requests items only when told to.
+    private static class TestSubscriber<T> implements Subscriber<T> {
+        final List<T> items = new ArrayList<>();
+        Subscription subscription;
+        boolean completed;
+        Throwable error;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(T item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    private static SimulatedBluetoothStack discoveringStack(int deviceCount) {
+        SimulatedBluetoothStack.Config config = new SimulatedBluetoothStack.Config();
+        config.deviceCount = deviceCount;
+        config.turnOnDelayMillis = 0;
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack(config);
+        stack.enable();
+        stack.runUntilIdle();
+        stack.startDiscovery();
+        return stack;
+    }
+
+    @Test
+    public void honoursDemandAndDropsOldestBeyondCapacity() {
+        SightingPublisher publisher = new SightingPublisher(16);
+        TestSubscriber<DeviceSighting> subscriber = new TestSubscriber<>();
+        publisher.subscribe(subscriber);
+        for (int i = 0; i < 100; i++) {
+            publisher.onDeviceFound(i, i, null, (short) -50, 0);
+        }
+        assertEquals(0, subscriber.items.size());
+        assertEquals(84, publisher.getDroppedCount());
+
+        subscriber.subscription.request(10);
+        assertEquals(10, subscriber.items.size());
+        assertEquals(84, subscriber.items.get(0).timestamp);
+
+        publisher.close();
+        assertFalse(subscriber.completed);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(16, subscriber.items.size());
+        assertTrue(subscriber.completed);
+    }
+
+    @Test
+    public void distinctByAddressOverSimulatedDiscovery() {
+        SimulatedBluetoothStack stack = discoveringStack(200);
+        SightingPublisher publisher = new SightingPublisher(1024);
+        stack.addSink(publisher);
+        TestSubscriber<DeviceSighting> subscriber = new TestSubscriber<>();
+        Sightings.distinctByAddress(publisher, 1000).subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        stack.runUntilIdle();
+        publisher.close();
+
+        Set<Long> addresses = new HashSet<>();
+        for (DeviceSighting sighting : subscriber.items) {
+            assertTrue(addresses.add(sighting.address));
+        }
+        assertEquals(200, addresses.size());
+        assertTrue(subscriber.completed);
+        assertEquals(0, publisher.getDroppedCount());
+    }
+
+    @Test
+    public void operatorsOnlyPullWhatIsRequested() {
+        SightingPublisher publisher = new SightingPublisher(4);
+        TestSubscriber<List<DeviceSighting>> subscriber = new TestSubscriber<>();
+        Sightings.window(publisher, 100, 1000).subscribe(subscriber);
+        subscriber.subscription.request(1);
+        for (int i = 0; i < 1000; i++) {
+            publisher.onDeviceFound(i * 10, i, null, (short) -50, 0);
+        }
+        // One window was delivered; the rest waits upstream in the bounded buffer.
+        assertEquals(1, subscriber.items.size());
+        assertEquals(10, subscriber.items.get(0).size());
+        assertTrue(publisher.getDroppedCount() > 0);
+    }
+
+    @Test
+    public void windowsAndSamplesFollowTimestamps() {
+        SightingPublisher publisher = new SightingPublisher(1024);
+        TestSubscriber<List<DeviceSighting>> windows = new TestSubscriber<>();
+        TestSubscriber<DeviceSighting> samples = new TestSubscriber<>();
+        Sightings.window(publisher, 100, 4).subscribe(windows);
+        Sightings.sample(publisher, 100).subscribe(samples);
+        windows.subscription.request(Long.MAX_VALUE);
+        samples.subscription.request(Long.MAX_VALUE);
+
+        long[] timestamps = {0, 10, 20, 30, 40, 150, 160, 400};
+        for (long timestamp : timestamps) {
+            publisher.onDeviceFound(timestamp, timestamp, null, (short) -50, 0);
+        }
+        publisher.close();
+
+        assertEquals(4, windows.items.size());
+        assertEquals(4, windows.items.get(0).size());
+        assertEquals(1, windows.items.get(1).size());
+        assertEquals(2, windows.items.get(2).size());
+        assertEquals(400, windows.items.get(3).get(0).timestamp);
+        assertTrue(windows.completed);
+
+        assertEquals(3, samples.items.size());
+        assertEquals(40, samples.items.get(0).timestamp);
+        assertEquals(160, samples.items.get(1).timestamp);
+        assertEquals(400, samples.items.get(2).timestamp);
+        assertTrue(samples.completed);
+    }
+
+    // The receiver thread feeds the publisher and closes it while a consumer requests from its
+    // own thread, as a UI subscriber would, so the two enter the chain from opposite ends. Half
+    // of the rounds cancel midway instead of waiting for completion.
+    @Test
+    public void requestsFromAnotherThreadWhileFed() throws Exception {
+        for (int round = 0; round < 2000; round++) {
+            final boolean cancelMidway = round % 2 == 1;
+            final SightingPublisher publisher = new SightingPublisher(16);
+            final AtomicBoolean inOnNext = new AtomicBoolean();
+            final AtomicBoolean overlapped = new AtomicBoolean();
+            final AtomicLong lastAddress = new AtomicLong(-1);
+            final AtomicBoolean outOfOrder = new AtomicBoolean();
+            final CountDownLatch finished = new CountDownLatch(1);
+            final Subscription[] subscription = new Subscription[1];
+            Sightings.distinctByAddress(publisher, 1000).subscribe(new Subscriber<DeviceSighting>() {
+                @Override
+                public void onSubscribe(Subscription s) {
+                    subscription[0] = s;
+                }
+
+                @Override
+                public void onNext(DeviceSighting sighting) {
+                    if (!inOnNext.compareAndSet(false, true)) {
+                        overlapped.set(true);
+                    }
+                    if (sighting.address <= lastAddress.getAndSet(sighting.address)) {
+                        outOfOrder.set(true);
+                    }
+                    inOnNext.set(false);
+                }
+
+                @Override
+                public void onError(Throwable error) {
+                }
+
+                @Override
+                public void onComplete() {
+                    finished.countDown();
+                }
+            });
+
+            Thread consumer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (finished.getCount() > 0) {
+                        if (cancelMidway && lastAddress.get() >= 50) {
+                            subscription[0].cancel();
+                            finished.countDown();
+                            return;
+                        }
+                        subscription[0].request(1);
+                    }
+                }
+            });
+            Thread receiver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 200; i++) {
+                        publisher.onDeviceFound(i, i, null, (short) -50, 0);
+                    }
+                    publisher.close();
+                }
+            });
+            consumer.start();
+            receiver.start();
+
+            receiver.join(10000);
+            consumer.join(10000);
+            assertFalse("deadlocked in round " + round, receiver.isAlive() || consumer.isAlive());
+            assertFalse(overlapped.get());
+            assertFalse(outOfOrder.get());
+        }
+    }
+
+    @Test
+    public void cancelStopsUpstream() {
+        SightingPublisher publisher = new SightingPublisher(16);
+        TestSubscriber<DeviceSighting> subscriber = new TestSubscriber<>();
+        Sightings.sample(publisher, 10).subscribe(subscriber);
+        assertEquals(1, publisher.getSubscriberCount());
+        subscriber.subscription.cancel();
+        assertEquals(0, publisher.getSubscriberCount());
+        subscriber.subscription.request(-1);
+        assertNull(subscriber.error);
+    }
+}
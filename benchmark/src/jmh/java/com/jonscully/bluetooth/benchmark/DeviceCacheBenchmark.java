@@ -0,0 +1,55 @@
+package com.jonscully.bluetooth.benchmark;
+
+import com.jonscully.bluetooth.bluetooth.DeviceCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Opening the device cache and loading every record, what the app does before its first frame.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DeviceCacheBenchmark {
+    @Param({"10000", "100000"})
+    public int recordCount;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("devices", ".cache");
+        file.delete();
+        DeviceCache cache = new DeviceCache(file);
+        for (int i = 0; i < recordCount; i++) {
+            cache.append(i, i, (short) -60, 10, "Device " + i);
+        }
+        cache.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public int openAndLoad() throws IOException {
+        DeviceCache cache = new DeviceCache(file);
+        try {
+            return cache.load().size();
+        } finally {
+            cache.close();
+        }
+    }
+}
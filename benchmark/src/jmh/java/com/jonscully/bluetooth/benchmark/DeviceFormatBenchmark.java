@@ -0,0 +1,64 @@
+package com.jonscully.bluetooth.benchmark;
+
+import com.jonscully.bluetooth.bluetooth.DeviceFormat;
+import com.jonscully.bluetooth.bluetooth.MacAddress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Name resolution and log formatting done for every discovered device.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DeviceFormatBenchmark {
+    private FakeDevice[] devices;
+    private long[] packedAddresses;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        devices = FakeDevice.fleet(1024, 1);
+        packedAddresses = new long[devices.length];
+        for (int i = 0; i < devices.length; i++) {
+            packedAddresses[i] = MacAddress.toLong(devices[i].address);
+        }
+    }
+
+    @Benchmark
+    public String describe() {
+        FakeDevice device = nextDevice();
+        return DeviceFormat.describe(device.address, device.name);
+    }
+
+    @Benchmark
+    public String displayName() {
+        FakeDevice device = nextDevice();
+        return DeviceFormat.displayName(device.address, device.name);
+    }
+
+    @Benchmark
+    public long parseAddress() {
+        return MacAddress.toLong(nextDevice().address);
+    }
+
+    @Benchmark
+    public String formatAddress() {
+        return MacAddress.toString(packedAddresses[nextIndex()]);
+    }
+
+    private FakeDevice nextDevice() {
+        return devices[nextIndex()];
+    }
+
+    private int nextIndex() {
+        next = (next + 1) & (1024 - 1);
+        return next;
+    }
+}
@@ -0,0 +1,73 @@
+package com.jonscully.bluetooth.benchmark;
+
+import com.jonscully.bluetooth.bluetooth.DeviceRegistry;
+import com.jonscully.bluetooth.bluetooth.MacAddress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Per-sighting lookups: the DeviceRegistry against the String keyed map a consumer would
+// otherwise keep.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DeviceLookupBenchmark {
+    @Param({"1000", "100000"})
+    public int deviceCount;
+
+    private FakeDevice[] devices;
+    private long[] packedAddresses;
+    private DeviceRegistry registry;
+    private Map<String, FakeDevice> map;
+    private int next;
+    private long now;
+
+    @Setup
+    public void setUp() {
+        devices = FakeDevice.fleet(deviceCount, 2);
+        packedAddresses = new long[deviceCount];
+        registry = new DeviceRegistry(deviceCount);
+        map = new HashMap<>();
+        for (int i = 0; i < deviceCount; i++) {
+            packedAddresses[i] = MacAddress.toLong(devices[i].address);
+            registry.update(packedAddresses[i], i, (short) -60, 10, devices[i].name);
+            map.put(devices[i].address, devices[i]);
+        }
+    }
+
+    @Benchmark
+    public short registryLookup() {
+        return registry.getRssi(packedAddresses[nextIndex()]);
+    }
+
+    @Benchmark
+    public short registryLookupFromString() {
+        return registry.getRssi(MacAddress.toLong(devices[nextIndex()].address));
+    }
+
+    @Benchmark
+    public boolean registryUpdate() {
+        int index = nextIndex();
+        return registry.update(packedAddresses[index], ++now, (short) -55, 10, null);
+    }
+
+    @Benchmark
+    public FakeDevice hashMapLookup() {
+        return map.get(devices[nextIndex()].address);
+    }
+
+    private int nextIndex() {
+        next = next + 1 == deviceCount ? 0 : next + 1;
+        return next;
+    }
+}
@@ -0,0 +1,95 @@
+package com.jonscully.bluetooth.benchmark;
+
+import com.jonscully.bluetooth.bluetooth.DeviceIndex;
+import com.jonscully.bluetooth.bluetooth.MacAddress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+// DeviceIndex queries over a fleet, against the scan of every device a consumer would otherwise
+// run. One device in eight of each major class, one in twenty bonded, one sighting per
+// millisecond.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DeviceQueryBenchmark {
+    private static final int BOND_NONE = 10;
+    private static final int BOND_BONDED = 12;
+    private static final int AUDIO_VIDEO = 0x0400;
+
+    @Param({"1000", "10000"})
+    public int deviceCount;
+
+    private FakeDevice[] devices;
+    private int[] deviceClasses;
+    private int[] bondStates;
+    private DeviceIndex index;
+    private long[] found;
+    private DeviceIndex.Query namePrefix;
+    private DeviceIndex.Query bondedAudio;
+    private DeviceIndex.Query lastSecond;
+
+    @Setup
+    public void setUp() {
+        devices = FakeDevice.fleet(deviceCount, 2);
+        deviceClasses = new int[deviceCount];
+        bondStates = new int[deviceCount];
+        index = new DeviceIndex(deviceCount);
+        found = new long[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            deviceClasses[i] = (i % 8) << 8 | 0x04;
+            bondStates[i] = i % 20 == 0 ? BOND_BONDED : BOND_NONE;
+            index.update(MacAddress.toLong(devices[i].address), devices[i].name, deviceClasses[i], bondStates[i], i);
+        }
+        namePrefix = new DeviceIndex.Query().namePrefix("tag 12");
+        bondedAudio = new DeviceIndex.Query().majorClass(AUDIO_VIDEO).bondState(BOND_BONDED);
+        lastSecond = new DeviceIndex.Query().seenBetween(deviceCount - 1000, deviceCount);
+    }
+
+    @Benchmark
+    public int indexNamePrefix() {
+        return index.find(namePrefix, found);
+    }
+
+    @Benchmark
+    public int scanNamePrefix() {
+        int count = 0;
+        for (int i = 0; i < deviceCount; i++) {
+            String name = devices[i].name;
+            if (name != null && name.toLowerCase(Locale.ROOT).startsWith("tag 12")) {
+                found[count++] = i;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int indexClassAndBondState() {
+        return index.find(bondedAudio, found);
+    }
+
+    @Benchmark
+    public int scanClassAndBondState() {
+        int count = 0;
+        for (int i = 0; i < deviceCount; i++) {
+            if ((deviceClasses[i] & 0x1F00) == AUDIO_VIDEO && bondStates[i] == BOND_BONDED) {
+                found[count++] = i;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int indexSeenBetween() {
+        return index.find(lastSecond, found);
+    }
+}
@@ -0,0 +1,63 @@
+package com.jonscully.bluetooth.benchmark;
+
+import com.jonscully.bluetooth.bluetooth.DeviceEventPipeline;
+import com.jonscully.bluetooth.bluetooth.DeviceRegistry;
+import com.jonscully.bluetooth.bluetooth.SimulatedBluetoothStack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Everything an ACTION_FOUND goes through once the intent has been parsed.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EventDispatchBenchmark {
+    private static final int DEVICES = 5000;
+    private static final int SIGHTINGS_PER_CYCLE = 12000;
+
+    private DeviceEventPipeline pipeline;
+    private SimulatedBluetoothStack stack;
+    private long[] addresses;
+    private int next;
+    private long now;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        pipeline = new DeviceEventPipeline(new DeviceRegistry(DEVICES));
+        addresses = new long[DEVICES];
+        for (int i = 0; i < DEVICES; i++) {
+            addresses[i] = SimulatedBluetoothStack.addressOf(i);
+        }
+
+        SimulatedBluetoothStack.Config config = new SimulatedBluetoothStack.Config();
+        config.deviceCount = DEVICES;
+        config.sightingsPerSecond = SIGHTINGS_PER_CYCLE * 1000 / (int) config.discoveryDurationMillis;
+        stack = new SimulatedBluetoothStack(config);
+        stack.addSink(new DeviceEventPipeline(new DeviceRegistry(DEVICES)));
+        stack.enable();
+        stack.runUntilIdle();
+    }
+
+    @Benchmark
+    public void pipelineDeviceFound() {
+        next = next + 1 == DEVICES ? 0 : next + 1;
+        pipeline.onDeviceFound(++now, addresses[next], null, (short) -60, 0);
+    }
+
+    // One simulated discovery cycle, reported per sighting.
+    @Benchmark
+    @OperationsPerInvocation(SIGHTINGS_PER_CYCLE)
+    public void simulatedDiscoveryCycle() {
+        stack.startDiscovery();
+        stack.runUntilIdle();
+    }
+}
@@ -0,0 +1,27 @@
+package com.jonscully.bluetooth.benchmark;
+
+import com.jonscully.bluetooth.bluetooth.MacAddress;
+
+import java.util.Random;
+
+// What the app reads from a BluetoothDevice, without the framework object.
+public class FakeDevice {
+    public final String address;
+    public final String name;
+
+    public FakeDevice(String address, String name) {
+        this.address = address;
+        this.name = name;
+    }
+
+    // Deterministic fleet where one device in four has not resolved its name yet.
+    public static FakeDevice[] fleet(int size, long seed) {
+        Random random = new Random(seed);
+        FakeDevice[] devices = new FakeDevice[size];
+        for (int i = 0; i < size; i++) {
+            long address = random.nextLong() & 0xFFFFFFFFFFFFL;
+            devices[i] = new FakeDevice(MacAddress.toString(address), i % 4 == 0 ? null : "Tag " + i);
+        }
+        return devices;
+    }
+}
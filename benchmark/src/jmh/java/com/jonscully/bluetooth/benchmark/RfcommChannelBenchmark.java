@@ -0,0 +1,83 @@
+package com.jonscully.bluetooth.benchmark;
+
+import com.jonscully.bluetooth.bluetooth.rfcomm.RfcommChannel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Frames written through RfcommChannel over a loopback TCP socket pair standing in for an RFCOMM
+// socket, with a thread reading them on the other end, reported per frame. The socket buffers
+// hold the writer back to the reader's pace, so the score covers both sides.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RfcommChannelBenchmark {
+    private static final int FRAME_SIZE = 1024;
+    private static final int FRAMES = 1000;
+
+    private RfcommChannel writer;
+    private RfcommChannel reader;
+    private Thread readerThread;
+    private final ByteBuffer payload = ByteBuffer.allocate(FRAME_SIZE);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        Socket clientSocket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        Socket serverSocket = server.accept();
+        server.close();
+        writer = open(clientSocket);
+        reader = open(serverSocket);
+        readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        reader.release(reader.readFrame());
+                    }
+                } catch (IOException e) {
+                    // The writer closed its end.
+                }
+            }
+        });
+        readerThread.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        writer.close();
+        readerThread.join();
+        reader.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long writeFrames() throws IOException {
+        for (int i = 0; i < FRAMES; i++) {
+            payload.clear();
+            writer.writeFrame(payload);
+        }
+        writer.flush();
+        return writer.getFramesWritten();
+    }
+
+    private static RfcommChannel open(Socket socket) throws IOException {
+        return new RfcommChannel(socket.getInputStream(), socket.getOutputStream(), socket,
+                RfcommChannel.DEFAULT_MAX_FRAME_SIZE, RfcommChannel.DEFAULT_FLUSH_THRESHOLD);
+    }
+}
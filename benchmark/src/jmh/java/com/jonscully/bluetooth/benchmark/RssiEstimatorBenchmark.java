@@ -0,0 +1,67 @@
+package com.jonscully.bluetooth.benchmark;
+
+import com.jonscully.bluetooth.bluetooth.MacAddress;
+import com.jonscully.bluetooth.bluetooth.RssiEstimator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Kalman update per sighting (updates/sec = 1e9 / score) and the nearest devices query over
+// the whole population.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RssiEstimatorBenchmark {
+    @Param({"1000", "10000"})
+    public int deviceCount;
+
+    private long[] packedAddresses;
+    private short[] readings;
+    private RssiEstimator estimator;
+    private final long[] nearestAddresses = new long[10];
+    private final float[] nearestEstimates = new float[10];
+    private int next;
+    private long now;
+
+    @Setup
+    public void setUp() {
+        FakeDevice[] devices = FakeDevice.fleet(deviceCount, 2);
+        Random random = new Random(42);
+        packedAddresses = new long[deviceCount];
+        readings = new short[1024];
+        for (int i = 0; i < readings.length; i++) {
+            readings[i] = (short) (-90 + random.nextInt(60));
+        }
+        estimator = new RssiEstimator(deviceCount, RssiEstimator.DEFAULT_MEASUREMENT_NOISE,
+                RssiEstimator.DEFAULT_PROCESS_NOISE);
+        for (int i = 0; i < deviceCount; i++) {
+            packedAddresses[i] = MacAddress.toLong(devices[i].address);
+            estimator.update(packedAddresses[i], 0, readings[i & 1023]);
+        }
+    }
+
+    @Benchmark
+    public float update() {
+        int index = nextIndex();
+        return estimator.update(packedAddresses[index], ++now, readings[index & 1023]);
+    }
+
+    @Benchmark
+    public int nearest10() {
+        return estimator.nearest(0, nearestAddresses, nearestEstimates);
+    }
+
+    private int nextIndex() {
+        next = next + 1 == deviceCount ? 0 : next + 1;
+        return next;
+    }
+}
@@ -0,0 +1,72 @@
+package com.jonscully.bluetooth.benchmark;
+
+import com.jonscully.bluetooth.bluetooth.DeviceEventPipeline;
+import com.jonscully.bluetooth.bluetooth.DeviceRegistry;
+import com.jonscully.bluetooth.bluetooth.EventTraceRecorder;
+import com.jonscully.bluetooth.bluetooth.EventTraceReplayer;
+import com.jonscully.bluetooth.bluetooth.SimulatedBluetoothStack;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// A recorded discovery cycle replayed as fast as possible into the pipeline, reported per event.
+// Point it at a trace pulled from a device to turn a field problem into a regression benchmark.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TraceReplayBenchmark {
+    private static final int DEVICES = 5000;
+    private static final int SIGHTINGS_PER_CYCLE = 12000;
+    // The sightings plus the discovery started and finished events.
+    private static final int EVENTS = SIGHTINGS_PER_CYCLE + 2;
+
+    private File trace;
+    private EventTraceReplayer replayer;
+    private DeviceEventPipeline pipeline;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SimulatedBluetoothStack.Config config = new SimulatedBluetoothStack.Config();
+        config.deviceCount = DEVICES;
+        config.sightingsPerSecond = SIGHTINGS_PER_CYCLE * 1000 / (int) config.discoveryDurationMillis;
+        SimulatedBluetoothStack stack = new SimulatedBluetoothStack(config);
+        stack.enable();
+        stack.runUntilIdle();
+
+        trace = File.createTempFile("discovery", ".trace");
+        EventTraceRecorder recorder = new EventTraceRecorder(trace);
+        stack.addSink(recorder);
+        stack.startDiscovery();
+        stack.runUntilIdle();
+        recorder.close();
+        if (recorder.getRecordCount() != EVENTS) {
+            throw new IllegalStateException("Recorded " + recorder.getRecordCount() + " events, expected " + EVENTS);
+        }
+        replayer = new EventTraceReplayer(trace);
+        pipeline = new DeviceEventPipeline(new DeviceRegistry(DEVICES));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        replayer.close();
+        trace.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public long replayIntoPipeline() throws InterruptedException {
+        return replayer.replay(pipeline, EventTraceReplayer.AS_FAST_AS_POSSIBLE);
+    }
+}